@@ -1,36 +1,21 @@
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.Signature;
-import java.security.SignatureException;
 
 public class Crypto {
 
     /**
      * @return true if {@code signature} is a valid digital signature of {@code message} under the
-     *         key {@code pubKey}. Internally, this uses RSA signature, but the student does not
-     *         have to deal with any of the implementation details of the specific signature
-     *         algorithm
+     *         key {@code pubKey}. The signature algorithm is the {@link SignatureScheme} of the
+     *         key, RSA, Ed25519 or ECDSA, but the student does not have to deal with any of the
+     *         implementation details of the specific signature algorithm
      */
     public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
-        Signature sig = null;
+        if (pubKey == null || message == null || signature == null)
+            return false;
         try {
-            sig = Signature.getInstance("SHA256withRSA");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
+            return SignatureScheme.of(pubKey).verify(pubKey, message, signature);
+        } catch (IllegalArgumentException e) {
+            // a key of no supported scheme signs nothing
+            return false;
         }
-        try {
-            sig.initVerify(pubKey);
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
-        }
-        try {
-            sig.update(message);
-            return sig.verify(signature);
-        } catch (SignatureException e) {
-            e.printStackTrace();
-        }
-        return false;
-
     }
 }
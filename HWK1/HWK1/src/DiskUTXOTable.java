@@ -0,0 +1,297 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.PublicKey;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * UTXO store in a file, as a hash table of a fixed number of buckets. Each bucket is a chain of
+ * 4 KiB pages: the first page of bucket b is page b + 1, and further pages are appended to the file
+ * as the bucket grows. A record is the tx hash, the output index, the value and the public key as
+ * encoded by {@link SignatureScheme#encode}. Page 0 holds the number of buckets, of pages and of UTXOs.
+ * <p>
+ * A batch write reads and rewrites each touched bucket once, then syncs the file. Pages a shrinking
+ * bucket no longer needs are reused by other buckets until the table is closed. Not thread-safe.
+ */
+public class DiskUTXOTable implements UTXOStore, Closeable {
+
+    private static final int PAGE_SIZE = 4096;
+    private static final int MAGIC = 0x5554584f;
+    /** next page of the chain (0 for none) and bytes of records in the page */
+    private static final int PAGE_HEADER = 8;
+    private static final int MAX_CACHED_KEYS = 4096;
+    /** outer instance of the outputs read back, which do not belong to any tx */
+    private static final Transaction OUTPUTS = new Transaction();
+
+    private final FileChannel channel;
+    private final int numBuckets;
+    private int numPages;
+    private long size;
+    private final ArrayDeque<Integer> freePages = new ArrayDeque<Integer>();
+    private final ByteBuffer page = ByteBuffer.allocate(PAGE_SIZE);
+    /** decoded keys by their encoding, most UTXOs pay to a few addresses */
+    private final LinkedHashMap<ByteBuffer, PublicKey> keys = new LinkedHashMap<ByteBuffer, PublicKey>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, PublicKey> eldest) {
+            return size() > MAX_CACHED_KEYS;
+        }
+    };
+
+    /** Opens the table in {@code file}, creating it with {@code numBuckets} buckets if it does not exist */
+    public DiskUTXOTable(Path file, int numBuckets) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() == 0) {
+            if (numBuckets < 1)
+                throw new IllegalArgumentException("numBuckets must be positive: " + numBuckets);
+            this.numBuckets = numBuckets;
+            numPages = numBuckets + 1;
+            page.clear();
+            for (int b = 1; b < numPages; b++)
+                writePage(b);
+            writeHeader();
+        } else {
+            ByteBuffer header = ByteBuffer.allocate(20);
+            channel.read(header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC)
+                throw new IOException(file + " is not a UTXO table");
+            this.numBuckets = header.getInt();
+            numPages = header.getInt();
+            size = header.getLong();
+        }
+    }
+
+    /** One record of a bucket, with the key still encoded */
+    private static class Record {
+        final UTXO utxo;
+        final long value;
+        final byte[] key;
+
+        Record(UTXO utxo, long value, byte[] key) {
+            this.utxo = utxo;
+            this.value = value;
+            this.key = key;
+        }
+
+        int length() {
+            return 1 + utxo.txHashBytes().length + 4 + 8 + 2 + key.length;
+        }
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        for (Record record : readBucket(bucketOf(utxo), null)) {
+            if (record.utxo.equals(utxo))
+                return output(record);
+        }
+        return null;
+    }
+
+    public void write(Map<UTXO, Transaction.Output> puts, Collection<UTXO> deletes) {
+        HashMap<Integer, ArrayList<UTXO>> deletesByBucket = new HashMap<Integer, ArrayList<UTXO>>();
+        HashMap<Integer, ArrayList<UTXO>> putsByBucket = new HashMap<Integer, ArrayList<UTXO>>();
+        for (UTXO utxo : deletes)
+            deletesByBucket.computeIfAbsent(bucketOf(utxo), b -> new ArrayList<UTXO>()).add(utxo);
+        for (UTXO utxo : puts.keySet())
+            putsByBucket.computeIfAbsent(bucketOf(utxo), b -> new ArrayList<UTXO>()).add(utxo);
+        HashSet<Integer> buckets = new HashSet<Integer>(deletesByBucket.keySet());
+        buckets.addAll(putsByBucket.keySet());
+
+        for (int bucket : buckets) {
+            ArrayList<Integer> pages = new ArrayList<Integer>();
+            LinkedHashMap<UTXO, Record> records = new LinkedHashMap<UTXO, Record>();
+            for (Record record : readBucket(bucket, pages))
+                records.put(record.utxo, record);
+            long before = records.size();
+            for (UTXO utxo : deletesByBucket.getOrDefault(bucket, new ArrayList<UTXO>()))
+                records.remove(utxo);
+            for (UTXO utxo : putsByBucket.getOrDefault(bucket, new ArrayList<UTXO>())) {
+                Transaction.Output output = puts.get(utxo);
+                records.put(utxo, new Record(utxo, output.value, SignatureScheme.encode(output.address)));
+            }
+            size += records.size() - before;
+            writeBucket(pages, records.values());
+        }
+        try {
+            writeHeader();
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        for (int b = 0; b < numBuckets; b++) {
+            for (Record record : readBucket(b, null))
+                action.accept(record.utxo, output(record));
+        }
+    }
+
+    /** @return the UTXOs and their outputs, read one bucket at a time as the stream is consumed */
+    public Stream<Map.Entry<UTXO, Transaction.Output>> stream() {
+        return StreamSupport.stream(new BucketSpliterator(), false);
+    }
+
+    /** Reads the buckets in order; it does not split, all reads go through the one page buffer */
+    private class BucketSpliterator implements Spliterator<Map.Entry<UTXO, Transaction.Output>> {
+        private int bucket;
+        private final ArrayDeque<Record> records = new ArrayDeque<Record>();
+
+        public boolean tryAdvance(Consumer<? super Map.Entry<UTXO, Transaction.Output>> action) {
+            while (records.isEmpty()) {
+                if (bucket == numBuckets)
+                    return false;
+                records.addAll(readBucket(bucket++, null));
+            }
+            Record record = records.poll();
+            action.accept(new AbstractMap.SimpleImmutableEntry<UTXO, Transaction.Output>(record.utxo, output(record)));
+            return true;
+        }
+
+        public Spliterator<Map.Entry<UTXO, Transaction.Output>> trySplit() {
+            return null;
+        }
+
+        public long estimateSize() {
+            return size;
+        }
+
+        public int characteristics() {
+            return DISTINCT | NONNULL;
+        }
+    }
+
+    /** @return the number of pages of the file */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    public void close() throws IOException {
+        writeHeader();
+        channel.close();
+    }
+
+    private int bucketOf(UTXO utxo) {
+        return Math.floorMod(utxo.hashCode(), numBuckets);
+    }
+
+    /** @return the records of {@code bucket}, adding the numbers of its pages to {@code pages} if not null */
+    private ArrayList<Record> readBucket(int bucket, ArrayList<Integer> pages) {
+        ArrayList<Record> records = new ArrayList<Record>();
+        for (int p = bucket + 1; p != 0; ) {
+            readPage(p);
+            if (pages != null)
+                pages.add(p);
+            int next = page.getInt();
+            int used = page.getInt();
+            while (page.position() < PAGE_HEADER + used) {
+                byte[] hash = new byte[page.get() & 0xff];
+                page.get(hash);
+                int index = page.getInt();
+                long value = page.getLong();
+                byte[] key = new byte[page.getShort() & 0xffff];
+                page.get(key);
+                records.add(new Record(UTXO.wrap(hash, index), value, key));
+            }
+            p = next;
+        }
+        return records;
+    }
+
+    /** packs {@code records} into the pages of a bucket, taking more pages or freeing some as needed */
+    private void writeBucket(ArrayList<Integer> pages, Collection<Record> records) {
+        int used = 0;
+        page.clear();
+        page.position(PAGE_HEADER);
+        int current = 0;
+        for (Record record : records) {
+            if (record.length() > PAGE_SIZE - PAGE_HEADER)
+                throw new IllegalArgumentException("record of " + record.length() + " bytes");
+            if (page.remaining() < record.length()) {
+                int next = current + 1 < pages.size() ? pages.get(current + 1) : allocatePage(pages);
+                finishPage(pages.get(current), next, used);
+                current++;
+                used = 0;
+                page.clear();
+                page.position(PAGE_HEADER);
+            }
+            byte[] hash = record.utxo.txHashBytes();
+            page.put((byte) hash.length).put(hash).putInt(record.utxo.getIndex()).putLong(record.value)
+                    .putShort((short) record.key.length).put(record.key);
+            used += record.length();
+        }
+        finishPage(pages.get(current), 0, used);
+        for (int i = current + 1; i < pages.size(); i++)
+            freePages.add(pages.get(i));
+    }
+
+    private int allocatePage(ArrayList<Integer> pages) {
+        Integer p = freePages.poll();
+        pages.add(p != null ? p : numPages++);
+        return pages.get(pages.size() - 1);
+    }
+
+    private void finishPage(int p, int next, int used) {
+        page.putInt(0, next).putInt(4, used);
+        writePage(p);
+    }
+
+    private void readPage(int p) {
+        page.clear();
+        try {
+            while (page.hasRemaining() && channel.read(page, (long) p * PAGE_SIZE + page.position()) >= 0)
+                ;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        page.flip();
+    }
+
+    private void writePage(int p) {
+        page.position(0).limit(PAGE_SIZE);
+        try {
+            while (page.hasRemaining())
+                channel.write(page, (long) p * PAGE_SIZE + page.position());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(20).putInt(MAGIC).putInt(numBuckets).putInt(numPages).putLong(size);
+        header.flip();
+        channel.write(header, 0);
+    }
+
+    private Transaction.Output output(Record record) {
+        ByteBuffer encoded = ByteBuffer.wrap(record.key);
+        PublicKey key = keys.get(encoded);
+        if (key == null) {
+            try {
+                key = SignatureScheme.decode(record.key);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalStateException("corrupt key in UTXO table", e);
+            }
+            keys.put(encoded, key);
+        }
+        return OUTPUTS.new Output(record.value, key);
+    }
+}
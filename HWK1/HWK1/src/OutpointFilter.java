@@ -0,0 +1,157 @@
+/**
+ * Cuckoo filter over a set of UTXOs: {@link #mightContain} answers false only for UTXOs that were
+ * never added or were removed, and true for any other UTXO with a probability of about
+ * {@link #expectedFalsePositiveRate()}. Unlike a Bloom filter it supports removal, so it can follow
+ * a UTXO set as outputs are created and spent.
+ * <p>
+ * Each UTXO is a 16-bit fingerprint stored in one of two buckets of 4 slots: the first bucket comes
+ * from its hash, the second from the first and the fingerprint, so a fingerprint can be moved
+ * between its buckets without knowing the UTXO. A UTXO must only be removed if it was added, or
+ * the fingerprint of another UTXO may go. Not thread-safe.
+ */
+public class OutpointFilter {
+
+    private static final int SLOTS = 4;
+    private static final int MAX_KICKS = 500;
+    /** the load factor cuckoo filters with 4 slots per bucket reach before insertions start failing */
+    private static final double MAX_LOAD = 0.95;
+
+    /** fingerprints, SLOTS per bucket, 0 for an empty slot */
+    private final short[] table;
+    private final int mask;
+    private int size;
+    /** state of the generator choosing the fingerprints to kick out */
+    private long random = 0x2545f4914f6cdd1dL;
+
+    /** a filter with room for at least {@code expectedItems} UTXOs */
+    public OutpointFilter(long expectedItems) {
+        long buckets = Long.highestOneBit(Math.max(1, (long) (expectedItems / (SLOTS * MAX_LOAD)) + 1));
+        if (buckets * SLOTS < expectedItems / MAX_LOAD)
+            buckets <<= 1;
+        if (buckets * SLOTS > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("too many items for a filter: " + expectedItems);
+        table = new short[(int) buckets * SLOTS];
+        mask = (int) buckets - 1;
+    }
+
+    /** @return false if {@code utxo} is certainly not in the set, true if it may be */
+    public boolean mightContain(UTXO utxo) {
+        long h = utxo.longHash();
+        short fp = fingerprint(h);
+        int b1 = (int) h & mask;
+        return holds(b1, fp) || holds(other(b1, fp), fp);
+    }
+
+    /**
+     * Adds {@code utxo}; a UTXO added twice must be removed twice.
+     *
+     * @return false if the filter is too full to take it, the filter then needs to be rebuilt larger
+     */
+    public boolean add(UTXO utxo) {
+        long h = utxo.longHash();
+        short fp = fingerprint(h);
+        int b = (int) h & mask;
+        if (put(b, fp) || put(other(b, fp), fp)) {
+            size++;
+            return true;
+        }
+        // kick a random fingerprint to its other bucket, and so on, until one finds a free slot
+        short[] kicked = new short[MAX_KICKS];
+        int[] slots = new int[MAX_KICKS];
+        for (int kick = 0; kick < MAX_KICKS; kick++) {
+            int slot = b * SLOTS + (int) (nextRandom() & (SLOTS - 1));
+            kicked[kick] = table[slot];
+            slots[kick] = slot;
+            table[slot] = fp;
+            fp = kicked[kick];
+            b = other(b, fp);
+            if (put(b, fp)) {
+                size++;
+                return true;
+            }
+        }
+        // undo the kicks so the filter still holds every fingerprint it held
+        for (int kick = MAX_KICKS - 1; kick >= 0; kick--)
+            table[slots[kick]] = kicked[kick];
+        return false;
+    }
+
+    /**
+     * Removes {@code utxo}, which must have been added.
+     *
+     * @return false if its fingerprint is not in the filter, i.e. it was not added
+     */
+    public boolean remove(UTXO utxo) {
+        long h = utxo.longHash();
+        short fp = fingerprint(h);
+        int b1 = (int) h & mask;
+        if (clear(b1, fp) || clear(other(b1, fp), fp)) {
+            size--;
+            return true;
+        }
+        return false;
+    }
+
+    /** @return the number of UTXOs in the filter */
+    public int size() {
+        return size;
+    }
+
+    /** @return the number of fingerprints the filter has room for */
+    public int capacity() {
+        return table.length;
+    }
+
+    /**
+     * @return the probability that {@link #mightContain} answers true for a UTXO not in the set at
+     *         the current load: each of the up to 8 fingerprints of its two buckets matches with
+     *         probability 1 / 65535
+     */
+    public double expectedFalsePositiveRate() {
+        double load = (double) size / table.length;
+        return 1 - Math.pow(1 - 1.0 / 65535, 2 * SLOTS * load);
+    }
+
+    /** @return 16 bits of {@code h} not used for the bucket, never 0 */
+    private static short fingerprint(long h) {
+        short fp = (short) (h >>> 48);
+        return fp == 0 ? 1 : fp;
+    }
+
+    /** @return the other bucket of fingerprint {@code fp} in bucket {@code b}, the mapping is its own inverse */
+    private int other(int b, short fp) {
+        return (b ^ (fp * 0x5bd1e995)) & mask;
+    }
+
+    private boolean holds(int b, short fp) {
+        int base = b * SLOTS;
+        return table[base] == fp || table[base + 1] == fp || table[base + 2] == fp || table[base + 3] == fp;
+    }
+
+    private boolean put(int b, short fp) {
+        for (int slot = b * SLOTS; slot < (b + 1) * SLOTS; slot++) {
+            if (table[slot] == 0) {
+                table[slot] = fp;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean clear(int b, short fp) {
+        for (int slot = b * SLOTS; slot < (b + 1) * SLOTS; slot++) {
+            if (table[slot] == fp) {
+                table[slot] = 0;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long nextRandom() {
+        random ^= random << 13;
+        random ^= random >>> 7;
+        random ^= random << 17;
+        return random;
+    }
+}
@@ -7,6 +7,9 @@ import java.security.PublicKey;
 
 public class Transaction {
 
+    /** base units per bitcoin; amounts are whole numbers of units so that sums are exact */
+    public static final long COIN = 100_000_000L;
+
     public class Input {
         /** hash of the Transaction whose output is being used */
         public byte[] prevTxHash;
@@ -32,12 +35,12 @@ public class Transaction {
     }
 
     public class Output {
-        /** value in bitcoins of the output */
-        public double value;
+        /** value of the output in base units, {@link #COIN} units make one bitcoin */
+        public long value;
         /** the address or public key of the recipient */
         public PublicKey address;
 
-        public Output(double v, PublicKey addr) {
+        public Output(long v, PublicKey addr) {
             value = v;
             address = addr;
         }
@@ -47,6 +50,8 @@ public class Transaction {
     private byte[] hash;
     private ArrayList<Input> inputs;
     private ArrayList<Output> outputs;
+    /** encoding of the outputs, see {@link #encodedOutputs} */
+    private EncodedOutputs encoded;
 
     public Transaction() {
         inputs = new ArrayList<Input>();
@@ -64,11 +69,32 @@ public class Transaction {
         inputs.add(in);
     }
 
+    /** adds an output of {@code value} bitcoins, rounded to the nearest base unit */
     public void addOutput(double value, PublicKey address) {
-        Output op = new Output(value, address);
+        addOutputUnits(toUnits(value), address);
+    }
+
+    /** adds an output of exactly {@code units} base units */
+    public void addOutputUnits(long units, PublicKey address) {
+        Output op = new Output(units, address);
         outputs.add(op);
     }
 
+    /**
+     * @return {@code coins} bitcoins in base units, rounded to the nearest unit
+     * @throws ArithmeticException if {@code coins} is NaN or does not fit in a long of units
+     */
+    public static long toUnits(double coins) {
+        if (!(Math.abs(coins) <= Long.MAX_VALUE / COIN))
+            throw new ArithmeticException("amount out of range: " + coins);
+        return Math.round(coins * COIN);
+    }
+
+    /** @return {@code units} base units in bitcoins, for display; not exact for large amounts */
+    public static double toCoins(long units) {
+        return (double) units / COIN;
+    }
+
     public void removeInput(int index) {
         inputs.remove(index);
     }
@@ -76,7 +102,7 @@ public class Transaction {
     public void removeInput(UTXO ut) {
         for (int i = 0; i < inputs.size(); i++) {
             Input in = inputs.get(i);
-            UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
+            UTXO u = UTXO.wrap(in.prevTxHash, in.outputIndex);
             if (u.equals(ut)) {
                 inputs.remove(i);
                 return;
@@ -89,37 +115,25 @@ public class Transaction {
     }
 
 
+    /**
+     * @return the data input {@code index} signs: the output it spends, then every output of this
+     *         tx. The outputs are encoded once and shared by all inputs, so their keys are not
+     *         converted again for each input; each call still copies the encoded outputs, and
+     *         every input still hashes them all when signed or verified.
+     */
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
         if (index > inputs.size())
             return null;
         Input in = inputs.get(index);
-        byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
-        if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-
-            for (int i = 0; i < addressBytes.length; i++)
-                sigData.add(addressBytes[i]);
-        }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
-        return sigD;
+        byte[] outputsData = encodedOutputs();
+        int hashLength = in.prevTxHash == null ? 0 : in.prevTxHash.length;
+        ByteBuffer sigData = ByteBuffer.allocate(hashLength + Integer.BYTES + outputsData.length);
+        if (in.prevTxHash != null)
+            sigData.put(in.prevTxHash);
+        sigData.putInt(in.outputIndex);
+        sigData.put(outputsData);
+        return sigData.array();
     }
 
     public void addSignature(byte[] signature, int index) {
@@ -127,40 +141,78 @@ public class Transaction {
     }
 
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
+        byte[] outputsData = encodedOutputs();
+        int length = outputsData.length;
         for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
+            length += Integer.BYTES;
+            if (in.prevTxHash != null)
+                length += in.prevTxHash.length;
+            if (in.signature != null)
+                length += in.signature.length;
         }
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++) {
-                rawTx.add(value[i]);
-            }
-            for (int i = 0; i < addressBytes.length; i++) {
-                rawTx.add(addressBytes[i]);
+        ByteBuffer rawTx = ByteBuffer.allocate(length);
+        for (Input in : inputs) {
+            if (in.prevTxHash != null)
+                rawTx.put(in.prevTxHash);
+            rawTx.putInt(in.outputIndex);
+            if (in.signature != null)
+                rawTx.put(in.signature);
+        }
+        rawTx.put(outputsData);
+        return rawTx.array();
+    }
+
+    /** @return the value and address of every output, as they appear in the raw tx and the signed data */
+    private byte[] encodedOutputs() {
+        EncodedOutputs encoded = this.encoded;
+        if (encoded == null || !encoded.matches(outputs)) {
+            encoded = new EncodedOutputs(outputs);
+            this.encoded = encoded;
+        }
+        return encoded.bytes;
+    }
+
+    /**
+     * The outputs of a tx encoded once, with the outputs, values and addresses they were encoded
+     * from: outputs are public and mutable, so the encoding is only reused while they are the same
+     * objects holding the same values and keys. Checking that costs a few comparisons per output,
+     * encoding a key copies or converts it. Immutable, so threads can share it.
+     */
+    private static class EncodedOutputs {
+        final byte[] bytes;
+        final Output[] outputs;
+        final long[] values;
+        final PublicKey[] addresses;
+
+        EncodedOutputs(ArrayList<Output> outputs) {
+            int n = outputs.size();
+            this.outputs = outputs.toArray(new Output[n]);
+            values = new long[n];
+            addresses = new PublicKey[n];
+            byte[][] addressBytes = new byte[n][];
+            int length = 0;
+            for (int i = 0; i < n; i++) {
+                values[i] = this.outputs[i].value;
+                addresses[i] = this.outputs[i].address;
+                addressBytes[i] = SignatureScheme.encode(addresses[i]);
+                length += Long.BYTES + addressBytes[i].length;
             }
+            ByteBuffer b = ByteBuffer.allocate(length);
+            for (int i = 0; i < n; i++)
+                b.putLong(values[i]).put(addressBytes[i]);
+            bytes = b.array();
+        }
 
+        boolean matches(ArrayList<Output> current) {
+            if (current.size() != outputs.length)
+                return false;
+            for (int i = 0; i < outputs.length; i++) {
+                Output op = current.get(i);
+                if (op != outputs[i] || op.value != values[i] || op.address != addresses[i])
+                    return false;
+            }
+            return true;
         }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
     }
 
     public void finalize() {
@@ -1,6 +1,7 @@
 import java.awt.*;
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.TimerTask;
 
 public class TxHandler {
@@ -14,7 +15,6 @@ public class TxHandler {
     public TxHandler(UTXOPool utxoPool) {
         // IMPLEMENT THIS
         this.uPool = new UTXOPool(utxoPool);
-        System.out.println("Create UTXOPool & TxHandler successfully!!");
     }
 
     /**
@@ -28,11 +28,21 @@ public class TxHandler {
      */
     public boolean isValidTx(Transaction tx) {
         // IMPLEMENT THIS
+        return validateTx(tx).isAccepted();
+    }
+
+    /**
+     * Same checks as {@link #isValidTx}, but tells which one failed.
+     * @return {@code Verdict.ACCEPTED} if {@code tx} is valid, otherwise the reason (1)-(5) it is
+     *         not and the index of the offending input or output
+     */
+    public Verdict validateTx(Transaction tx) {
         // (5) store the value of inputs & outputs of the tx
-        double valueSumOutputs = 0.0;
-        double valueSumInputs = 0.0;
+        // in base units, so that the sums are exact
+        long valueSumOutputs = 0;
+        long valueSumInputs = 0;
         // (3) store the utxo in each iteration
-        ArrayList<UTXO> UTXOs = new ArrayList<>();
+        HashSet<UTXO> UTXOs = new HashSet<>();
 
         for (int i = 0; i < tx.numInputs(); i++){
             // (1)
@@ -40,11 +50,10 @@ public class TxHandler {
             // using the prevTxHash and outputIndex of the input
             // and verify whether prevUTXO is in the uPool
             Transaction.Input in = tx.getInput(i);
-            UTXO prevUTXO = new UTXO(in.prevTxHash, in.outputIndex);
+            UTXO prevUTXO = UTXO.wrap(in.prevTxHash, in.outputIndex);
             Transaction.Output prevTxOutput = uPool.getTxOutput(prevUTXO);
             if (prevTxOutput == null){
-                System.out.printf("Error(1): output claimed by input %d is not in the UTXOPool\n\n",i);
-                return false;
+                return Verdict.reject(Verdict.Reason.MISSING_INPUT, i);
             }
             // (2)
             // get the message, public key and sign
@@ -53,19 +62,20 @@ public class TxHandler {
             PublicKey pubKey = prevTxOutput.address;
             byte[] sig = in.signature;
             if (Crypto.verifySignature(pubKey, message, sig) == false){
-                System.out.printf("Error(2): the signature of input %d is not valid\n\n",i);
-                return false;
+                return Verdict.reject(Verdict.Reason.BAD_SIGNATURE, i);
             }
             // (3)
             // record each prevUTXO in UTXOs
             // check whether prevUTXO already exist in UTXOs
-            if (UTXOs.contains(prevUTXO)){
-                System.out.printf("Error(3): UXTO is claimed twice, inputIndex = %d\n\n",i);
-                return false;
+            if (!UTXOs.add(prevUTXO)){
+                return Verdict.reject(Verdict.Reason.DOUBLE_SPEND, i);
             }
-            UTXOs.add(prevUTXO);
             // (5)
-            valueSumInputs += prevTxOutput.value;
+            try {
+                valueSumInputs = Math.addExact(valueSumInputs, prevTxOutput.value);
+            } catch (ArithmeticException e) {
+                return Verdict.reject(Verdict.Reason.VALUE_OVERFLOW, i);
+            }
         }
 
         for (int i = 0; i < tx.numOutputs(); i++){
@@ -73,24 +83,21 @@ public class TxHandler {
             // (4)
             // check the value of outputs is positive or not
             if (op.value < 0){
-                System.out.printf("Error(4): value of output %d is %.3f and it's negative\n",i,op.value);
-                return false;
+                return Verdict.reject(Verdict.Reason.INVALID_OUTPUT_VALUE, i);
             }
             // (5)
-            valueSumOutputs += op.value;
+            try {
+                valueSumOutputs = Math.addExact(valueSumOutputs, op.value);
+            } catch (ArithmeticException e) {
+                return Verdict.reject(Verdict.Reason.VALUE_OVERFLOW, i);
+            }
         }
 
         // (5)
         if (valueSumInputs < valueSumOutputs){
-            System.out.printf(
-                    "Error(5): the sum of tx\'s input value is %.3f\nthe sum of tx\'s output value is %.3f\n" +
-                            "valueSumInputs < valueSumOutputs\n\n",
-                    valueSumInputs,
-                    valueSumOutputs
-            );
-            return false;
+            return Verdict.reject(Verdict.Reason.INSUFFICIENT_INPUT, -1);
         }
-        return true;
+        return Verdict.ACCEPTED;
     }
 
     /**
@@ -102,13 +109,14 @@ public class TxHandler {
         // remove the outputs claimed by the tx
         for (int i = 0; i < tx.numInputs(); i++){
             Transaction.Input in = tx.getInput(i);
-            UTXO prevUTXO = new UTXO(in.prevTxHash, in.outputIndex);
+            UTXO prevUTXO = UTXO.wrap(in.prevTxHash, in.outputIndex);
             this.uPool.removeUTXO(prevUTXO);
         }
+        // the pool keeps the keys: copy the hash once for all the outputs
+        byte[] txHash = tx.getHash().clone();
         for (int i = 0; i < tx.numOutputs(); i++){
             Transaction.Output op = tx.getOutput(i);
-            byte[] txHash = tx.getHash();
-            UTXO toAddUTXO = new UTXO(txHash,i);
+            UTXO toAddUTXO = UTXO.wrap(txHash,i);
             this.uPool.addUTXO(toAddUTXO,op);
         }
     }
@@ -118,6 +126,15 @@ public class TxHandler {
      * updating the current UTXO pool as appropriate.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
+        return handleTxs(possibleTxs, null);
+    }
+
+    /**
+     * Same as {@link #handleTxs(Transaction[])}; if {@code verdicts} is not null, it must be as long
+     * as {@code possibleTxs} and receives the verdict of each transaction, as of the last pass that
+     * checked it.
+     */
+    public Transaction[] handleTxs(Transaction[] possibleTxs, Verdict[] verdicts) {
         // IMPLEMENT THIS
         // record the indexes of valid txs
         ArrayList<Integer> indexValid = new ArrayList<>();
@@ -137,7 +154,11 @@ public class TxHandler {
                 Transaction tx = possibleTxs[i];
                 // if tx is valid, we add its index into the indexValid
                 // and updateUTXOPool using the tx's information
-                if (isValidTx(tx)) {
+                Verdict verdict = validateTx(tx);
+                if (verdicts != null) {
+                    verdicts[i] = verdict;
+                }
+                if (verdict.isAccepted()) {
                     indexValid.add(i);
                     updateUTXOPool(tx);
                 }
@@ -3,13 +3,16 @@ import java.util.Arrays;
 public class UTXO implements Comparable<UTXO> {
 
     /** Hash of the transaction from which this UTXO originates */
-    private byte[] txHash;
+    private final byte[] txHash;
 
     /** Index of the corresponding output in said transaction
      * 一个transaction会有 a list of inputs and outputs
      * 这里给出output所在的位置的index
      */
-    private int index;
+    private final int index;
+
+    /** hashCode computed once at construction, UTXOs are used as map keys on every lookup */
+    private final int hash;
 
     /**
      * Creates a new UTXO corresponding to the output with index <index> in the transaction whose
@@ -22,12 +25,57 @@ public class UTXO implements Comparable<UTXO> {
      * @param index
      */
     public UTXO(byte[] txHash, int index) {
-        this.txHash = Arrays.copyOf(txHash, txHash.length);
+        this(txHash, index, true);
+    }
+
+    private UTXO(byte[] txHash, int index, boolean copy) {
+        this.txHash = copy ? Arrays.copyOf(txHash, txHash.length) : txHash;
         this.index = index;
+        this.hash = 31 * digestHashCode(txHash) + index;
+    }
+
+    /**
+     * Creates a UTXO that shares {@code txHash} instead of copying it. Only for arrays that are
+     * never modified afterwards, e.g. a finalized transaction hash or a short-lived lookup key.
+     */
+    static UTXO wrap(byte[] txHash, int index) {
+        return new UTXO(txHash, index, false);
+    }
+
+    /**
+     * The hashes we key on are SHA-256 digests, so their first 8 bytes are already uniformly
+     * distributed and can be folded into the hash code directly instead of hashing all 32 bytes.
+     */
+    static int digestHashCode(byte[] digest) {
+        if (digest.length < 8)
+            return Arrays.hashCode(digest);
+        long prefix = 0;
+        for (int i = 0; i < 8; i++)
+            prefix = (prefix << 8) | (digest[i] & 0xff);
+        return (int) (prefix ^ (prefix >>> 32));
+    }
+
+    /**
+     * 64 bits of hash for the structures that need more than {@link #hashCode}, e.g. an
+     * {@link OutpointFilter}: the first 8 bytes of the digest mixed with the index.
+     */
+    long longHash() {
+        long h = txHash.length < 8 ? Arrays.hashCode(txHash) : 0;
+        for (int i = 0; i < 8 && i < txHash.length; i++)
+            h = (h << 8) | (txHash[i] & 0xff);
+        h ^= index * 0x9e3779b97f4a7c15L;
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
     }
 
-    /** @return the transaction hash of this UTXO */
+    /** @return a copy of the transaction hash of this UTXO */
     public byte[] getTxHash() {
+        return txHash.clone();
+    }
+
+    /** @return the transaction hash itself, not a copy, for callers that only read it */
+    byte[] txHashBytes() {
         return txHash;
     }
 
@@ -49,27 +97,16 @@ public class UTXO implements Comparable<UTXO> {
         }
         // 把other类型转换（casting）成UTXO的类型，并将新变量命名为utxo
         UTXO utxo = (UTXO) other;
-        // 把other里面的 txHash 和 index赋值给 hash 与 in
-        byte[] hash = utxo.txHash;
-        int in = utxo.index;
-        // 这里txHash.length相当于 this.txHash.length
-        if (hash.length != txHash.length || index != in)
+        if (hash != utxo.hash || index != utxo.index)
             return false;
-        for (int i = 0; i < hash.length; i++) {
-            if (hash[i] != txHash[i])
-                return false;
-        }
-        return true;
+        return Arrays.equals(txHash, utxo.txHash);
     }
 
     /**
-     * Simple implementation of a UTXO hashCode that respects equality of UTXOs // (i.e.
+     * Cached hash code that respects equality of UTXOs (i.e.
      * utxo1.equals(utxo2) => utxo1.hashCode() == utxo2.hashCode())
      */
     public int hashCode() {
-        int hash = 1;
-        hash = hash * 17 + index;
-        hash = hash * 31 + Arrays.hashCode(txHash);
         return hash;
     }
 
@@ -0,0 +1,342 @@
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Write-back cache of UTXOs in front of a {@link UTXOStore}, holding as many entries as fit in a
+ * memory budget. Entries are evicted least recently used first.
+ * <p>
+ * Changes stay in the cache as dirty entries: a spent UTXO becomes a dirty entry without output
+ * until the next flush deletes it from the store. An entry is fresh if the store does not hold its
+ * UTXO; a fresh UTXO that is spent before a flush is simply forgotten, so it never touches the
+ * store. When the cache is over budget with more than half of its entries dirty, every dirty entry
+ * is written to the store in one batch, otherwise clean entries are evicted.
+ * <p>
+ * An {@link OutpointFilter} over every UTXO, cached or stored, answers most lookups of UTXOs that do
+ * not exist, e.g. the outputs a new tx creates or the inputs of an invalid one, without reading the
+ * store. It is filled from the store when the cache is created and rebuilt twice as large, from the
+ * store after a flush, when it is full.
+ * <p>
+ * The dirty entries are also kept apart, by UTXO. A clean entry holds what the store holds, so
+ * {@link #peek} and {@link #stream} read the dirty entries and the store without touching the
+ * cache: they do not flush, reorder the entries or count as lookups. {@link #getModCount} tells
+ * their callers when the UTXOs or the store have changed since.
+ * <p>
+ * Not thread-safe.
+ */
+public class UTXOCache {
+
+    /**
+     * estimated bytes of one entry: the UTXO and its hash, the entry and the map node; outputs are
+     * shared with their txs or the store
+     */
+    static final int ENTRY_BYTES = 200;
+
+    private final UTXOStore store;
+    private final int maxEntries;
+    private final LinkedHashMap<UTXO, Entry> entries = new LinkedHashMap<UTXO, Entry>(16, 0.75f, true);
+    /** the dirty entries of {@code entries}, in no order */
+    private final HashMap<UTXO, Entry> dirty = new HashMap<UTXO, Entry>();
+    private long size;
+    /** changes of the UTXOs and flushes so far */
+    private long modCount;
+    private OutpointFilter filter;
+
+    private long hits;
+    private long misses;
+    private long filterNegatives;
+    private long falsePositives;
+    private long flushes;
+    private long flushedEntries;
+    private long flushNanos;
+    private long lastFlushNanos;
+
+    private static class Entry {
+        /** null once spent */
+        Transaction.Output output;
+        boolean dirty;
+        boolean fresh;
+
+        Entry(Transaction.Output output) {
+            this.output = output;
+        }
+    }
+
+    /** caches {@code store} in about {@code memoryBudget} bytes */
+    public UTXOCache(UTXOStore store, long memoryBudget) {
+        this.store = store;
+        maxEntries = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / ENTRY_BYTES));
+        size = store.size();
+        rebuildFilter();
+    }
+
+    /** @return the output of {@code utxo}, or null if it does not exist */
+    public Transaction.Output get(UTXO utxo) {
+        Entry entry = entries.get(utxo);
+        if (entry != null) {
+            hits++;
+            return entry.output;
+        }
+        Transaction.Output output = load(utxo);
+        if (output != null) {
+            entries.put(utxo, new Entry(output));
+            evict();
+        }
+        return output;
+    }
+
+    public boolean contains(UTXO utxo) {
+        return get(utxo) != null;
+    }
+
+    /** Adds {@code utxo} with {@code output}, replacing the output it may have */
+    public void put(UTXO utxo, Transaction.Output output) {
+        Entry entry = entries.get(utxo);
+        boolean created;
+        if (entry == null) {
+            created = load(utxo) == null;
+            entry = new Entry(null);
+            entry.fresh = created;
+            entries.put(utxo, entry);
+        } else {
+            hits++;
+            created = entry.output == null;
+        }
+        entry.output = output;
+        markDirty(utxo, entry);
+        modCount++;
+        if (created)
+            added(utxo);
+        evict();
+    }
+
+    /** Spends {@code utxo}, if it exists */
+    public void remove(UTXO utxo) {
+        Entry entry = entries.get(utxo);
+        if (entry == null) {
+            if (load(utxo) == null)
+                return;
+            entry = new Entry(null);
+            entries.put(utxo, entry);
+        } else {
+            hits++;
+            if (entry.output == null)
+                return;
+        }
+        size--;
+        modCount++;
+        filter.remove(utxo);
+        if (entry.fresh) {
+            // created and spent while cached: the store never hears of it
+            entries.remove(utxo);
+            dirty.remove(utxo);
+            return;
+        }
+        entry.output = null;
+        markDirty(utxo, entry);
+        evict();
+    }
+
+    /** @return the number of UTXOs, in the cache and the store together */
+    public long size() {
+        return size;
+    }
+
+    /** Flushes the cache and calls {@code action} on every UTXO and its output, in no particular order */
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        flush();
+        store.forEach(action);
+    }
+
+    /**
+     * @return the output of {@code utxo}, or null if it does not exist, without caching it, counting
+     *         the lookup or changing the eviction order
+     */
+    public Transaction.Output peek(UTXO utxo) {
+        Entry entry = dirty.get(utxo);
+        if (entry != null)
+            return entry.output;
+        return filter.mightContain(utxo) ? store.get(utxo) : null;
+    }
+
+    /**
+     * @return every UTXO and its output: those of the store the cache has not changed, read as the
+     *         stream is consumed, then those the cache has changed. Does not flush or change the
+     *         cache, which must not be changed until the stream is consumed, see
+     *         {@link #getModCount}.
+     */
+    public Stream<Map.Entry<UTXO, Transaction.Output>> stream() {
+        Stream<Map.Entry<UTXO, Transaction.Output>> stored = store.stream().filter(e -> !dirty.containsKey(e.getKey()));
+        Stream<Map.Entry<UTXO, Transaction.Output>> changed = dirty.entrySet().stream()
+                .filter(e -> e.getValue().output != null)
+                .map(e -> new AbstractMap.SimpleImmutableEntry<UTXO, Transaction.Output>(e.getKey(), e.getValue().output));
+        return Stream.concat(stored, changed);
+    }
+
+    /**
+     * @return a count that changes whenever a UTXO is added or spent or the cache is flushed, so
+     *         that a reader of {@link #peek} or {@link #stream} can tell its view is stale
+     */
+    public long getModCount() {
+        return modCount;
+    }
+
+    /** Writes every dirty entry to the store in one batch */
+    public void flush() {
+        if (dirty.isEmpty())
+            return;
+        long start = System.nanoTime();
+        modCount++;
+        HashMap<UTXO, Transaction.Output> puts = new HashMap<UTXO, Transaction.Output>();
+        ArrayList<UTXO> deletes = new ArrayList<UTXO>();
+        for (Map.Entry<UTXO, Entry> e : dirty.entrySet()) {
+            if (e.getValue().output != null)
+                puts.put(e.getKey(), e.getValue().output);
+            else
+                deletes.add(e.getKey());
+        }
+        store.write(puts, deletes);
+        for (Map.Entry<UTXO, Entry> e : dirty.entrySet()) {
+            Entry entry = e.getValue();
+            if (entry.output == null) {
+                entries.remove(e.getKey());
+            } else {
+                entry.dirty = false;
+                entry.fresh = false;
+            }
+        }
+        flushes++;
+        flushedEntries += dirty.size();
+        dirty.clear();
+        lastFlushNanos = System.nanoTime() - start;
+        flushNanos += lastFlushNanos;
+    }
+
+    /** @return the output of {@code utxo} in the store, unless the filter rules it out */
+    private Transaction.Output load(UTXO utxo) {
+        if (!filter.mightContain(utxo)) {
+            filterNegatives++;
+            return null;
+        }
+        misses++;
+        Transaction.Output output = store.get(utxo);
+        if (output == null)
+            falsePositives++;
+        return output;
+    }
+
+    private void added(UTXO utxo) {
+        size++;
+        if (!filter.add(utxo)) {
+            // the filter only covers what is in the store once the cache is flushed
+            flush();
+            rebuildFilter();
+        }
+    }
+
+    /** fills a filter with room for twice the UTXOs of the store, which must hold them all */
+    private void rebuildFilter() {
+        for (long expected = Math.max(1024, 2 * size); ; expected *= 2) {
+            OutpointFilter rebuilt = new OutpointFilter(expected);
+            boolean[] full = new boolean[1];
+            store.forEach((utxo, output) -> full[0] |= !rebuilt.add(utxo));
+            if (!full[0]) {
+                filter = rebuilt;
+                return;
+            }
+        }
+    }
+
+    private void markDirty(UTXO utxo, Entry entry) {
+        if (!entry.dirty) {
+            entry.dirty = true;
+            dirty.put(utxo, entry);
+        }
+    }
+
+    private void evict() {
+        if (entries.size() <= maxEntries)
+            return;
+        if (dirty.size() > maxEntries / 2)
+            flush();
+        Iterator<Entry> it = entries.values().iterator();
+        while (entries.size() > maxEntries && it.hasNext()) {
+            if (!it.next().dirty)
+                it.remove();
+        }
+    }
+
+    /** @return the number of entries held in memory */
+    public int getNumCached() {
+        return entries.size();
+    }
+
+    public int getNumDirty() {
+        return dirty.size();
+    }
+
+    /**
+     * @return the share of lookups answered without reading the store, by the cache or the filter,
+     *         0 before any lookup
+     */
+    public double getHitRate() {
+        long lookups = hits + filterNegatives + misses;
+        return lookups == 0 ? 0 : (double) (hits + filterNegatives) / lookups;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /** @return the number of lookups of missing UTXOs the filter answered without reading the store */
+    public long getFilterNegatives() {
+        return filterNegatives;
+    }
+
+    /** @return the number of store reads for a missing UTXO the filter had let through */
+    public long getFalsePositives() {
+        return falsePositives;
+    }
+
+    /**
+     * @return the measured false positive rate of the filter: the share of lookups of missing UTXOs
+     *         that still read the store, 0 before any such lookup
+     */
+    public double getFalsePositiveRate() {
+        long negatives = filterNegatives + falsePositives;
+        return negatives == 0 ? 0 : (double) falsePositives / negatives;
+    }
+
+    /** @return the false positive rate the filter should have at its current load */
+    public double getExpectedFalsePositiveRate() {
+        return filter.expectedFalsePositiveRate();
+    }
+
+    public long getFlushes() {
+        return flushes;
+    }
+
+    /** @return the number of entries written or deleted by all flushes */
+    public long getFlushedEntries() {
+        return flushedEntries;
+    }
+
+    /** @return the time all flushes took, in nanoseconds */
+    public long getFlushNanos() {
+        return flushNanos;
+    }
+
+    /** @return the time the last flush took, in nanoseconds */
+    public long getLastFlushNanos() {
+        return lastFlushNanos;
+    }
+}
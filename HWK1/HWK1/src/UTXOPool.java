@@ -1,6 +1,6 @@
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class UTXOPool {
 
@@ -14,6 +14,23 @@ public class UTXOPool {
      */
     private HashMap<UTXO, Transaction.Output> H;
 
+    /**
+     * The number of pools and snapshots holding {@code H}, one counter shared by all of them. A pool
+     * modified while it is above 1 copies {@code H} first and leaves the count (copy-on-write), so
+     * only the side that writes copies: once a copy has left, the pool it was copied from is
+     * modified in place again. Snapshots never leave.
+     */
+    private AtomicInteger holders = new AtomicInteger(1);
+
+    /**
+     * the UTXOs, for a pool over a store; null for a pool held in {@code H}. A copy of a pool over a
+     * store keeps its own changes in {@code H}, a spent UTXO mapped to null, on top of the cache.
+     */
+    private UTXOCache cache;
+
+    /** for a copy of a pool over a store, the number of UTXOs its changes add to those of the cache */
+    private long sizeDelta;
+
     /** Creates a new empty UTXOPool
      * 如果什么都不输，就create一个空的pool
      * 也可以输入一个UTXOPool，就会以这个的copy作为初始的Pool
@@ -24,18 +41,77 @@ public class UTXOPool {
         H = new HashMap<UTXO, Transaction.Output>();
     }
 
-    /** Creates a new UTXOPool that is a copy of {@code uPool} */
+    /**
+     * Creates a new UTXOPool that is a copy of {@code uPool}. The copy is lazy: both pools share their
+     * contents until one of them is modified, which then copies every UTXO once.
+     * <p>
+     * A copy of a pool over a store keeps its changes in memory, on top of the cache it reads
+     * through, and never writes to the cache or the store. It is meant to be short-lived, e.g. the
+     * pool of a {@code TxHandler}: it sees the changes the pool owning the cache makes later to the
+     * UTXOs it did not change itself.
+     */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        cache = uPool.cache;
+        if (cache != null && uPool.H == null) {
+            H = new HashMap<UTXO, Transaction.Output>();
+            return;
+        }
+        H = uPool.H;
+        holders = uPool.holders;
+        holders.incrementAndGet();
+        sizeDelta = uPool.sizeDelta;
+    }
+
+    /**
+     * Creates a pool whose UTXOs are those of {@code cache} and its store, for a UTXO set larger
+     * than memory. Its changes go to {@code cache}; those of its copies do not, see
+     * {@link #UTXOPool(UTXOPool)}.
+     */
+    public UTXOPool(UTXOCache cache) {
+        this.cache = cache;
+    }
+
+    /** @return true for a pool changing {@code cache} itself, false for one held in {@code H} or a copy of it */
+    private boolean ownsCache() {
+        return cache != null && H == null;
+    }
+
+    private void ensureWritable() {
+        if (holders.get() == 1)
+            return;
+        H = new HashMap<UTXO, Transaction.Output>(H);
+        holders.decrementAndGet();
+        holders = new AtomicInteger(1);
     }
 
     /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
     public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        if (ownsCache()) {
+            cache.put(utxo, txOut);
+            return;
+        }
+        if (cache != null && !contains(utxo))
+            sizeDelta++;
+        ensureWritable();
         H.put(utxo, txOut);
     }
 
     /** Removes the UTXO {@code utxo} from the pool */
     public void removeUTXO(UTXO utxo) {
+        if (ownsCache()) {
+            cache.remove(utxo);
+            return;
+        }
+        if (cache != null) {
+            if (!contains(utxo))
+                return;
+            ensureWritable();
+            // hides the UTXO of the cache
+            H.put(utxo, null);
+            sizeDelta--;
+            return;
+        }
+        ensureWritable();
         H.remove(utxo);
     }
 
@@ -44,21 +120,57 @@ public class UTXOPool {
      *         not in the pool.
      */
     public Transaction.Output getTxOutput(UTXO ut) {
-        return H.get(ut);
+        if (ownsCache())
+            return cache.get(ut);
+        Transaction.Output output = H.get(ut);
+        if (cache == null || output != null || H.containsKey(ut))
+            return output;
+        return cache.get(ut);
     }
 
     /** @return true if UTXO {@code utxo} is in the pool and false otherwise */
     public boolean contains(UTXO utxo) {
+        if (cache != null)
+            return getTxOutput(utxo) != null;
         return H.containsKey(utxo);
     }
 
-    /** Returns an {@code ArrayList} of all UTXOs in the pool */
+    /** @return the number of UTXOs in the pool */
+    public int size() {
+        if (cache != null)
+            return (int) (cache.size() + sizeDelta);
+        return H.size();
+    }
+
+    /**
+     * Returns an {@code ArrayList} of all UTXOs in the pool. This copies every UTXO, use
+     * {@link #snapshot()} to iterate or stream over a large pool.
+     */
     public ArrayList<UTXO> getAllUTXO() {
-        Set<UTXO> setUTXO = H.keySet();
-        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
-        for (UTXO ut : setUTXO) {
-            allUTXO.add(ut);
+        if (cache != null) {
+            ArrayList<UTXO> utxos = new ArrayList<UTXO>();
+            snapshot().forEach(utxos::add);
+            return utxos;
+        }
+        return new ArrayList<UTXO>(H.keySet());
+    }
+
+    /**
+     * @return a read-only view of the current contents of the pool that is not affected by later
+     *         changes to the pool. Taking it copies nothing, but the view keeps the map it shares,
+     *         so the next change to the pool copies every UTXO, even if the view is dropped by
+     *         then: a pool changed between snapshots pays one full copy per snapshot. For a pool
+     *         over a store, the view reads the cache and the store in place and only holds until
+     *         the cache is next changed or flushed, after which using it throws
+     *         {@code ConcurrentModificationException}, see {@link UTXOSnapshot}.
+     */
+    public UTXOSnapshot snapshot() {
+        if (cache != null) {
+            if (H != null)
+                holders.incrementAndGet();
+            return new UTXOSnapshot(H, cache, size());
         }
-        return allUTXO;
+        holders.incrementAndGet();
+        return new UTXOSnapshot(H);
     }
 }
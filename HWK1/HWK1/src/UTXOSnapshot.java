@@ -0,0 +1,156 @@
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Read-only view of a {@code UTXOPool} as it was when {@code UTXOPool.snapshot()} was called. The
+ * snapshot shares the pool's map instead of copying it; the pool copies the map itself the next time
+ * it is modified, so later changes to the pool are never visible here.
+ *
+ * <p>
+ * Iteration goes straight over the shared map. Its spliterators split like the ones of a
+ * {@code HashMap}, so {@code parallelStream()} aggregations (total supply, value histograms, ...)
+ * spread over all cores without collecting the UTXOs first.
+ *
+ * <p>
+ * A snapshot of a pool over a store cannot freeze the store without copying it, so it reads the
+ * cache and the store in place, streaming the store as it is iterated, without flushing the cache
+ * or changing its eviction order or counters. It only holds until the cache is next changed or
+ * flushed: from then on its lookups, size, iterators and streams throw
+ * {@code ConcurrentModificationException} instead of showing the changes. The changes of a copy of
+ * such a pool are frozen like a map.
+ */
+public class UTXOSnapshot implements Iterable<UTXO> {
+
+    /** the UTXOs, or for a pool over a store the changes of its copy, a spent UTXO mapped to null */
+    private final Map<UTXO, Transaction.Output> H;
+    /** the UTXOs of a pool over a store, null for a pool held in {@code H} */
+    private final UTXOCache cache;
+    /** the mod count of {@code cache} when the snapshot was taken */
+    private final long modCount;
+    private final int size;
+
+    UTXOSnapshot(Map<UTXO, Transaction.Output> H) {
+        this.H = Collections.unmodifiableMap(H);
+        cache = null;
+        modCount = 0;
+        size = H.size();
+    }
+
+    /** a snapshot of the UTXOs of {@code cache} with the changes {@code H}, null if none, on top */
+    UTXOSnapshot(Map<UTXO, Transaction.Output> H, UTXOCache cache, int size) {
+        this.H = H == null ? Collections.<UTXO, Transaction.Output>emptyMap() : Collections.unmodifiableMap(H);
+        this.cache = cache;
+        modCount = cache.getModCount();
+        this.size = size;
+    }
+
+    /** @return {@code t}, once checked that the cache read through has not changed since the snapshot */
+    private <T> T checked(T t) {
+        if (cache != null && cache.getModCount() != modCount)
+            throw new ConcurrentModificationException("the UTXO cache changed after the snapshot was taken");
+        return t;
+    }
+
+    /** @return the number of UTXOs in the snapshot */
+    public int size() {
+        return checked(size);
+    }
+
+    /** @return true if UTXO {@code utxo} is in the snapshot and false otherwise */
+    public boolean contains(UTXO utxo) {
+        return getTxOutput(utxo) != null;
+    }
+
+    /**
+     * @return the transaction output corresponding to UTXO {@code utxo}, or null if {@code utxo} is
+     *         not in the snapshot
+     */
+    public Transaction.Output getTxOutput(UTXO utxo) {
+        Transaction.Output output = H.get(utxo);
+        if (cache == null || output != null || H.containsKey(utxo))
+            return output;
+        return checked(cache.peek(utxo));
+    }
+
+    public Iterator<UTXO> iterator() {
+        if (cache != null)
+            return stream().iterator();
+        return H.keySet().iterator();
+    }
+
+    public Spliterator<UTXO> spliterator() {
+        if (cache != null)
+            return entryStream(false).map(Map.Entry::getKey).spliterator();
+        return new ImmutableSpliterator<UTXO>(H.keySet().spliterator());
+    }
+
+    /** @return a sequential stream of the UTXOs in the snapshot */
+    public Stream<UTXO> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /** @return a parallel stream of the UTXOs in the snapshot */
+    public Stream<UTXO> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    /** @return a stream of the (UTXO, output) pairs in the snapshot, parallel if {@code parallel} */
+    public Stream<Map.Entry<UTXO, Transaction.Output>> entryStream(boolean parallel) {
+        if (cache != null) {
+            // the store is read in one pass, the stream only runs in parallel downstream of it
+            checked(cache);
+            Stream<Map.Entry<UTXO, Transaction.Output>> stored = cache.stream().map(this::checked).filter(e -> !H.containsKey(e.getKey()));
+            Stream<Map.Entry<UTXO, Transaction.Output>> changed = H.entrySet().stream().filter(e -> e.getValue() != null);
+            Stream<Map.Entry<UTXO, Transaction.Output>> entries = Stream.concat(stored, changed);
+            return parallel ? entries.parallel() : entries;
+        }
+        return StreamSupport.stream(new ImmutableSpliterator<Map.Entry<UTXO, Transaction.Output>>(
+                H.entrySet().spliterator()), parallel);
+    }
+
+    /**
+     * @return the UTXOs {@code u} with {@code from <= u < to} in {@code UTXO.compareTo} order. Only the
+     *         UTXOs inside the range are buffered for sorting.
+     */
+    public Stream<UTXO> range(UTXO from, UTXO to) {
+        return stream().filter(u -> u.compareTo(from) >= 0 && u.compareTo(to) < 0).sorted();
+    }
+
+    /** Marks the underlying spliterators as splitting over data that will never change */
+    private static class ImmutableSpliterator<T> implements Spliterator<T> {
+        private final Spliterator<T> s;
+
+        private ImmutableSpliterator(Spliterator<T> s) {
+            this.s = s;
+        }
+
+        public boolean tryAdvance(Consumer<? super T> action) {
+            return s.tryAdvance(action);
+        }
+
+        public void forEachRemaining(Consumer<? super T> action) {
+            s.forEachRemaining(action);
+        }
+
+        public Spliterator<T> trySplit() {
+            Spliterator<T> split = s.trySplit();
+            if (split == null)
+                return null;
+            return new ImmutableSpliterator<T>(split);
+        }
+
+        public long estimateSize() {
+            return s.estimateSize();
+        }
+
+        public int characteristics() {
+            return s.characteristics() | IMMUTABLE | NONNULL;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Backing store of a {@link UTXOCache}, e.g. a {@link DiskUTXOTable}. Writes come in batches, so a
+ * store can group them by page or file.
+ */
+public interface UTXOStore {
+
+    /** @return the output of {@code utxo}, or null if the store does not hold it */
+    Transaction.Output get(UTXO utxo);
+
+    /** Stores every entry of {@code puts}, replacing any previous output, and drops {@code deletes} */
+    void write(Map<UTXO, Transaction.Output> puts, Collection<UTXO> deletes);
+
+    /** @return the number of UTXOs held */
+    long size();
+
+    /** Calls {@code action} on every UTXO held and its output, in no particular order */
+    void forEach(BiConsumer<UTXO, Transaction.Output> action);
+
+    /**
+     * @return every UTXO held and its output, in no particular order; the store must not be written
+     *         until the stream is consumed. This default collects them first, a store that can read
+     *         them piecemeal streams them instead.
+     */
+    default Stream<Map.Entry<UTXO, Transaction.Output>> stream() {
+        ArrayList<Map.Entry<UTXO, Transaction.Output>> entries = new ArrayList<Map.Entry<UTXO, Transaction.Output>>();
+        forEach((utxo, output) -> entries.add(new AbstractMap.SimpleImmutableEntry<UTXO, Transaction.Output>(utxo, output)));
+        return entries.stream();
+    }
+}
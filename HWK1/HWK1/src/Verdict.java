@@ -0,0 +1,59 @@
+/**
+ * Outcome of validating a transaction: either {@link #ACCEPTED}, or the reason of the rejection with
+ * the offending input/output index. Accepting never allocates, only rejections create a new verdict.
+ */
+public final class Verdict {
+
+    public enum Reason {
+        ACCEPTED,
+        /** (1) an input claims an output that is not in the UTXO pool */
+        MISSING_INPUT,
+        /** (2) the signature of an input is not valid */
+        BAD_SIGNATURE,
+        /** (3) an output is claimed by more than one input */
+        DOUBLE_SPEND,
+        /** (4) an output value is negative */
+        INVALID_OUTPUT_VALUE,
+        /** (5) the outputs are worth more than the inputs */
+        INSUFFICIENT_INPUT,
+        /** the sum of the input or of the output values does not fit in a long */
+        VALUE_OVERFLOW
+    }
+
+    public static final Verdict ACCEPTED = new Verdict(Reason.ACCEPTED, -1);
+
+    private final Reason reason;
+    private final int index;
+
+    private Verdict(Reason reason, int index) {
+        this.reason = reason;
+        this.index = index;
+    }
+
+    /** @return a rejection for {@code reason} caused by input/output {@code index}, or -1 if none */
+    public static Verdict reject(Reason reason, int index) {
+        return new Verdict(reason, index);
+    }
+
+    public boolean isAccepted() {
+        return reason == Reason.ACCEPTED;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+    /**
+     * @return the offending input (reasons 1-3) or output (reason 4) index, or for an overflow the
+     *         input or output at which the sum overflowed; -1 if none
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    public String toString() {
+        if (isAccepted())
+            return "ACCEPTED";
+        return reason + "(index=" + index + ")";
+    }
+}
@@ -1,7 +1,10 @@
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.security.NoSuchAlgorithmException;
 import java.security.SignatureException;
 import java.security.InvalidKeyException;
@@ -10,6 +13,9 @@ import java.security.KeyPairGenerator;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -86,9 +92,9 @@ class TxHandlerTest {
         txB2CD.finalize();
 
         // currUTXOPool doesn't contain utxoA2B
-        // should print
-        // "Error(1): output claimed by input 0 is not in the UTXOPool"
         assertFalse(testHandler.isValidTx(txB2CD));
+        assertEquals(Verdict.Reason.MISSING_INPUT, testHandler.validateTx(txB2CD).getReason());
+        assertEquals(0, testHandler.validateTx(txB2CD).getIndex());
 
         // add utxoA2B into the currUTXOPool and create a new handler
         // this time there should not be Error(1)
@@ -139,9 +145,9 @@ class TxHandlerTest {
         sign.update(txBC2D.getRawDataToSign(0));
         txBC2D.addSignature(sign.sign(), 1);
         txBC2D.finalize();
-        // should print
-        // "Error(2): the signature of input 1 is not valid"
         assertFalse(testHandler.isValidTx(txBC2D));
+        assertEquals(Verdict.Reason.BAD_SIGNATURE, testHandler.validateTx(txBC2D).getReason());
+        assertEquals(1, testHandler.validateTx(txBC2D).getIndex());
 
         sign.initSign(keyPairC.getPrivate());
         // use valid sign of C (set index = 1)
@@ -188,9 +194,11 @@ class TxHandlerTest {
         sign.update(txB2CD.getRawDataToSign(1));
         txB2CD.addSignature(sign.sign(), 1);
         txB2CD.finalize();
-        // should print
-        // "Error(3): UXTO is claimed twice, inputIndex = 1"
+        // the second input claims the same UTXO again
         assertFalse(testHandler.isValidTx(txB2CD));
+        Verdict verdict = testHandler.validateTx(txB2CD);
+        assertEquals(Verdict.Reason.DOUBLE_SPEND, verdict.getReason());
+        assertEquals(1, verdict.getIndex());
 
         // TODO: fix the bug here
         // remove input & output of txB2D B-->D($10)
@@ -234,9 +242,51 @@ class TxHandlerTest {
         txB2CD.finalize();
 
         // outputs[1].value = -2, negative
-        // should print
-        // "Error(4): value of output 1 is negative"
         assertFalse(testHandler.isValidTx(txB2CD));
+        assertEquals(Verdict.Reason.INVALID_OUTPUT_VALUE, testHandler.validateTx(txB2CD).getReason());
+        assertEquals(1, testHandler.validateTx(txB2CD).getIndex());
+    }
+
+    @Test
+    /**
+     * values are summed exactly in base units: 0.1 + 0.2 covers 0.3 (it would not with doubles),
+     * and sums that do not fit in a long are rejected instead of wrapping around
+     */
+    void testExactValues() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        UTXOPool currUTXOPool = new UTXOPool();
+        Transaction txA2B = new Transaction();
+        txA2B.addOutput(0.1, keyPairB.getPublic());
+        txA2B.addOutput(0.2, keyPairB.getPublic());
+        txA2B.finalize();
+        currUTXOPool.addUTXO(new UTXO(txA2B.getHash(), 0), txA2B.getOutput(0));
+        currUTXOPool.addUTXO(new UTXO(txA2B.getHash(), 1), txA2B.getOutput(1));
+        TxHandler testHandler = new TxHandler(currUTXOPool);
+
+        Transaction txB2C = new Transaction();
+        txB2C.addInput(txA2B.getHash(), 0);
+        txB2C.addInput(txA2B.getHash(), 1);
+        txB2C.addOutput(0.3, keyPairC.getPublic());
+        Signature sign = Signature.getInstance("SHA256withRSA");
+        for (int i = 0; i < 2; i++) {
+            sign.initSign(keyPairB.getPrivate());
+            sign.update(txB2C.getRawDataToSign(i));
+            txB2C.addSignature(sign.sign(), i);
+        }
+        txB2C.finalize();
+        assertTrue(testHandler.isValidTx(txB2C));
+
+        // two outputs of Long.MAX_VALUE units overflow the output sum at output 1
+        Transaction txB2CD = new Transaction();
+        txB2CD.addInput(txA2B.getHash(), 0);
+        txB2CD.addOutputUnits(Long.MAX_VALUE, keyPairC.getPublic());
+        txB2CD.addOutputUnits(Long.MAX_VALUE, keyPairD.getPublic());
+        sign.initSign(keyPairB.getPrivate());
+        sign.update(txB2CD.getRawDataToSign(0));
+        txB2CD.addSignature(sign.sign(), 0);
+        txB2CD.finalize();
+        Verdict verdict = testHandler.validateTx(txB2CD);
+        assertEquals(Verdict.Reason.VALUE_OVERFLOW, verdict.getReason());
+        assertEquals(1, verdict.getIndex());
     }
 
     @Test
@@ -279,11 +329,9 @@ class TxHandlerTest {
         txBC2DE.addSignature(sign.sign(), 1);
         txBC2DE.finalize();
 
-        // should print
-        // "Error(5): the sum of tx's input value is 20.000"
-        // "the sum of tx's output value is 25.000"
-        // "valueSumInputs < valueSumOutputs"
+        // inputs are worth 20, outputs 25
         assertFalse(testHandler.isValidTx(txBC2DE));
+        assertEquals(Verdict.Reason.INSUFFICIENT_INPUT, testHandler.validateTx(txBC2DE).getReason());
     }
 
     @Test
@@ -389,4 +437,218 @@ class TxHandlerTest {
 //        possibleTxs.add(txE2B);
 
     }
-}
\ No newline at end of file
+    @Test
+    /**
+     * a snapshot keeps the contents of the pool at the time it was taken
+     * and can be aggregated in parallel and scanned in UTXO order
+     */
+    void testPoolSnapshot() {
+        UTXOPool currUTXOPool = new UTXOPool();
+        Transaction txA2B = new Transaction();
+        for (int i = 0; i < 100; i++) {
+            txA2B.addOutput(i, keyPairB.getPublic());
+        }
+        txA2B.finalize();
+        for (int i = 0; i < 100; i++) {
+            currUTXOPool.addUTXO(new UTXO(txA2B.getHash(), i), txA2B.getOutput(i));
+        }
+
+        UTXOSnapshot snapshot = currUTXOPool.snapshot();
+        currUTXOPool.removeUTXO(new UTXO(txA2B.getHash(), 0));
+        currUTXOPool.removeUTXO(new UTXO(txA2B.getHash(), 99));
+
+        assertEquals(98, currUTXOPool.size());
+        assertEquals(100, snapshot.size());
+        // 0 + 1 + ... + 99
+        long totalValue = snapshot.parallelStream().mapToLong(u -> snapshot.getTxOutput(u).value).sum();
+        assertEquals(4950 * Transaction.COIN, totalValue);
+        // compareTo orders by index first
+        Object[] range = snapshot.range(new UTXO(txA2B.getHash(), 10), new UTXO(txA2B.getHash(), 13)).toArray();
+        assertArrayEquals(new Object[]{
+                new UTXO(txA2B.getHash(), 10), new UTXO(txA2B.getHash(), 11), new UTXO(txA2B.getHash(), 12)
+        }, range);
+    }
+
+    @Test
+    /**
+     * a pool over a disk table and a small cache works like an in-memory pool, keeps its UTXOs when
+     * reopened, is not changed through its copies, and an output created and spent between two
+     * flushes never reaches the table
+     */
+    void testDiskBackedPool(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("utxo.db");
+        DiskUTXOTable table = new DiskUTXOTable(file, 16);
+        UTXOCache cache = new UTXOCache(table, 10 * UTXOCache.ENTRY_BYTES);
+        UTXOPool currUTXOPool = new UTXOPool(cache);
+        Transaction txA = new Transaction();
+        for (int i = 0; i < 30; i++)
+            txA.addOutput(1, keyPairA.getPublic());
+        txA.finalize();
+        for (int i = 0; i < 30; i++)
+            currUTXOPool.addUTXO(new UTXO(txA.getHash(), i), txA.getOutput(i));
+        assertEquals(30, currUTXOPool.size());
+        assertTrue(cache.getFlushes() > 0);
+        assertTrue(cache.getNumCached() <= 10);
+        cache.flush();
+        assertEquals(30, table.size());
+
+        // A pays B, B pays C in the same epoch: the output of B is created and spent in the cache
+        Transaction txA2B = new Transaction();
+        txA2B.addInput(txA.getHash(), 0);
+        txA2B.addOutput(1, keyPairB.getPublic());
+        Signature sign = Signature.getInstance("SHA256withRSA");
+        sign.initSign(keyPairA.getPrivate());
+        sign.update(txA2B.getRawDataToSign(0));
+        txA2B.addSignature(sign.sign(), 0);
+        txA2B.finalize();
+        Transaction txB2C = new Transaction();
+        txB2C.addInput(txA2B.getHash(), 0);
+        txB2C.addOutput(1, keyPairC.getPublic());
+        sign.initSign(keyPairB.getPrivate());
+        sign.update(txB2C.getRawDataToSign(0));
+        txB2C.addSignature(sign.sign(), 0);
+        txB2C.finalize();
+        long flushedBefore = cache.getFlushedEntries();
+        TxHandler testHandler = new TxHandler(currUTXOPool);
+        Transaction[] accepted = testHandler.handleTxs(new Transaction[]{txA2B, txB2C});
+        assertEquals(2, accepted.length);
+        // the handler changes its own copy, not the pool over the table
+        assertTrue(currUTXOPool.contains(new UTXO(txA.getHash(), 0)));
+        assertFalse(currUTXOPool.contains(new UTXO(txB2C.getHash(), 0)));
+        assertEquals(0, cache.getNumDirty());
+        for (Transaction tx : accepted) {
+            currUTXOPool.removeUTXO(new UTXO(tx.getInput(0).prevTxHash, tx.getInput(0).outputIndex));
+            currUTXOPool.addUTXO(new UTXO(tx.getHash(), 0), tx.getOutput(0));
+        }
+        cache.flush();
+        // only the spent output of A and the output of C were written
+        assertEquals(2, cache.getFlushedEntries() - flushedBefore);
+        assertNull(table.get(new UTXO(txA2B.getHash(), 0)));
+        assertEquals(30, currUTXOPool.size());
+        assertFalse(currUTXOPool.contains(new UTXO(txA.getHash(), 0)));
+        assertTrue(cache.getHitRate() > 0);
+
+        table.close();
+        table = new DiskUTXOTable(file, 16);
+        UTXOCache reopenedCache = new UTXOCache(table, 10 * UTXOCache.ENTRY_BYTES);
+        UTXOPool reopened = new UTXOPool(reopenedCache);
+        assertEquals(30, reopened.size());
+        assertEquals(30, reopened.getAllUTXO().size());
+        // a snapshot streams the table, with the changes of a copy on top
+        assertEquals(30 * Transaction.COIN, reopened.snapshot().entryStream(false).mapToLong(e -> e.getValue().value).sum());
+        UTXOPool copy = new UTXOPool(reopened);
+        copy.removeUTXO(new UTXO(txB2C.getHash(), 0));
+        UTXOSnapshot copySnapshot = copy.snapshot();
+        assertEquals(29, copySnapshot.size());
+        assertEquals(29, copySnapshot.stream().count());
+        assertFalse(copySnapshot.contains(new UTXO(txB2C.getHash(), 0)));
+        assertEquals(30, reopened.size());
+        Transaction.Output output = reopened.getTxOutput(new UTXO(txB2C.getHash(), 0));
+        assertEquals(Transaction.COIN, output.value);
+        assertEquals(keyPairC.getPublic(), output.address);
+
+        // a snapshot over the cache reads it and the table in place, and fails once the cache changes
+        reopened.removeUTXO(new UTXO(txB2C.getHash(), 0));
+        long hits = reopenedCache.getHits();
+        long misses = reopenedCache.getMisses();
+        long flushes = reopenedCache.getFlushes();
+        UTXOSnapshot live = reopened.snapshot();
+        assertEquals(29, live.stream().count());
+        assertNull(live.getTxOutput(new UTXO(txB2C.getHash(), 0)));
+        assertEquals(Transaction.COIN, live.getTxOutput(new UTXO(txA.getHash(), 1)).value);
+        assertEquals(flushes, reopenedCache.getFlushes());
+        assertEquals(1, reopenedCache.getNumDirty());
+        assertEquals(hits, reopenedCache.getHits());
+        assertEquals(misses, reopenedCache.getMisses());
+        reopened.addUTXO(new UTXO(txB2C.getHash(), 0), output);
+        assertThrows(ConcurrentModificationException.class, () -> live.getTxOutput(new UTXO(txA.getHash(), 1)));
+        assertThrows(ConcurrentModificationException.class, live::size);
+        assertThrows(ConcurrentModificationException.class, () -> live.stream().count());
+        assertEquals(30, reopened.size());
+
+        // Ed25519 and ECDSA addresses are stored in their short encodings
+        PublicKey ed = SignatureScheme.ED25519.generateKeyPair().getPublic();
+        PublicKey ec = SignatureScheme.ECDSA.generateKeyPair().getPublic();
+        Transaction txEdEc = new Transaction();
+        txEdEc.addOutput(1, ed);
+        txEdEc.addOutput(2, ec);
+        txEdEc.finalize();
+        HashMap<UTXO, Transaction.Output> puts = new HashMap<UTXO, Transaction.Output>();
+        puts.put(new UTXO(txEdEc.getHash(), 0), txEdEc.getOutput(0));
+        puts.put(new UTXO(txEdEc.getHash(), 1), txEdEc.getOutput(1));
+        table.write(puts, new ArrayList<UTXO>());
+        assertEquals(ed, table.get(new UTXO(txEdEc.getHash(), 0)).address);
+        assertEquals(ec, table.get(new UTXO(txEdEc.getHash(), 1)).address);
+        table.close();
+    }
+
+    @Test
+    void testOutpointFilter(@TempDir Path dir) throws Exception {
+        byte[] hash = new byte[32];
+        OutpointFilter filter = new OutpointFilter(10000);
+        for (int i = 0; i < 10000; i++)
+            assertTrue(filter.add(new UTXO(hash, i)));
+        for (int i = 0; i < 10000; i++)
+            assertTrue(filter.mightContain(new UTXO(hash, i)));
+        for (int i = 0; i < 5000; i++)
+            assertTrue(filter.remove(new UTXO(hash, i)));
+        assertEquals(5000, filter.size());
+        for (int i = 5000; i < 10000; i++)
+            assertTrue(filter.mightContain(new UTXO(hash, i)));
+        int falsePositives = 0;
+        for (int i = 10000; i < 110000; i++) {
+            if (filter.mightContain(new UTXO(hash, i)))
+                falsePositives++;
+        }
+        assertTrue(falsePositives < 100, falsePositives + " false positives");
+
+        // lookups of missing UTXOs do not read the store, even after the filter is rebuilt
+        DiskUTXOTable table = new DiskUTXOTable(dir.resolve("utxo.db"), 16);
+        UTXOCache cache = new UTXOCache(table, 100 * UTXOCache.ENTRY_BYTES);
+        UTXOPool currUTXOPool = new UTXOPool(cache);
+        Transaction tx = new Transaction();
+        for (int i = 0; i < 3000; i++)
+            tx.addOutput(1, keyPairA.getPublic());
+        tx.finalize();
+        for (int i = 0; i < 3000; i++)
+            currUTXOPool.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+        // adding a UTXO looks it up too, and may have hit false positives already
+        long misses = cache.getMisses();
+        long storeReads = cache.getFalsePositives();
+        long filterNegatives = cache.getFilterNegatives();
+        for (int i = 3000; i < 4000; i++)
+            assertFalse(currUTXOPool.contains(new UTXO(tx.getHash(), i)));
+        assertEquals(1000, cache.getFilterNegatives() - filterNegatives + cache.getFalsePositives() - storeReads);
+        assertEquals(cache.getFalsePositives() - storeReads, cache.getMisses() - misses);
+        assertTrue(cache.getFalsePositiveRate() < 0.01);
+        for (int i = 0; i < 3000; i++)
+            assertTrue(currUTXOPool.contains(new UTXO(tx.getHash(), i)));
+        table.close();
+    }
+
+    @Test
+    void testRawDataToSign() {
+        Transaction tx = new Transaction();
+        byte[] prevTxHash = new byte[32];
+        for (int i = 0; i < 3; i++)
+            tx.addInput(prevTxHash, i);
+        tx.addOutput(1, keyPairA.getPublic());
+        tx.addOutput(2, keyPairB.getPublic());
+        byte[] addressA = keyPairA.getPublic().getEncoded();
+        byte[] addressB = keyPairB.getPublic().getEncoded();
+        ByteBuffer expected = ByteBuffer.allocate(32 + 4 + 2 * 8 + addressA.length + addressB.length);
+        expected.put(prevTxHash).putInt(2).putLong(Transaction.COIN).put(addressA).putLong(2 * Transaction.COIN).put(addressB);
+        assertArrayEquals(expected.array(), tx.getRawDataToSign(2));
+        byte[] data = tx.getRawDataToSign(0);
+
+        // outputs changed in place are encoded again
+        tx.getOutputs().get(1).value = 5;
+        assertFalse(Arrays.equals(data, tx.getRawDataToSign(0)));
+        tx.getOutputs().get(1).value = 2 * Transaction.COIN;
+        assertArrayEquals(data, tx.getRawDataToSign(0));
+        tx.getOutputs().get(1).address = keyPairC.getPublic();
+        assertFalse(Arrays.equals(data, tx.getRawDataToSign(0)));
+        tx.getOutputs().remove(1);
+        assertEquals(32 + 4 + 8 + addressA.length, tx.getRawDataToSign(0).length);
+    }
+}
@@ -0,0 +1,86 @@
+import java.security.PublicKey;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Secondary index of a {@code UTXOPool}: for every address, the set of UTXOs paying to it and their
+ * running balance. It is updated by the pool on every addUTXO/removeUTXO, so balance and coin
+ * queries only touch the coins of the address being asked about.
+ */
+public class AddressIndex {
+
+    /** the coins held by one address */
+    private static class Holdings {
+        private HashSet<UTXO> utxos;
+        /** in base units */
+        private long balance;
+
+        private Holdings() {
+            utxos = new HashSet<UTXO>();
+        }
+
+        private Holdings(Holdings other) {
+            utxos = new HashSet<UTXO>(other.utxos);
+            balance = other.balance;
+        }
+    }
+
+    private HashMap<PublicKey, Holdings> H;
+
+    public AddressIndex() {
+        H = new HashMap<PublicKey, Holdings>();
+    }
+
+    /** Creates a deep copy of {@code index} */
+    public AddressIndex(AddressIndex index) {
+        H = new HashMap<PublicKey, Holdings>(index.H.size() * 4 / 3 + 1);
+        for (Map.Entry<PublicKey, Holdings> entry : index.H.entrySet())
+            H.put(entry.getKey(), new Holdings(entry.getValue()));
+    }
+
+    /** Records that {@code utxo} now pays {@code txOut.value} to {@code txOut.address} */
+    void add(UTXO utxo, Transaction.Output txOut) {
+        Holdings holdings = H.get(txOut.address);
+        if (holdings == null) {
+            holdings = new Holdings();
+            H.put(txOut.address, holdings);
+        }
+        if (holdings.utxos.add(utxo))
+            holdings.balance = Math.addExact(holdings.balance, txOut.value);
+    }
+
+    /** Records that {@code utxo}, which paid {@code txOut}, has been spent */
+    void remove(UTXO utxo, Transaction.Output txOut) {
+        Holdings holdings = H.get(txOut.address);
+        if (holdings == null || !holdings.utxos.remove(utxo))
+            return;
+        if (holdings.utxos.isEmpty())
+            H.remove(txOut.address);
+        else
+            holdings.balance -= txOut.value;
+    }
+
+    /** @return a read-only view of the UTXOs paying to {@code address} */
+    public Set<UTXO> getUTXOs(PublicKey address) {
+        Holdings holdings = H.get(address);
+        if (holdings == null)
+            return Collections.emptySet();
+        return Collections.unmodifiableSet(holdings.utxos);
+    }
+
+    /** @return the sum of the values of all UTXOs paying to {@code address}, in base units */
+    public long getBalance(PublicKey address) {
+        Holdings holdings = H.get(address);
+        if (holdings == null)
+            return 0;
+        return holdings.balance;
+    }
+
+    /** @return the number of distinct addresses holding at least one UTXO */
+    public int getNumAddresses() {
+        return H.size();
+    }
+}
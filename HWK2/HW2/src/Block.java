@@ -1,4 +1,5 @@
 
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
@@ -6,12 +7,25 @@ import java.util.ArrayList;
 
 public class Block {
 
-    public static final double COINBASE = 25;
+    /** reward of the coinbase transaction in base units, 25 bitcoins */
+    public static final long COINBASE = 25 * Transaction.COIN;
+
+    /** length of the header, see {@link #getHeader()} */
+    public static final int HEADER_SIZE = 84;
 
     private byte[] hash;
     private byte[] prevBlockHash;
     private Transaction coinbase;
     private ArrayList<Transaction> txs;
+    /** Merkle tree over the hashes of the coinbase and of the txs, in block order */
+    private MerkleTree merkleTree = new MerkleTree();
+    /** root of {@code merkleTree} as of the last {@link #finalize()} */
+    private byte[] merkleRoot;
+    /** milliseconds since the epoch, set by the miner */
+    private long timestamp;
+    /** number of leading zero bits the hash must have, i.e. the target is 2^(256 - targetBits) */
+    private int targetBits;
+    private long nonce;
 
     /** {@code address} is the address to which the coinbase transaction would go */
     public Block(byte[] prevHash, PublicKey address) {
@@ -20,6 +34,13 @@ public class Block {
         txs = new ArrayList<Transaction>();
     }
 
+    /** a block with the given coinbase transaction, for blocks rebuilt from what a peer sent */
+    Block(byte[] prevHash, Transaction coinbase) {
+        prevBlockHash = prevHash;
+        this.coinbase = coinbase;
+        txs = new ArrayList<Transaction>();
+    }
+
     public Transaction getCoinbase() {
         return coinbase;
     }
@@ -50,7 +71,7 @@ public class Block {
             for (int i = 0; i < prevBlockHash.length; i++)
                 rawBlock.add(prevBlockHash[i]);
         for (int i = 0; i < txs.size(); i++) {
-            byte[] rawTx = txs.get(i).getRawTx();
+            byte[] rawTx = txs.get(i).rawTxBytes();
             for (int j = 0; j < rawTx.length; j++) {
                 rawBlock.add(rawTx[j]);
             }
@@ -61,13 +82,144 @@ public class Block {
         return raw;
     }
 
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /** takes effect on the next {@link #finalize()} */
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public int getTargetBits() {
+        return targetBits;
+    }
+
+    /** takes effect on the next {@link #finalize()} */
+    public void setTargetBits(int targetBits) {
+        if (targetBits < 0 || targetBits > 256)
+            throw new IllegalArgumentException("targetBits must be in [0, 256]: " + targetBits);
+        this.targetBits = targetBits;
+    }
+
+    public long getNonce() {
+        return nonce;
+    }
+
+    /** sets the nonce of a finalized block and rehashes its header, the transactions are not rehashed */
+    public void setNonce(long nonce) {
+        this.nonce = nonce;
+        hash = hashHeader(nonce);
+    }
+
+    /**
+     * The header the block hash is computed from: the previous block hash (zeros for a genesis
+     * block) and the Merkle root of the transactions, which fill exactly one SHA-256 chunk, then the
+     * timestamp, the target bits and the nonce.
+     */
+    public byte[] getHeader() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (prevBlockHash != null)
+            header.put(prevBlockHash, 0, Math.min(prevBlockHash.length, 32));
+        header.position(32);
+        header.put(merkleRoot);
+        header.putLong(timestamp);
+        header.putInt(targetBits);
+        header.putLong(nonce);
+        return header.array();
+    }
+
+    /**
+     * @return a SHA-256 digest that has already consumed everything in the header but the nonce;
+     *         the first chunk is compressed, so hashing a nonce from a clone costs one compression
+     */
+    MessageDigest headerMidstate() {
+        MessageDigest md = sha256();
+        md.update(getHeader(), 0, HEADER_SIZE - Long.BYTES);
+        return md;
+    }
+
+    private byte[] hashHeader(long nonce) {
+        MessageDigest md = headerMidstate();
+        md.update(ByteBuffer.allocate(Long.BYTES).putLong(nonce).array());
+        return md.digest();
+    }
+
+    /** @return the number of leading zero bits of {@code hash} */
+    static int leadingZeroBits(byte[] hash) {
+        for (int i = 0; i < hash.length; i++) {
+            if (hash[i] != 0)
+                return 8 * i + Integer.numberOfLeadingZeros(hash[i] & 0xff) - 24;
+        }
+        return 8 * hash.length;
+    }
+
+    /** @return true if the hash of the block is below its own target */
+    public boolean meetsTarget() {
+        return hash != null && leadingZeroBits(hash) >= targetBits;
+    }
+
+    /**
+     * Checks the proof of work without touching the transactions: the hash must be below the target
+     * and be the hash of the header, which takes two SHA-256 compressions.
+     */
+    public boolean checkProofOfWork() {
+        if (!meetsTarget() || merkleRoot == null)
+            return false;
+        return MessageDigest.isEqual(hash, hashHeader(nonce));
+    }
+
+    /**
+     * Computes the Merkle root and the hash of the block. The tree is kept between calls, so after
+     * adding or replacing a few transactions only their paths to the root are rehashed.
+     */
     public void finalize() {
+        merkleRoot = computeMerkleRoot();
+        hash = hashHeader(nonce);
+    }
+
+    /**
+     * @return true if the Merkle root of the header is the root of the transactions the block holds
+     *         now, i.e. none was added, removed or replaced since {@link #finalize()}; the header
+     *         only commits to them through that root. Unchanged leaves are compared, not rehashed.
+     */
+    public boolean checkMerkleRoot() {
+        if (merkleRoot == null || coinbase.hashBytes() == null)
+            return false;
+        for (Transaction tx : txs) {
+            if (tx.hashBytes() == null)
+                return false;
+        }
+        return MessageDigest.isEqual(merkleRoot, computeMerkleRoot());
+    }
+
+    private byte[] computeMerkleRoot() {
+        merkleTree.set(0, coinbase.hashBytes());
+        for (int i = 0; i < txs.size(); i++)
+            merkleTree.set(i + 1, txs.get(i).hashBytes());
+        merkleTree.truncate(txs.size() + 1);
+        return merkleTree.getRoot();
+    }
+
+    /** @return the Merkle root committed to by the header, null before {@link #finalize()} */
+    public byte[] getMerkleRoot() {
+        return merkleRoot == null ? null : merkleRoot.clone();
+    }
+
+    /**
+     * @return a proof that the transaction at {@code position} (-1 for the coinbase, as in
+     *         {@code ChainIndex}) is in this block, to check with {@code MerkleTree.verify} against
+     *         {@link #getMerkleRoot()}; the block must be finalized
+     */
+    public MerkleTree.Proof getInclusionProof(int position) {
+        return merkleTree.getProof(position + 1);
+    }
+
+    private static MessageDigest sha256() {
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawBlock());
-            hash = md.digest();
+            return MessageDigest.getInstance("SHA-256");
         } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
+            throw new IllegalStateException(x);
         }
     }
 }
@@ -3,19 +3,60 @@
 // as it would cause a memory overflow.
 
 import java.lang.reflect.Array;
+import java.math.BigInteger;
+import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
 
 public class BlockChain {
     public static final int CUT_OFF_AGE = 10;
     // keep the recent 10 nodes in memory
     public static final int NUM_RECENT_NODE = 16;
+    // validation cost a block may take by default, about 10000 signatures, see TxHandler.handleBlockTxs
+    public static final long DEFAULT_MAX_BLOCK_COST = 1_000_000;
+
+    private static final LatencyHistogram ADD_BLOCK = Metrics.getDefault().histogram("block_add_seconds");
+    private static final LatencyHistogram PRUNE = Metrics.getDefault().histogram("block_prune_seconds");
+    private static final LongAdder ADDED = Metrics.getDefault().counter("blocks_added_total");
+    private static final LongAdder REORGS = Metrics.getDefault().counter("chain_reorgs_total");
+    private static final LongAdder REINJECTED = Metrics.getDefault().counter("reorg_txs_reinjected_total");
+    private static final LongAdder EVICTED = Metrics.getDefault().counter("tx_pool_conflicts_evicted_total");
+    /** rejection counters indexed by {@code Verdict.Reason.ordinal()}, blocks with an invalid tx count under its reason */
+    private static final LongAdder[] REJECTED = new LongAdder[Verdict.Reason.values().length];
+    static {
+        for (Verdict.Reason reason : Verdict.Reason.values()) {
+            if (reason != Verdict.Reason.ACCEPTED)
+                REJECTED[reason.ordinal()] = Metrics.getDefault().counter("block_rejected_total{reason=\"" + reason.label + "\"}");
+        }
+    }
     // IMPLEMENT THIS
     private int oldestBlockHeight;
     private HashMap<ByteArrayWrapper, BlockNode> blockChain;
     private TransactionPool txPool;
     private BlockNode maxHeightNode;
+    // block/tx lookups by hash, kept for the whole history (not pruned with the nodes)
+    private ChainIndex chainIndex;
+    // leading zero bits the hash of every new block must have, see Block.getTargetBits
+    private int targetBits;
+    // validation cost budget of a block
+    private long maxBlockCost = DEFAULT_MAX_BLOCK_COST;
+    // called with the new max height block whenever it changes, e.g. to cancel mining
+    private CopyOnWriteArrayList<Runnable> tipListeners = new CopyOnWriteArrayList<Runnable>();
+    // the nodes without children, best first: most work, then max height, then first added
+    private TreeSet<BlockNode> tips = new TreeSet<BlockNode>(Comparator
+            .comparing((BlockNode node) -> node.chainWork).reversed()
+            .thenComparing(node -> -node.height)
+            .thenComparingLong(node -> node.sequence));
+    private long nextSequence;
 
     /**
      * for each block, create a corresponding node,
@@ -27,6 +68,12 @@ public class BlockChain {
         public Block block;
         public int height;
         public BlockNode parentNode;
+        // the ancestor at skipHeight(height), so that ancestors are found in O(log n) steps
+        public BlockNode skipNode;
+        // expected number of hashes to mine the branch up to this block, 2^targetBits per block
+        public BigInteger chainWork;
+        // order in which the nodes were added
+        public long sequence;
         public UTXOPool utxoPool;
         public ArrayList<BlockNode> childrenNodes;
 
@@ -35,34 +82,105 @@ public class BlockChain {
             this.parentNode = parentNode;
             this.utxoPool = utxoPool;
             this.childrenNodes = new ArrayList<BlockNode>();
+            BigInteger work = BigInteger.ONE.shiftLeft(block.getTargetBits());
             if (this.parentNode != null){
                 this.height = this.parentNode.height + 1;
                 this.parentNode.childrenNodes.add(this);
+                this.skipNode = this.parentNode.getAncestor(skipHeight(height));
+                this.chainWork = this.parentNode.chainWork.add(work);
+            }
+            else{
+                this.height = 1;
+                this.chainWork = work;
             }
-            else{this.height = 1;}
+            this.sequence = nextSequence++;
+        }
+
+        /**
+         * @return the ancestor of this node at {@code h}, this node at its own height, or null above
+         *         it or below the genesis block. Follows a skip pointer whenever it does not
+         *         overshoot, or would land where the next skip is much shorter, as in the block
+         *         index of Bitcoin Core.
+         */
+        public BlockNode getAncestor(int h) {
+            if (h > height || h < 1)
+                return null;
+            BlockNode walk = this;
+            while (walk.height > h) {
+                int skip = skipHeight(walk.height);
+                int skipPrev = skipHeight(walk.height - 1);
+                if (walk.skipNode != null
+                        && (skip == h || (skip > h && !(skipPrev < skip - 2 && skipPrev >= h))))
+                    walk = walk.skipNode;
+                else
+                    walk = walk.parentNode;
+            }
+            return walk;
+        }
+    }
+
+    /**
+     * @return the height the skip pointer of a node at {@code height} leads to, for heights
+     *         counted from 1: in the binary form of the height below, clear the lowest set bit,
+     *         twice for odd heights
+     */
+    static int skipHeight(int height) {
+        int n = height - 1;
+        if (n < 2)
+            return 1;
+        int skip = (n & 1) == 1 ? clearLowestBit(clearLowestBit(n - 1)) + 1 : clearLowestBit(n);
+        return skip + 1;
+    }
+
+    private static int clearLowestBit(int n) {
+        return n & (n - 1);
+    }
 
+    /** @return the last node both {@code a} and {@code b} descend from, in O(log n) steps */
+    private static BlockNode lowestCommonAncestor(BlockNode a, BlockNode b) {
+        if (a.height > b.height)
+            a = a.getAncestor(b.height);
+        else if (b.height > a.height)
+            b = b.getAncestor(a.height);
+        while (a != b) {
+            // at equal heights the skips land at equal heights: jump if the fork is below them
+            if (a.skipNode != b.skipNode) {
+                a = a.skipNode;
+                b = b.skipNode;
+            } else {
+                a = a.parentNode;
+                b = b.parentNode;
+            }
         }
+        return a;
     }
     /**
      * create an empty block chain with just a genesis block. Assume {@code genesisBlock} is a valid
      * block
      */
     public BlockChain(Block genesisBlock) {
+        this(genesisBlock, 0);
+    }
+
+    /**
+     * create a block chain with just a genesis block, whose next blocks need a proof of work of
+     * {@code targetBits} leading zero bits
+     */
+    public BlockChain(Block genesisBlock, int targetBits) {
+        this.targetBits = targetBits;
         blockChain = new HashMap<ByteArrayWrapper, BlockNode>();
         txPool = new TransactionPool();
+        chainIndex = new ChainIndex();
 
         ByteArrayWrapper genesisHashWrap = new ByteArrayWrapper(genesisBlock.getHash());
         BlockNode genesisNode = new BlockNode(genesisBlock,null, new UTXOPool());
         // update utxoPool: add the outputs of coinbaseTx into genesisNode.utxoPool
         Transaction coinbaseTx = genesisBlock.getCoinbase();
-        byte[] coinbaseTxHash = coinbaseTx.getHash();
-        for (int i = 0;i<coinbaseTx.numOutputs();i++){
-            Transaction.Output output = coinbaseTx.getOutput(i);
-            UTXO utxo = new UTXO(coinbaseTxHash,i);
-            genesisNode.utxoPool.addUTXO(utxo,output);
-        }
+        genesisNode.utxoPool.apply(UTXODelta.of(coinbaseTx));
         // add genesisNode to this.blockChain
         blockChain.put(genesisHashWrap, genesisNode);
+        tips.add(genesisNode);
+        chainIndex.addBlock(genesisBlock, genesisNode.height);
         // TODO: update txPool ??
         // this is done in BlockHandler
 //        txPool.addTransaction(coinbaseTx);
@@ -70,6 +188,36 @@ public class BlockChain {
         maxHeightNode = genesisNode;
         oldestBlockHeight = genesisNode.height;
 
+        // the gauges follow the most recently created chain, without keeping it reachable
+        Metrics metrics = Metrics.getDefault();
+        metrics.gauge("block_nodes_retained", this, c -> c.blockChain.size());
+        metrics.gauge("max_height", this, c -> c.maxHeightNode.height);
+        metrics.gauge("utxo_pool_size", this, c -> c.maxHeightNode.utxoPool.size());
+        metrics.gauge("tx_pool_size", this, c -> c.txPool.getTransactionPoolSize());
+
+    }
+
+    /** @return the number of leading zero bits the hash of a new block must have */
+    public int getTargetBits() {
+        return targetBits;
+    }
+
+    public long getMaxBlockCost() {
+        return maxBlockCost;
+    }
+
+    /** Sets the validation cost a block may take, see {@link TxHandler#handleBlockTxs} */
+    public void setMaxBlockCost(long maxBlockCost) {
+        this.maxBlockCost = maxBlockCost;
+    }
+
+    /** {@code listener} will run on the adding thread each time the max height block changes */
+    public void addTipListener(Runnable listener) {
+        tipListeners.add(listener);
+    }
+
+    public void removeTipListener(Runnable listener) {
+        tipListeners.remove(listener);
     }
 
     public int getOldestBlockHeight(){
@@ -110,16 +258,82 @@ public class BlockChain {
      * @return true if block is successfully added
      */
     public boolean addBlock(Block block) {
+        return tryAddBlock(block).isAccepted();
+    }
+
+    /**
+     * Same as {@link #addBlock}, but tells why a block was rejected.
+     * 
+     * @return {@code Verdict.ACCEPTED} if the block was added, otherwise the reason it was rejected;
+     *         for an invalid transaction its verdict, attributed to its position in the block
+     */
+    public Verdict tryAddBlock(Block block) {
+        return tryAddBlock(block, null);
+    }
+
+    /**
+     * Same as {@link #tryAddBlock(Block)}, skipping the signature checks that
+     * {@code preverifiedSignatures} vouches for, see {@link TxHandler}
+     */
+    Verdict tryAddBlock(Block block, Map<UTXO, PublicKey> preverifiedSignatures) {
+        long start = System.nanoTime();
+        ChainEvents.BlockAdd event = new ChainEvents.BlockAdd();
+        event.begin();
+        Verdict verdict = validateAndAdd(block, preverifiedSignatures);
+        event.end();
+        ADD_BLOCK.recordSince(start);
+        if (!verdict.isAccepted())
+            REJECTED[verdict.getReason().ordinal()].increment();
+        if (event.shouldCommit()) {
+            event.blockHash = ChainEvents.hex(block.getHash());
+            event.height = heightOf(block);
+            event.txCount = block.getTransactions().size();
+            event.outcome = verdict.getReason().label;
+            event.commit();
+        }
+        return verdict;
+    }
+
+    /** @return the height {@code block} has or would have had on top of its parent, or -1 */
+    private int heightOf(Block block) {
+        if (block.getHash() == null)
+            return -1;
+        int height = chainIndex.getBlockHeight(block.getHash());
+        if (height >= 0 || block.getPrevBlockHash() == null)
+            return height;
+        height = chainIndex.getBlockHeight(block.getPrevBlockHash());
+        return height < 0 ? -1 : height + 1;
+    }
+
+    /**
+     * Checks {@code block} from the cheapest checks to the most expensive ones: its parent, height
+     * and hash, then its proof of work, then its txs, see {@link TxHandler#handleBlockTxs}, so that
+     * a block rejected for free costs nothing.
+     */
+    private Verdict validateAndAdd(Block block, Map<UTXO, PublicKey> preverifiedSignatures) {
         // check whether the block's parent is null
         if (block.getPrevBlockHash() == null) {
-            System.out.println("Error: No parent block !");
-            return (false);
+            return Verdict.reject(Verdict.Reason.NO_PARENT, -1);
         }
-        ByteArrayWrapper prevBlockHashWrap = new ByteArrayWrapper(block.getPrevBlockHash());
+        ByteArrayWrapper prevBlockHashWrap = ByteArrayWrapper.wrap(block.getPrevBlockHash());
         BlockNode parentNode = blockChain.get(prevBlockHashWrap);
         if (parentNode == null){
-            System.out.println("Error: No parent block node !");
-            return (false);
+            return Verdict.reject(Verdict.Reason.UNKNOWN_PARENT, -1);
+        }
+        // check the height of the block's parent
+        if (parentNode.height + 1 <= maxHeightNode.height - CUT_OFF_AGE){
+            return Verdict.reject(Verdict.Reason.TOO_OLD, -1);
+        }
+        if (block.getHash() != null && blockChain.containsKey(ByteArrayWrapper.wrap(block.getHash()))){
+            return Verdict.reject(Verdict.Reason.DUPLICATE, -1);
+        }
+        // the proof of work is cheap to check, the transactions are not
+        if (block.getTargetBits() < targetBits || !block.checkProofOfWork()){
+            return Verdict.reject(Verdict.Reason.INSUFFICIENT_WORK, -1);
+        }
+        // the hash covers the txs only through the Merkle root, which must be the root of the txs held
+        if (!block.checkMerkleRoot()){
+            return Verdict.reject(Verdict.Reason.MERKLE_MISMATCH, -1);
         }
         UTXOPool parentUTXOPool = parentNode.utxoPool;
         // validate txs in block
@@ -127,59 +341,291 @@ public class BlockChain {
         for(int i=0;i<block.getTransactions().size();i++){
             possibleTxs[i] = block.getTransaction(i);
         }
-        TxHandler txHandler = new TxHandler(parentUTXOPool);
-        Transaction[] acceptedTxs = txHandler.handleTxs(possibleTxs);
-        if (acceptedTxs.length < possibleTxs.length){
-            System.out.println("Error: Some Txs in this block are invalid !");
-            return (false);
+        // the signatures of the txs verified when they entered the pool are not checked again
+        TxHandler txHandler = new TxHandler(parentUTXOPool, txPool, preverifiedSignatures);
+        // the txs and the coinbase are applied to a copy of the parent pool in one delta
+        Verdict txsVerdict = txHandler.handleBlockTxs(possibleTxs, block.getCoinbase(), maxBlockCost);
+        if (!txsVerdict.isAccepted()){
+            return txsVerdict;
         }
-        // check the height of the block's parent
-        if (parentNode.height + 1 <= maxHeightNode.height - CUT_OFF_AGE){
-            System.out.println("Error: Height of the block !");
-            return (false);
-        }
-        // get the updated utxoPool from txHandler and add coinbase's output into this utxoPool
         UTXOPool updatedUTXOPool = txHandler.getUTXOPool();
-        for (int i = 0; i < block.getCoinbase().numOutputs(); i++){
-            Transaction.Output output = block.getCoinbase().getOutput(i);
-            UTXO utxo = new UTXO(block.getCoinbase().getHash(),i);
-            updatedUTXOPool.addUTXO(utxo,output);
-        }
         // create this blockNode using this block & parentNode & updatedUTXOPool
         BlockNode blockNode = new BlockNode(block,parentNode,updatedUTXOPool);
+        // a block becoming the max height block takes the txPool with it; a block off the main
+        // chain leaves the txPool alone. The txPool is updated before the block is published, so
+        // a failure there does not leave the chain on a tip its listeners never heard of
+        boolean newTip = blockNode.height > maxHeightNode.height;
+        if (newTip)
+            switchTip(maxHeightNode, blockNode);
         // add this block into the blockChain
         blockChain.put(new ByteArrayWrapper(block.getHash()),blockNode);
-        // update txPool
-        for (Transaction tx: possibleTxs){
-            txPool.removeTransaction(tx.getHash());
-        }
-        // update the maxHeightNode if blockNode's height is greater than maxHeightNode's height
-        if (blockNode.height > maxHeightNode.height){
+        tips.remove(parentNode);
+        tips.add(blockNode);
+        chainIndex.addBlock(block, blockNode.height);
+        if (newTip){
             maxHeightNode = blockNode;
+            for (Runnable listener : tipListeners)
+                listener.run();
         }
         // just keep the recent 16 nodes in memory (NUM_RECENT_NODE=16)
         if (maxHeightNode.height - oldestBlockHeight > NUM_RECENT_NODE){
-            System.out.println("need to cut off some blocks in memory");
+            long pruneStart = System.nanoTime();
+            ChainEvents.Prune event = new ChainEvents.Prune();
+            event.begin();
+            int nodesBefore = blockChain.size();
             Iterator<ByteArrayWrapper> blockHashWrapIter = blockChain.keySet().iterator();
             while(blockHashWrapIter.hasNext()){
                 ByteArrayWrapper nextBlockHashWrap = blockHashWrapIter.next();
                 BlockNode nextBlockNode = blockChain.get(nextBlockHashWrap);
                 if (maxHeightNode.height - nextBlockNode.height > NUM_RECENT_NODE){
                     blockHashWrapIter.remove();
+                    tips.remove(nextBlockNode);
                 }
             }
-            System.out.println("Original oldestBlockHeight is "+oldestBlockHeight);
             oldestBlockHeight = maxHeightNode.height - NUM_RECENT_NODE;
-            System.out.println("After cutting off, new oldestBlockHeight is "+oldestBlockHeight+"\n");
+            event.end();
+            PRUNE.recordSince(pruneStart);
+            if (event.shouldCommit()) {
+                event.nodesBefore = nodesBefore;
+                event.nodesRemoved = nodesBefore - blockChain.size();
+                event.oldestHeight = oldestBlockHeight;
+                event.commit();
+            }
+        }
+        ADDED.increment();
+        return Verdict.ACCEPTED;
+
+
+    }
+
+    /**
+     * Updates the txPool for the move of the tip from {@code oldTip} to {@code newTip}. The txs of
+     * the blocks between the fork point and {@code newTip} leave the pool with every pooled tx
+     * spending the same outputs. The txs of the blocks between the fork point and {@code oldTip}
+     * that the new branch lacks go back to the front of the pool, oldest block first, so parents
+     * stay ahead of their children, unless they spend outputs the new branch does not have; the
+     * pooled txs spending the outputs of those that do not come back are evicted. Takes time in
+     * the txs of the changed blocks and the evicted txs, not in the pool size.
+     */
+    private void switchTip(BlockNode oldTip, BlockNode newTip) {
+        ArrayList<BlockNode> connected = new ArrayList<BlockNode>();
+        ArrayList<BlockNode> disconnected = new ArrayList<BlockNode>();
+        BlockNode fork = lowestCommonAncestor(oldTip, newTip);
+        for (BlockNode b = newTip; b != fork; b = b.parentNode)
+            connected.add(b);
+        for (BlockNode a = oldTip; a != fork; a = a.parentNode)
+            disconnected.add(a);
+
+        HashSet<ByteArrayWrapper> confirmed = new HashSet<ByteArrayWrapper>();
+        // outputs spent by the new branch and outputs the old branch had and the new one lacks
+        ArrayList<UTXO> gone = new ArrayList<UTXO>();
+        for (BlockNode node : connected) {
+            for (Transaction tx : node.block.getTransactions()) {
+                confirmed.add(ByteArrayWrapper.wrap(tx.hashBytes()));
+                txPool.removeTransaction(tx.hashBytes());
+                for (Transaction.Input in : tx.inputs())
+                    gone.add(UTXO.wrap(in.prevTxHash, in.outputIndex));
+            }
+        }
+        ArrayList<Transaction> reinjected = new ArrayList<Transaction>();
+        HashSet<ByteArrayWrapper> reinjectedHashes = new HashSet<ByteArrayWrapper>();
+        for (int i = disconnected.size() - 1; i >= 0; i--) {
+            Block block = disconnected.get(i).block;
+            addOutputs(gone, block.getCoinbase());
+            for (Transaction tx : block.getTransactions()) {
+                ByteArrayWrapper hash = ByteArrayWrapper.wrap(tx.hashBytes());
+                if (confirmed.contains(hash))
+                    continue;
+                boolean spendable = true;
+                for (Transaction.Input in : tx.inputs()) {
+                    UTXO utxo = UTXO.wrap(in.prevTxHash, in.outputIndex);
+                    if (!newTip.utxoPool.contains(utxo) && !reinjectedHashes.contains(ByteArrayWrapper.wrap(in.prevTxHash))) {
+                        spendable = false;
+                        break;
+                    }
+                }
+                if (spendable) {
+                    reinjected.add(tx);
+                    reinjectedHashes.add(hash);
+                } else {
+                    addOutputs(gone, tx);
+                }
+            }
+        }
+        int evicted = txPool.removeSpenders(gone);
+        txPool.addTransactionsFirst(reinjected);
+        if (!disconnected.isEmpty()) {
+            REORGS.increment();
+            REINJECTED.add(reinjected.size());
         }
-        return (true);
+        EVICTED.add(evicted);
+    }
+
+    private static void addOutputs(ArrayList<UTXO> utxos, Transaction tx) {
+        for (int i = 0; i < tx.numOutputs(); i++)
+            utxos.add(UTXO.wrap(tx.hashBytes(), i));
+    }
+
+    /**
+     * @return the block with hash {@code blockHash}, or null if it is unknown or has already been cut
+     *         off from memory
+     */
+    public Block getBlock(byte[] blockHash) {
+        BlockNode node = blockChain.get(ByteArrayWrapper.wrap(blockHash));
+        if (node == null)
+            return null;
+        return node.block;
+    }
+
+    /**
+     * @return the ancestor at {@code height} of the block with hash {@code blockHash}, which is the
+     *         block itself at its own height, or null if the block is unknown or cut off from
+     *         memory or {@code height} is above it; takes O(log n) steps for a branch of n blocks
+     */
+    public Block getAncestor(byte[] blockHash, int height) {
+        BlockNode node = blockChain.get(ByteArrayWrapper.wrap(blockHash));
+        if (node == null)
+            return null;
+        BlockNode ancestor = node.getAncestor(height);
+        return ancestor == null ? null : ancestor.block;
+    }
+
+    /** @return the block at {@code height} on the branch of the max height block, or null above it */
+    public Block getBlockAtHeight(int height) {
+        BlockNode node = maxHeightNode.getAncestor(height);
+        return node == null ? null : node.block;
+    }
+
+    /**
+     * @return the last block both blocks with hashes {@code blockHashA} and {@code blockHashB}
+     *         descend from, e.g. the fork point of two branches, or null if either is unknown or
+     *         cut off from memory; takes O(log n) steps
+     */
+    public Block getLowestCommonAncestor(byte[] blockHashA, byte[] blockHashB) {
+        BlockNode a = blockChain.get(ByteArrayWrapper.wrap(blockHashA));
+        BlockNode b = blockChain.get(ByteArrayWrapper.wrap(blockHashB));
+        if (a == null || b == null)
+            return null;
+        return lowestCommonAncestor(a, b).block;
+    }
+
+    /**
+     * @return the tips of the branches held in memory, best first for fork choice: most chain
+     *         work, then max height, then first added. Kept sorted as blocks are added, so this
+     *         takes time in the number of branches, not of blocks.
+     */
+    public List<Block> getTips() {
+        ArrayList<Block> blocks = new ArrayList<Block>(tips.size());
+        for (BlockNode node : tips)
+            blocks.add(node.block);
+        return blocks;
+    }
+
+    /**
+     * @return the expected number of hashes to mine the branch up to the block with hash
+     *         {@code blockHash}, 2^targetBits per block, or null if it is unknown or cut off from
+     *         memory
+     */
+    public BigInteger getChainWork(byte[] blockHash) {
+        BlockNode node = blockChain.get(ByteArrayWrapper.wrap(blockHash));
+        return node == null ? null : node.chainWork;
+    }
+
+    /**
+     * @return the height of the block with hash {@code blockHash}, also for blocks already cut off
+     *         from memory, or -1 if it was never added
+     */
+    public int getBlockHeight(byte[] blockHash) {
+        return chainIndex.getBlockHeight(blockHash);
+    }
 
+    /**
+     * @return the block and position of the confirmed transaction with hash {@code txHash}, also for
+     *         blocks already cut off from memory, or null if no added block contains it
+     */
+    public ChainIndex.TxLocation findTransaction(byte[] txHash) {
+        return chainIndex.findTransaction(txHash);
+    }
 
+    /**
+     * @return the confirmed transaction with hash {@code txHash}, or null if no added block contains
+     *         it or its block has already been cut off from memory
+     */
+    public Transaction getTransaction(byte[] txHash) {
+        ChainIndex.TxLocation location = chainIndex.findTransaction(txHash);
+        if (location == null)
+            return null;
+        Block block = getBlock(location.getBlockHash());
+        if (block == null)
+            return null;
+        Transaction tx = location.getPosition() < 0 ? block.getCoinbase() : block.getTransaction(location.getPosition());
+        return Arrays.equals(tx.hashBytes(), txHash) ? tx : null;
     }
 
-    /** Add a transaction to the transaction pool */
+    /**
+     * @return a proof that the confirmed transaction with hash {@code txHash} is in its block, or
+     *         null if no added block contains it or its block has already been cut off from memory
+     */
+    public MerkleTree.Proof getInclusionProof(byte[] txHash) {
+        ChainIndex.TxLocation location = chainIndex.findTransaction(txHash);
+        if (location == null)
+            return null;
+        Block block = getBlock(location.getBlockHash());
+        if (block == null)
+            return null;
+        Transaction tx = location.getPosition() < 0 ? block.getCoinbase() : block.getTransaction(location.getPosition());
+        if (!Arrays.equals(tx.hashBytes(), txHash))
+            return null;
+        return block.getInclusionProof(location.getPosition());
+    }
+
+    /**
+     * Add a transaction to the transaction pool. If it is valid on top of the max height block, or
+     * on top of it and of the verified pooled txs whose outputs it spends, it is marked verified and
+     * its signatures are not checked again in a block.
+     */
     public void addTransaction(Transaction tx) {
         // IMPLEMENT THIS
+        submitTransaction(tx);
+    }
+
+    /**
+     * same as {@link #addTransaction}, but tells how {@code tx} was judged
+     *
+     * @return the verdict of {@code tx} on top of the max height block and the verified pooled txs
+     */
+    public Verdict submitTransaction(Transaction tx) {
         txPool.addTransaction(tx);
+        Verdict verdict = new TxHandler(maxHeightNode.utxoPool).validateTx(tx);
+        if (verdict.getReason() == Verdict.Reason.MISSING_INPUT)
+            // the missing outputs may be those of pooled txs not in a block yet
+            verdict = new TxHandler(spentOutputs(tx)).validateTx(tx);
+        // the hash of an unsealed tx must still be the hash of what was just validated
+        if (verdict.isAccepted() && tx.isHashCurrent())
+            txPool.markVerified(tx.hashBytes());
+        return verdict;
+    }
+
+    /**
+     * @return a pool of the outputs {@code tx} spends, taken from the max height block or from the
+     *         verified pooled txs; it only holds as many entries as {@code tx} has inputs
+     */
+    private UTXOPool spentOutputs(Transaction tx) {
+        UTXOPool spent = new UTXOPool();
+        for (Transaction.Input in : tx.inputs()) {
+            if (in.prevTxHash == null)
+                continue;
+            // the pool is dropped with the tx, its keys may share the input hashes
+            UTXO utxo = UTXO.wrap(in.prevTxHash, in.outputIndex);
+            Transaction.Output output = maxHeightNode.utxoPool.getTxOutput(utxo);
+            if (output == null && in.outputIndex >= 0) {
+                Transaction parent = txPool.getTransaction(in.prevTxHash);
+                if (parent != null && txPool.isVerified(parent))
+                    output = parent.getOutput(in.outputIndex);
+            }
+            if (output != null)
+                spent.addUTXO(utxo, output);
+        }
+        return spent;
     }
 }
\ No newline at end of file
@@ -1,12 +1,51 @@
 
 import java.security.PublicKey;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
+/**
+ * Validates the blocks and txs a node receives. Rolling filters remember the hashes of the blocks
+ * recently accepted, and of the blocks and txs rejected for a reason that can never change, see
+ * {@link Verdict#isContextFree}; a tx is accepted while it is verified in the transaction pool. So
+ * a resent block or tx is answered without validating it again. Concurrent submissions of the same
+ * hash share one validation and its verdict.
+ */
 public class BlockHandler {
+    private static final LongAdder SEEN_BLOCKS = Metrics.getDefault().counter("seen_filter_hits_total{kind=\"block\"}");
+    private static final LongAdder SEEN_TXS = Metrics.getDefault().counter("seen_filter_hits_total{kind=\"tx\"}");
+    private static final LongAdder JOINED = Metrics.getDefault().counter("inflight_validations_joined_total");
+    private static final LongAdder COMPACT_FROM_POOL = Metrics.getDefault().counter("compact_block_txs_total{source=\"pool\"}");
+    private static final LongAdder COMPACT_FETCHED = Metrics.getDefault().counter("compact_block_txs_total{source=\"fetched\"}");
+
+    /** gets txs of an announced block from the peer that announced it */
+    public interface TxFetcher {
+        /** @return the txs at {@code positions} of the block with hash {@code blockHash}, in the same order */
+        Transaction[] fetch(byte[] blockHash, int[] positions);
+    }
+
+    /** hashes remembered by each seen filter */
+    static final int SEEN_CAPACITY = 1 << 16;
+
     private BlockChain blockChain;
+    private Miner miner;
+    private final SeenFilter acceptedBlocks = new SeenFilter(SEEN_CAPACITY);
+    private final SeenFilter rejectedBlocks = new SeenFilter(SEEN_CAPACITY);
+    private final SeenFilter rejectedTxs = new SeenFilter(SEEN_CAPACITY);
+    /** validations running, by block or tx hash */
+    private final ConcurrentHashMap<ByteArrayWrapper, CompletableFuture<Verdict>> inFlight = new ConcurrentHashMap<ByteArrayWrapper, CompletableFuture<Verdict>>();
 
     /** assume blockChain has the genesis block */
     public BlockHandler(BlockChain blockChain) {
+        this(blockChain, Miner.getDefault());
+    }
+
+    /** same as {@link #BlockHandler(BlockChain)}, mining the created blocks with {@code miner} */
+    public BlockHandler(BlockChain blockChain, Miner miner) {
         this.blockChain = blockChain;
+        this.miner = miner;
     }
 
     /**
@@ -15,16 +54,74 @@ public class BlockHandler {
      * @return true if the block is valid and has been added, false otherwise
      */
     public boolean processBlock(Block block) {
+        return submitBlock(block).isAccepted();
+    }
+
+    /**
+     * same as {@link #processBlock}, but tells why a block was rejected. A block accepted recently
+     * is a {@code DUPLICATE}, a block rejected recently gets the same verdict again.
+     * 
+     * @return {@code Verdict.ACCEPTED} if the block is valid and has been added, the reason it was
+     *         rejected otherwise
+     */
+    public Verdict submitBlock(Block block) {
         if (block == null)
-            return false;
-        return blockChain.addBlock(block);
+            return Verdict.reject(Verdict.Reason.NULL_BLOCK, -1);
+        Supplier<Verdict> add = () -> {
+            synchronized (blockChain) {
+                return blockChain.tryAddBlock(block);
+            }
+        };
+        if (block.getHash() == null)
+            return add.get();
+        return validateOnce(block.getHash(), this::seenBlock, acceptedBlocks, rejectedBlocks, SEEN_BLOCKS, add);
+    }
+
+    /**
+     * rebuild {@code compact} from the transaction pool, get the txs the pool does not have from
+     * {@code fetcher}, and add the block to the block chain if it is valid. If the rebuilt block
+     * does not match its header, e.g. after a short ID collision, all txs are fetched once.
+     * 
+     * @return {@code Verdict.ACCEPTED} if the block is valid and has been added, the reason it was
+     *         rejected otherwise
+     */
+    public Verdict processCompactBlock(CompactBlock compact, TxFetcher fetcher) {
+        CompactBlock.Reconstruction reconstruction = compact.reconstruct(blockChain.getTransactionPool());
+        Block block = complete(compact, reconstruction, fetcher);
+        if (block == null) {
+            reconstruction = compact.reconstruct(new TransactionPool());
+            block = complete(compact, reconstruction, fetcher);
+        }
+        if (block == null)
+            return Verdict.reject(Verdict.Reason.MERKLE_MISMATCH, -1);
+        return submitBlock(block);
+    }
+
+    private Block complete(CompactBlock compact, CompactBlock.Reconstruction reconstruction, TxFetcher fetcher) {
+        int[] missing = reconstruction.getMissing();
+        Transaction[] fetched = new Transaction[0];
+        if (missing.length > 0)
+            fetched = fetcher.fetch(compact.getBlockHash(), missing);
+        COMPACT_FROM_POOL.add(compact.getNumTransactions() - missing.length);
+        COMPACT_FETCHED.add(missing.length);
+        return reconstruction.complete(fetched);
     }
 
     /** create a new {@code block} over the max height {@code block} */
     public Block createBlock(PublicKey myAddress) {
         Block parent = blockChain.getMaxHeightBlock();
-        byte[] parentHash = parent.getHash();
-        Block current = new Block(parentHash, myAddress);
+        Block current = prepareBlock(myAddress);
+        if (!mine(current, parent))
+            return null;
+        if (blockChain.addBlock(current))
+            return current;
+        else
+            return null;
+    }
+
+    /** @return a block over the max height block of the pool txs valid on it, finalized but not mined */
+    Block prepareBlock(PublicKey myAddress) {
+        Block current = new Block(blockChain.getMaxHeightBlock().getHash(), myAddress);
         UTXOPool uPool = blockChain.getMaxHeightUTXOPool();
         TransactionPool txPool = blockChain.getTransactionPool();
         TxHandler handler = new TxHandler(uPool);
@@ -33,15 +130,127 @@ public class BlockHandler {
         for (int i = 0; i < rTxs.length; i++)
             current.addTransaction(rTxs[i]);
 
+        current.setTimestamp(System.currentTimeMillis());
+        current.setTargetBits(blockChain.getTargetBits());
         current.finalize();
-        if (blockChain.addBlock(current))
-            return current;
-        else
-            return null;
+        return current;
+    }
+
+    /**
+     * searches a nonce for {@code block}, made by {@link #prepareBlock}, on the miner threads, giving
+     * up as soon as the max height block changes. Call it on the thread that adds blocks, before the
+     * max height block can change, and add the block once mined; the calling thread is not held.
+     *
+     * @return a future of true if the block now meets its target
+     */
+    CompletableFuture<Boolean> mineAsync(Block block) {
+        Miner.Job job = miner.start(block);
+        Runnable cancel = job::cancel;
+        blockChain.addTipListener(cancel);
+        return job.toFuture().whenComplete((found, e) -> blockChain.removeTipListener(cancel));
+    }
+
+    /**
+     * searches a nonce for {@code block}, giving up as soon as the max height block is no longer
+     * {@code parent}
+     * 
+     * @return true if the block now meets its target
+     */
+    private boolean mine(Block block, Block parent) {
+        Miner.Job job = miner.start(block);
+        Runnable cancel = job::cancel;
+        blockChain.addTipListener(cancel);
+        try {
+            // the tip may have changed before the listener was added
+            if (blockChain.getMaxHeightBlock() != parent)
+                job.cancel();
+            return job.await();
+        } catch (InterruptedException e) {
+            job.cancel();
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            blockChain.removeTipListener(cancel);
+        }
     }
 
     /** process a {@code Transaction} */
     public void processTx(Transaction tx) {
-        blockChain.addTransaction(tx);
+        submitTx(tx);
+    }
+
+    /**
+     * same as {@link #processTx}, but tells how {@code tx} was judged, see
+     * {@link BlockChain#submitTransaction}. A tx verified in the pool is accepted again without being
+     * pooled twice, a tx rejected recently gets the same verdict again.
+     */
+    public Verdict submitTx(Transaction tx) {
+        Supplier<Verdict> add = () -> {
+            synchronized (blockChain) {
+                return blockChain.submitTransaction(tx);
+            }
+        };
+        if (tx.hashBytes() == null)
+            return add.get();
+        return validateOnce(tx.hashBytes(), this::seenTx, null, rejectedTxs, SEEN_TXS, add);
+    }
+
+    /**
+     * @return the verdict {@code seen} knows for {@code hash}, otherwise the verdict of
+     *         {@code validation}, which is run once for all the threads asking for the same hash at
+     *         the same time and then recorded in {@code accepted}, if not null, or {@code rejected}
+     */
+    private Verdict validateOnce(byte[] hash, Function<byte[], Verdict> seen, SeenFilter accepted,
+            SeenFilter rejected, LongAdder hits, Supplier<Verdict> validation) {
+        Verdict known = seen.apply(hash);
+        if (known != null) {
+            hits.increment();
+            return known;
+        }
+        ByteArrayWrapper key = new ByteArrayWrapper(hash);
+        CompletableFuture<Verdict> mine = new CompletableFuture<Verdict>();
+        CompletableFuture<Verdict> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            JOINED.increment();
+            return running.join();
+        }
+        try {
+            // a validation of the same hash may have ended since the first look
+            Verdict verdict = seen.apply(hash);
+            if (verdict != null) {
+                hits.increment();
+                mine.complete(verdict);
+                return verdict;
+            }
+            verdict = validation.get();
+            // recorded before the validation leaves inFlight, so a later caller finds one or the other
+            if (verdict.isAccepted() && accepted != null)
+                accepted.put(hash, verdict);
+            else if (verdict.isContextFree())
+                rejected.put(hash, verdict);
+            mine.complete(verdict);
+            return verdict;
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key);
+        }
+    }
+
+    /** @return {@code DUPLICATE} for a block accepted recently, the verdict of one rejected recently, or null */
+    private Verdict seenBlock(byte[] hash) {
+        if (acceptedBlocks.get(hash) != null)
+            return Verdict.reject(Verdict.Reason.DUPLICATE, -1);
+        return rejectedBlocks.get(hash);
+    }
+
+    /** @return {@code ACCEPTED} for a tx verified in the pool, the verdict of one rejected recently, or null */
+    private Verdict seenTx(byte[] hash) {
+        synchronized (blockChain) {
+            if (blockChain.getTransactionPool().isVerified(hash))
+                return Verdict.ACCEPTED;
+        }
+        return rejectedTxs.get(hash);
     }
 }
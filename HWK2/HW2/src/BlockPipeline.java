@@ -0,0 +1,240 @@
+import java.io.Closeable;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Adds a stream of blocks, e.g. from a sync, to a block chain in three overlapping stages:
+ * <ol>
+ * <li>prepare, one thread: computes the signed data of every input and looks up the key of the
+ * output it spends, in the blocks still in the pipeline or in the chain state as of the last
+ * applied block;</li>
+ * <li>verify, a pool of threads: checks those signatures in parallel;</li>
+ * <li>apply, one thread: adds the blocks with {@link BlockChain#tryAddBlock}, in submission order.</li>
+ * </ol>
+ * While block n is applied, block n+1 is being verified and block n+2 prepared. The apply stage
+ * checks every rule as {@code tryAddBlock} always does and only skips the signatures found valid
+ * for the very key the input spends, checking the others itself, so a wrong lookup in the earlier
+ * stages costs time but never changes a verdict: the final state is the same as adding the blocks
+ * one after the other.
+ * <p>
+ * The queues between the stages are bounded, so {@link #submit} blocks while the pipeline is full.
+ * The block chain must not be used by other threads until the submitted blocks are done.
+ */
+public class BlockPipeline implements Closeable {
+
+    private static final LatencyHistogram PREPARE = Metrics.getDefault().histogram("block_pipeline_seconds{stage=\"prepare\"}");
+    private static final LatencyHistogram VERIFY = Metrics.getDefault().histogram("block_pipeline_seconds{stage=\"verify\"}");
+    private static final LatencyHistogram APPLY = Metrics.getDefault().histogram("block_pipeline_seconds{stage=\"apply\"}");
+
+    /** inputs verified by one task of the verify stage */
+    private static final int VERIFY_BATCH = 64;
+
+    private static final Job STOP = new Job(null);
+
+    private final BlockChain blockChain;
+    private final BlockingQueue<Job> prepareQueue;
+    private final BlockingQueue<Job> applyQueue;
+    private final ExecutorService verifiers;
+    private final Thread preparer;
+    private final Thread applier;
+    /** txs of the blocks between the prepare and the end of the apply stage, by hash */
+    private final ConcurrentHashMap<ByteArrayWrapper, Transaction> inFlight = new ConcurrentHashMap<ByteArrayWrapper, Transaction>();
+    /** the UTXOs of the max height block as of the last applied block */
+    private volatile UTXOSnapshot appliedUTXOs;
+    private volatile boolean open = true;
+
+    /** a pipeline with one verify thread per core and room for 4 blocks per stage */
+    public BlockPipeline(BlockChain blockChain) {
+        this(blockChain, Runtime.getRuntime().availableProcessors(), 4);
+    }
+
+    public BlockPipeline(BlockChain blockChain, int verifyThreads, int queueCapacity) {
+        this.blockChain = blockChain;
+        prepareQueue = new ArrayBlockingQueue<Job>(queueCapacity);
+        applyQueue = new ArrayBlockingQueue<Job>(queueCapacity);
+        verifiers = Executors.newFixedThreadPool(verifyThreads, r -> {
+            Thread t = new Thread(r, "block-verify");
+            t.setDaemon(true);
+            return t;
+        });
+        appliedUTXOs = blockChain.getMaxHeightUTXOPool().snapshot();
+        preparer = new Thread(this::prepareLoop, "block-prepare");
+        applier = new Thread(this::applyLoop, "block-apply");
+        preparer.setDaemon(true);
+        applier.setDaemon(true);
+        preparer.start();
+        applier.start();
+    }
+
+    /**
+     * Queues {@code block}, waiting while the pipeline is full.
+     *
+     * @return a future of the verdict {@link BlockChain#tryAddBlock} gives the block
+     */
+    public CompletableFuture<Verdict> submit(Block block) throws InterruptedException {
+        if (!open)
+            throw new IllegalStateException("pipeline closed");
+        if (block == null)
+            return CompletableFuture.completedFuture(Verdict.reject(Verdict.Reason.NULL_BLOCK, -1));
+        Job job = new Job(block);
+        prepareQueue.put(job);
+        return job.verdict;
+    }
+
+    /** Lets the submitted blocks through and stops the stages */
+    public void close() {
+        if (!open)
+            return;
+        open = false;
+        try {
+            prepareQueue.put(STOP);
+            preparer.join();
+            applier.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            verifiers.shutdown();
+        }
+    }
+
+    private static class Job {
+        final Block block;
+        final CompletableFuture<Verdict> verdict = new CompletableFuture<Verdict>();
+        /** the key each signature was found valid for, by UTXO(tx hash, input index) */
+        final ConcurrentHashMap<UTXO, PublicKey> preverified = new ConcurrentHashMap<UTXO, PublicKey>();
+        CompletableFuture<Void> verified;
+
+        Job(Block block) {
+            this.block = block;
+        }
+    }
+
+    /** one input whose signature the verify stage checks */
+    private static class Check {
+        final UTXO input;
+        final byte[] message;
+        final byte[] signature;
+        final PublicKey key;
+
+        Check(UTXO input, byte[] message, byte[] signature, PublicKey key) {
+            this.input = input;
+            this.message = message;
+            this.signature = signature;
+            this.key = key;
+        }
+    }
+
+    private void prepareLoop() {
+        try {
+            while (true) {
+                Job job = prepareQueue.take();
+                if (job == STOP) {
+                    applyQueue.put(STOP);
+                    return;
+                }
+                long start = System.nanoTime();
+                ArrayList<Check> checks = prepare(job.block);
+                PREPARE.recordSince(start);
+                job.verified = verify(job, checks);
+                applyQueue.put(job);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** @return the signature checks of the txs of {@code block} whose spent output could be found */
+    private ArrayList<Check> prepare(Block block) {
+        ArrayList<Check> checks = new ArrayList<Check>();
+        if (block.getHash() == null)
+            return checks;
+        inFlight.put(ByteArrayWrapper.wrap(block.getCoinbase().hashBytes()), block.getCoinbase());
+        for (Transaction tx : block.getTransactions()) {
+            if (tx.hashBytes() == null)
+                continue;
+            inFlight.put(ByteArrayWrapper.wrap(tx.hashBytes()), tx);
+            for (int i = 0; i < tx.numInputs(); i++) {
+                Transaction.Input in = tx.input(i);
+                if (in.prevTxHash == null || in.signature == null)
+                    continue;
+                PublicKey key = lookUpKey(in);
+                if (key != null)
+                    checks.add(new Check(UTXO.wrap(tx.hashBytes(), i), tx.getRawDataToSign(i), in.signature, key));
+            }
+        }
+        return checks;
+    }
+
+    /** @return the key of the output {@code in} spends, or null if it cannot be found */
+    private PublicKey lookUpKey(Transaction.Input in) {
+        Transaction prevTx = inFlight.get(ByteArrayWrapper.wrap(in.prevTxHash));
+        if (prevTx != null) {
+            if (in.outputIndex < 0 || in.outputIndex >= prevTx.numOutputs())
+                return null;
+            return prevTx.getOutput(in.outputIndex).address;
+        }
+        Transaction.Output output = appliedUTXOs.getTxOutput(UTXO.wrap(in.prevTxHash, in.outputIndex));
+        return output == null ? null : output.address;
+    }
+
+    /** @return a future completed once every check has run on the verify threads */
+    private CompletableFuture<Void> verify(Job job, ArrayList<Check> checks) {
+        long start = System.nanoTime();
+        ArrayList<CompletableFuture<Void>> batches = new ArrayList<CompletableFuture<Void>>();
+        for (int from = 0; from < checks.size(); from += VERIFY_BATCH) {
+            int to = Math.min(from + VERIFY_BATCH, checks.size());
+            int first = from;
+            batches.add(CompletableFuture.runAsync(() -> {
+                for (Check check : checks.subList(first, to)) {
+                    if (Crypto.verifySignature(check.key, check.message, check.signature))
+                        job.preverified.put(check.input, check.key);
+                }
+            }, verifiers));
+        }
+        return CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0]))
+                .whenComplete((v, e) -> VERIFY.recordSince(start));
+    }
+
+    private void applyLoop() {
+        try {
+            while (true) {
+                Job job = applyQueue.take();
+                if (job == STOP)
+                    return;
+                job.verified.join();
+                long start = System.nanoTime();
+                Verdict verdict;
+                try {
+                    verdict = blockChain.tryAddBlock(job.block, job.preverified);
+                    appliedUTXOs = blockChain.getMaxHeightUTXOPool().snapshot();
+                } catch (RuntimeException e) {
+                    job.verdict.completeExceptionally(e);
+                    continue;
+                } finally {
+                    forget(job.block);
+                    APPLY.recordSince(start);
+                }
+                job.verdict.complete(verdict);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** drops the txs of an applied {@code block} from {@link #inFlight}, they are in the chain state now */
+    private void forget(Block block) {
+        if (block.getHash() == null)
+            return;
+        inFlight.remove(ByteArrayWrapper.wrap(block.getCoinbase().hashBytes()));
+        for (Transaction tx : block.getTransactions()) {
+            if (tx.hashBytes() != null)
+                inFlight.remove(ByteArrayWrapper.wrap(tx.hashBytes()));
+        }
+    }
+}
@@ -0,0 +1,48 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Free list of direct buffers of one size. Direct buffers are expensive to allocate and are
+ * reclaimed only by the GC, so the peer layer reuses them for all its socket reads and writes. A
+ * pool belongs to one selector thread and is not thread-safe.
+ */
+class BufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+    private int allocated;
+
+    /** keeps up to {@code maxPooled} released buffers of {@code bufferSize} bytes */
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    /** @return a cleared buffer */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = free.pollFirst();
+        if (buffer == null) {
+            allocated++;
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /** gives {@code buffer} back; buffers that were not acquired here are ignored */
+    void release(ByteBuffer buffer) {
+        if (!buffer.isDirect() || buffer.capacity() != bufferSize || free.size() >= maxPooled)
+            return;
+        free.addFirst(buffer);
+    }
+
+    /** @return the number of buffers allocated so far, pooled or in use */
+    int getAllocated() {
+        return allocated;
+    }
+}
@@ -4,12 +4,30 @@ import java.util.Arrays;
 /** a wrapper for byte array with hashCode and equals function implemented */
 public class ByteArrayWrapper {
 
-    private byte[] contents;
+    private final byte[] contents;
+    /** cached, block and transaction hashes are looked up far more often than they are created */
+    private final int hash;
 
     public ByteArrayWrapper(byte[] b) {
-        contents = new byte[b.length];
-        for (int i = 0; i < contents.length; i++)
-            contents[i] = b[i];
+        this(b, true);
+    }
+
+    private ByteArrayWrapper(byte[] b, boolean copy) {
+        contents = copy ? b.clone() : b;
+        hash = UTXO.digestHashCode(contents);
+    }
+
+    /**
+     * wraps {@code b} without copying it; only for arrays that are never modified afterwards, e.g.
+     * a finalized transaction hash or a short-lived lookup key
+     */
+    static ByteArrayWrapper wrap(byte[] b) {
+        return new ByteArrayWrapper(b, false);
+    }
+
+    /** @return a copy of the wrapped array */
+    byte[] toByteArray() {
+        return contents.clone();
     }
 
     public boolean equals(Object other) {
@@ -21,27 +39,12 @@ public class ByteArrayWrapper {
         }
 
         ByteArrayWrapper otherB = (ByteArrayWrapper) other;
-        byte[] b = otherB.contents;
-        if (contents == null) {
-            if (b == null)
-                return true;
-            else
-                return false;
-        } else {
-            if (b == null)
-                return false;
-            else {
-                if (contents.length != b.length)
-                    return false;
-                for (int i = 0; i < b.length; i++)
-                    if (contents[i] != b[i])
-                        return false;
-                return true;
-            }
-        }
+        if (hash != otherB.hash)
+            return false;
+        return Arrays.equals(contents, otherB.contents);
     }
 
     public int hashCode() {
-        return Arrays.hashCode(contents);
+        return hash;
     }
 }
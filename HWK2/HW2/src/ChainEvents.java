@@ -0,0 +1,114 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events of the validation pipeline, so that validation stalls can be lined up
+ * with GC and allocation events of the same recording. Without a recording, or below the threshold
+ * of an event, {@code shouldCommit()} is false and the payload is never computed; the event objects
+ * themselves do not escape and are scalar-replaced by the JIT.
+ */
+final class ChainEvents {
+
+    private ChainEvents() {
+    }
+
+    @Name("phbs.BlockAdd")
+    @Label("Add Block")
+    @Description("BlockChain.addBlock of one block, accepted or not")
+    @Category({ "PHBS Block Chain" })
+    @Threshold("10 ms")
+    @StackTrace(false)
+    static final class BlockAdd extends Event {
+        @Label("Block Hash")
+        String blockHash;
+        @Label("Height")
+        @Description("height the block has or would have had, -1 if its parent is unknown")
+        int height;
+        @Label("Transactions")
+        int txCount;
+        @Label("Outcome")
+        @Description("accepted, or the reason of the rejection")
+        String outcome;
+    }
+
+    @Name("phbs.TxEpoch")
+    @Label("Handle Transactions")
+    @Description("TxHandler.handleTxs of one epoch, or the transactions of one block")
+    @Category({ "PHBS Block Chain" })
+    @Threshold("10 ms")
+    @StackTrace(false)
+    static final class TxEpoch extends Event {
+        @Label("Candidates")
+        int candidates;
+        @Label("Accepted")
+        int accepted;
+        @Label("Fail Fast")
+        @Description("true for the transactions of a block, which stop at the first invalid one")
+        boolean failFast;
+    }
+
+    @Name("phbs.SignatureBatch")
+    @Label("Verify Signatures")
+    @Description("Crypto.verifySignature calls of one TxHandler epoch")
+    @Category({ "PHBS Block Chain" })
+    @Threshold("10 ms")
+    @StackTrace(false)
+    static final class SignatureBatch extends Event {
+        @Label("Signatures")
+        int signatures;
+        @Label("Invalid")
+        int invalid;
+        @Label("Verify Time")
+        @Description("time spent in Crypto.verifySignature, the rest of the event is lookups and pool updates")
+        @Timespan(Timespan.NANOSECONDS)
+        long verifyTime;
+    }
+
+    @Name("phbs.UTXOPoolCopy")
+    @Label("Copy UTXO Pool")
+    @Description("copy of a shared UTXOPool on its first modification")
+    @Category({ "PHBS Block Chain" })
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static final class UTXOPoolCopy extends Event {
+        @Label("Entries")
+        int entries;
+        @Label("Addresses")
+        int addresses;
+    }
+
+    @Name("phbs.Prune")
+    @Label("Prune Block Nodes")
+    @Description("removal of the block nodes too far below the max height")
+    @Category({ "PHBS Block Chain" })
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static final class Prune extends Event {
+        @Label("Retained Before")
+        int nodesBefore;
+        @Label("Removed")
+        int nodesRemoved;
+        @Label("Oldest Height")
+        int oldestHeight;
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** @return {@code bytes} in lower case hex, or null */
+    static String hex(byte[] bytes) {
+        if (bytes == null)
+            return null;
+        char[] chars = new char[2 * bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
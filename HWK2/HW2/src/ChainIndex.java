@@ -0,0 +1,197 @@
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Lookup index of every block and transaction that was ever added to the block chain. Unlike the
+ * {@code BlockNode}s it is never pruned, so heights and "which block contains tx X" stay
+ * answerable for the whole history.
+ *
+ * <p>
+ * To stay small the index only keeps primitive arrays: blocks and transactions are numbered in
+ * insertion order and their full hashes are stored by that number, with the height of each block
+ * and the (block number, position in block) of each transaction. Both are found through the first
+ * 8 bytes of their hash; entries sharing that prefix sit side by side and are told apart by the
+ * full hash. The coinbase of a block is reported at position -1.
+ */
+public class ChainIndex {
+
+    /** where a confirmed transaction was found */
+    public static class TxLocation {
+        private final byte[] blockHash;
+        private final int height;
+        private final int position;
+
+        private TxLocation(byte[] blockHash, int height, int position) {
+            this.blockHash = blockHash;
+            this.height = height;
+            this.position = position;
+        }
+
+        /** @return the hash of the block containing the transaction */
+        public byte[] getBlockHash() {
+            return blockHash.clone();
+        }
+
+        /** @return the height of the block containing the transaction */
+        public int getHeight() {
+            return height;
+        }
+
+        /** @return the index of the transaction in the block, or -1 for its coinbase */
+        public int getPosition() {
+            return position;
+        }
+    }
+
+    /**
+     * open addressing map from a hash prefix to non-negative ints, with linear probing; the caller
+     * tells which of the values stored under a prefix it wants. Slots are empty when their stored
+     * value is 0, so values are kept shifted by one.
+     */
+    private static class PrefixTable {
+        private long[] keys;
+        private int[] values;
+        private int size;
+
+        private PrefixTable(int capacity) {
+            keys = new long[capacity];
+            values = new int[capacity];
+        }
+
+        /** @return the value under {@code key} for which {@code matches} holds, or -1 */
+        private int get(long key, IntPredicate matches) {
+            int mask = keys.length - 1;
+            for (int i = mix(key) & mask; values[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == key && matches.test(values[i] - 1))
+                    return values[i] - 1;
+            }
+            return -1;
+        }
+
+        /** Stores {@code value} under {@code key}, replacing the value for which {@code matches} holds */
+        private void put(long key, int value, IntPredicate matches) {
+            if ((size + 1) * 3 > keys.length * 2)
+                resize();
+            int mask = keys.length - 1;
+            int i = mix(key) & mask;
+            while (values[i] != 0 && !(keys[i] == key && matches.test(values[i] - 1)))
+                i = (i + 1) & mask;
+            if (values[i] == 0)
+                size++;
+            keys[i] = key;
+            values[i] = value + 1;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new int[oldValues.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != 0)
+                    put(oldKeys[i], oldValues[i] - 1, v -> false);
+            }
+        }
+
+        private static int mix(long key) {
+            return (int) (key ^ (key >>> 32));
+        }
+    }
+
+    private static final int HASH_LEN = 32;
+
+    private final PrefixTable blocksByPrefix = new PrefixTable(64);
+    /** full hash of block number i at [i * HASH_LEN, (i + 1) * HASH_LEN) */
+    private byte[] blockHashes = new byte[32 * HASH_LEN];
+    private int[] blockHeights = new int[32];
+    private int numBlocks;
+
+    private final PrefixTable txsByPrefix = new PrefixTable(256);
+    /** full hash of tx number i at [i * HASH_LEN, (i + 1) * HASH_LEN) */
+    private byte[] txHashes = new byte[128 * HASH_LEN];
+    private int[] txBlocks = new int[128];
+    private int[] txPositions = new int[128];
+    private int numTxs;
+
+    /** Indexes {@code block}, found at {@code height}, together with all of its transactions */
+    public void addBlock(Block block, int height) {
+        byte[] blockHash = block.getHash();
+        if (getBlockHeight(blockHash) >= 0)
+            return;
+        int blockNum = numBlocks++;
+        if (blockNum == blockHeights.length) {
+            blockHeights = Arrays.copyOf(blockHeights, blockNum * 2);
+            blockHashes = Arrays.copyOf(blockHashes, blockNum * 2 * HASH_LEN);
+        }
+        System.arraycopy(blockHash, 0, blockHashes, blockNum * HASH_LEN, HASH_LEN);
+        blockHeights[blockNum] = height;
+        blocksByPrefix.put(prefix(blockHash), blockNum, v -> false);
+
+        addTx(block.getCoinbase().hashBytes(), blockNum, -1);
+        for (int i = 0; i < block.getTransactions().size(); i++)
+            addTx(block.getTransaction(i).hashBytes(), blockNum, i);
+    }
+
+    /**
+     * A transaction included by several blocks (e.g. on competing branches) is reported at the one
+     * added last.
+     */
+    private void addTx(byte[] txHash, int blockNum, int position) {
+        int txNum = numTxs++;
+        if (txNum == txBlocks.length) {
+            txBlocks = Arrays.copyOf(txBlocks, txNum * 2);
+            txPositions = Arrays.copyOf(txPositions, txNum * 2);
+            txHashes = Arrays.copyOf(txHashes, txNum * 2 * HASH_LEN);
+        }
+        System.arraycopy(txHash, 0, txHashes, txNum * HASH_LEN, HASH_LEN);
+        txBlocks[txNum] = blockNum;
+        txPositions[txNum] = position;
+        txsByPrefix.put(prefix(txHash), txNum, t -> hashEquals(txHashes, t, txHash));
+    }
+
+    /** @return the height of the block with hash {@code blockHash}, or -1 if it was never added */
+    public int getBlockHeight(byte[] blockHash) {
+        int blockNum = blocksByPrefix.get(prefix(blockHash), b -> hashEquals(blockHashes, b, blockHash));
+        if (blockNum < 0)
+            return -1;
+        return blockHeights[blockNum];
+    }
+
+    /**
+     * @return the block and position of the transaction with hash {@code txHash}, or null if no
+     *         added block contains it
+     */
+    public TxLocation findTransaction(byte[] txHash) {
+        int txNum = txsByPrefix.get(prefix(txHash), t -> hashEquals(txHashes, t, txHash));
+        if (txNum < 0)
+            return null;
+        int blockNum = txBlocks[txNum];
+        byte[] blockHash = Arrays.copyOfRange(blockHashes, blockNum * HASH_LEN, (blockNum + 1) * HASH_LEN);
+        return new TxLocation(blockHash, blockHeights[blockNum], txPositions[txNum]);
+    }
+
+    /** @return the number of blocks indexed so far */
+    public int getNumBlocks() {
+        return numBlocks;
+    }
+
+    /** @return the number of transactions, coinbases included, indexed so far */
+    public int getNumTransactions() {
+        return numTxs;
+    }
+
+    /** @return true if {@code hash} is hash number {@code num} of {@code hashes} */
+    private static boolean hashEquals(byte[] hashes, int num, byte[] hash) {
+        int from = num * HASH_LEN;
+        return hash.length == HASH_LEN && Arrays.equals(hashes, from, from + HASH_LEN, hash, 0, HASH_LEN);
+    }
+
+    /** the first 8 bytes of a SHA-256 hash, big-endian */
+    private static long prefix(byte[] hash) {
+        long p = 0;
+        for (int i = 0; i < 8 && i < hash.length; i++)
+            p = (p << 8) | (hash[i] & 0xff);
+        return p;
+    }
+}
@@ -0,0 +1,198 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A block as relayed to a peer that probably has most of its txs already: the header, the coinbase
+ * and a short ID per tx instead of the tx itself. A short ID is the first 6 bytes of
+ * SHA-256(salt || tx hash); the salt is chosen per compact block, so nobody can make txs whose IDs
+ * collide for every peer.
+ */
+public class CompactBlock {
+
+    /** bytes of a short ID */
+    public static final int SHORT_ID_SIZE = 6;
+
+    private final byte[] blockHash;
+    private final byte[] prevBlockHash;
+    private final byte[] merkleRoot;
+    private final long timestamp;
+    private final int targetBits;
+    private final long nonce;
+    private final Transaction coinbase;
+    private final long salt;
+    private final long[] shortIds;
+
+    /** compact form of the finalized {@code block} with a random salt */
+    public CompactBlock(Block block) {
+        this(block, ThreadLocalRandom.current().nextLong());
+    }
+
+    public CompactBlock(Block block, long salt) {
+        this(block.getHash(), block.getPrevBlockHash(), block.getMerkleRoot(), block.getTimestamp(),
+                block.getTargetBits(), block.getNonce(), block.getCoinbase(), salt, shortIds(block, salt));
+    }
+
+    /** a compact block as received from a peer */
+    CompactBlock(byte[] blockHash, byte[] prevBlockHash, byte[] merkleRoot, long timestamp, int targetBits,
+            long nonce, Transaction coinbase, long salt, long[] shortIds) {
+        this.blockHash = blockHash;
+        this.prevBlockHash = prevBlockHash;
+        this.merkleRoot = merkleRoot;
+        this.timestamp = timestamp;
+        this.targetBits = targetBits;
+        this.nonce = nonce;
+        this.coinbase = coinbase;
+        this.salt = salt;
+        this.shortIds = shortIds;
+    }
+
+    private static long[] shortIds(Block block, long salt) {
+        MessageDigest md = sha256();
+        long[] ids = new long[block.getTransactions().size()];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = shortId(md, salt, block.getTransaction(i).hashBytes());
+        return ids;
+    }
+
+    /** @return the short ID of the tx with hash {@code txHash} under {@code salt} */
+    static long shortId(MessageDigest md, long salt, byte[] txHash) {
+        md.update(ByteBuffer.allocate(Long.BYTES).putLong(salt).array());
+        md.update(txHash);
+        byte[] digest = md.digest();
+        long id = 0;
+        for (int i = 0; i < SHORT_ID_SIZE; i++)
+            id = (id << 8) | (digest[i] & 0xff);
+        return id;
+    }
+
+    public byte[] getBlockHash() {
+        return blockHash;
+    }
+
+    public byte[] getPrevBlockHash() {
+        return prevBlockHash;
+    }
+
+    public byte[] getMerkleRoot() {
+        return merkleRoot;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getTargetBits() {
+        return targetBits;
+    }
+
+    public long getNonce() {
+        return nonce;
+    }
+
+    public Transaction getCoinbase() {
+        return coinbase;
+    }
+
+    public long getSalt() {
+        return salt;
+    }
+
+    /** @return the number of txs of the block, the coinbase aside */
+    public int getNumTransactions() {
+        return shortIds.length;
+    }
+
+    /** @return the short ID of the tx at {@code position}, in its lower 48 bits */
+    public long getShortId(int position) {
+        return shortIds[position];
+    }
+
+    /**
+     * Matches the short IDs against the txs of {@code txPool}. An ID matching several pool txs is
+     * left missing rather than guessed.
+     */
+    public Reconstruction reconstruct(TransactionPool txPool) {
+        HashMap<Long, Integer> positions = new HashMap<Long, Integer>(2 * shortIds.length);
+        for (int i = 0; i < shortIds.length; i++)
+            positions.put(shortIds[i], i);
+        Transaction[] txs = new Transaction[shortIds.length];
+        boolean[] ambiguous = new boolean[shortIds.length];
+        MessageDigest md = sha256();
+        for (Transaction tx : txPool.getTransactions()) {
+            Integer position = positions.get(shortId(md, salt, tx.hashBytes()));
+            if (position == null)
+                continue;
+            if (txs[position] != null)
+                ambiguous[position] = true;
+            txs[position] = tx;
+        }
+        for (int i = 0; i < txs.length; i++) {
+            if (ambiguous[i])
+                txs[i] = null;
+        }
+        return new Reconstruction(txs);
+    }
+
+    /** The txs of a compact block found in the local pool, and the positions still missing */
+    public class Reconstruction {
+        private final Transaction[] txs;
+        private final int[] missing;
+
+        private Reconstruction(Transaction[] txs) {
+            this.txs = txs;
+            ArrayList<Integer> missing = new ArrayList<Integer>();
+            for (int i = 0; i < txs.length; i++) {
+                if (txs[i] == null)
+                    missing.add(i);
+            }
+            this.missing = new int[missing.size()];
+            for (int i = 0; i < this.missing.length; i++)
+                this.missing[i] = missing.get(i);
+        }
+
+        /** @return the positions of the txs to fetch from the peer, in increasing order */
+        public int[] getMissing() {
+            return missing.clone();
+        }
+
+        /**
+         * Builds the block from the pool txs and {@code fetched}, the txs at the positions of
+         * {@link #getMissing()} in the same order.
+         *
+         * @return the block, or null if it does not match the Merkle root and hash of the header,
+         *         e.g. because a short ID matched the wrong pool tx
+         */
+        public Block complete(Transaction[] fetched) {
+            if (fetched.length != missing.length)
+                throw new IllegalArgumentException(missing.length + " txs missing, got " + fetched.length);
+            Block block = new Block(prevBlockHash, coinbase);
+            int next = 0;
+            for (int i = 0; i < txs.length; i++) {
+                if (next < missing.length && missing[next] == i)
+                    block.addTransaction(fetched[next++]);
+                else
+                    block.addTransaction(txs[i]);
+            }
+            block.setTimestamp(timestamp);
+            block.setTargetBits(targetBits);
+            block.finalize();
+            block.setNonce(nonce);
+            if (!MessageDigest.isEqual(block.getMerkleRoot(), merkleRoot)
+                    || !MessageDigest.isEqual(block.getHash(), blockHash))
+                return null;
+            return block;
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds. Bucket i counts the durations below 2^i ns that
+ * did not fit in bucket i - 1, so recording is one leading-zero count and one atomic increment.
+ */
+public class LatencyHistogram {
+
+    /** the first bucket holds everything below 2^MIN_SHIFT ns (~1us) */
+    private static final int MIN_SHIFT = 10;
+    /** the last finite bucket holds everything below 2^MAX_SHIFT ns (~69s) */
+    private static final int MAX_SHIFT = 36;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(MAX_SHIFT - MIN_SHIFT + 2);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+
+    /** Records one duration of {@code nanos} nanoseconds */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        int shift = 64 - Long.numberOfLeadingZeros(nanos);
+        int bucket;
+        if (shift <= MIN_SHIFT)
+            bucket = 0;
+        else if (shift > MAX_SHIFT)
+            bucket = buckets.length() - 1;
+        else
+            bucket = shift - MIN_SHIFT;
+        buckets.incrementAndGet(bucket);
+        count.increment();
+        sumNanos.add(nanos);
+    }
+
+    /** Records the time elapsed since {@code startNanos}, a value of {@code System.nanoTime()} */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSumNanos() {
+        return sumNanos.sum();
+    }
+
+    /** @return the number of buckets, the last one being unbounded */
+    int numBuckets() {
+        return buckets.length();
+    }
+
+    /** @return the exclusive upper bound of bucket {@code i} in ns, or -1 for the unbounded bucket */
+    long upperBoundNanos(int i) {
+        if (i == buckets.length() - 1)
+            return -1;
+        return 1L << (i + MIN_SHIFT);
+    }
+
+    long bucketCount(int i) {
+        return buckets.get(i);
+    }
+}
@@ -0,0 +1,255 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Merkle tree over transaction hashes. A leaf is SHA-256(0x00 || tx hash) and an inner node
+ * SHA-256(0x01 || left || right), so that a leaf can never pass for a node; the last node of a level
+ * with an odd number of nodes moves up unchanged.
+ * <p>
+ * Every level is kept, and changing leaves only rehashes their paths to the root on the next
+ * {@link #getRoot()}. Building a big tree from scratch hashes each level with fork/join.
+ */
+public class MerkleTree {
+
+    /** nodes of a level below which hashing is not split between threads */
+    private static final int PARALLEL_THRESHOLD = 512;
+
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+
+    /** the tx hashes the leaves were computed from, compared by reference first */
+    private final ArrayList<byte[]> txHashes = new ArrayList<byte[]>();
+    /** levels.get(0) are the leaves, the last level is the root; empty until the first root */
+    private final ArrayList<byte[][]> levels = new ArrayList<byte[][]>();
+    /** leaves whose tx hash changed since the last root */
+    private final BitSet dirty = new BitSet();
+    private boolean resized;
+
+    /** @return the number of leaves */
+    public int size() {
+        return txHashes.size();
+    }
+
+    /** Sets leaf {@code index}, an index equal to {@link #size()} appends a leaf */
+    public void set(int index, byte[] txHash) {
+        if (txHash == null)
+            throw new IllegalArgumentException("leaf " + index + " has no hash, finalize the transaction first");
+        if (index == txHashes.size()) {
+            txHashes.add(txHash);
+            resized = true;
+        } else {
+            byte[] old = txHashes.get(index);
+            if (old == txHash || Arrays.equals(old, txHash))
+                return;
+            txHashes.set(index, txHash);
+        }
+        dirty.set(index);
+    }
+
+    /** Drops the leaves from {@code size} on */
+    public void truncate(int size) {
+        if (size >= txHashes.size())
+            return;
+        txHashes.subList(size, txHashes.size()).clear();
+        dirty.clear(size, Integer.MAX_VALUE);
+        resized = true;
+    }
+
+    /** @return the root, or SHA-256 of nothing for an empty tree */
+    public byte[] getRoot() {
+        update();
+        if (txHashes.isEmpty())
+            return sha256().digest();
+        return levels.get(levels.size() - 1)[0].clone();
+    }
+
+    private void update() {
+        int n = txHashes.size();
+        if (n == 0) {
+            levels.clear();
+        } else if (levels.isEmpty() || dirty.cardinality() > n / 8) {
+            rebuild();
+        } else if (!dirty.isEmpty() || resized) {
+            rehashPaths();
+        }
+        dirty.clear();
+        resized = false;
+    }
+
+    private void rebuild() {
+        levels.clear();
+        byte[][] level = new byte[txHashes.size()][];
+        hashLevel(null, level);
+        levels.add(level);
+        while (level.length > 1) {
+            byte[][] parents = new byte[(level.length + 1) / 2][];
+            hashLevel(level, parents);
+            levels.add(parents);
+            level = parents;
+        }
+    }
+
+    /** hashes all of {@code nodes} from {@code children}, or from the tx hashes if null */
+    private void hashLevel(byte[][] children, byte[][] nodes) {
+        if (nodes.length < PARALLEL_THRESHOLD)
+            new HashRange(children, nodes, 0, nodes.length).compute();
+        else
+            ForkJoinPool.commonPool().invoke(new HashRange(children, nodes, 0, nodes.length));
+    }
+
+    /** rehashes the paths of the dirty leaves and, after a resize, of the last leaf */
+    private void rehashPaths() {
+        MessageDigest md = sha256();
+        BitSet changed = dirty;
+        byte[][] children = null;
+        for (int l = 0; ; l++) {
+            int size = l == 0 ? txHashes.size() : (children.length + 1) / 2;
+            if (l == levels.size())
+                levels.add(new byte[size][]);
+            byte[][] level = levels.get(l);
+            if (level.length != size) {
+                level = Arrays.copyOf(level, size);
+                levels.set(l, level);
+                changed.set(size - 1);
+            }
+            for (int i = changed.nextSetBit(0); i >= 0 && i < size; i = changed.nextSetBit(i + 1))
+                level[i] = l == 0 ? hashLeaf(md, txHashes.get(i)) : hashNode(md, children, i);
+            if (size == 1) {
+                // the root level, drop the levels a shrunk tree no longer has
+                levels.subList(l + 1, levels.size()).clear();
+                return;
+            }
+            BitSet parents = new BitSet();
+            for (int i = changed.nextSetBit(0); i >= 0 && i < size; i = changed.nextSetBit(i + 1))
+                parents.set(i >> 1);
+            changed = parents;
+            children = level;
+        }
+    }
+
+    /** @return an inclusion proof of leaf {@code index}: its sibling on each level where it has one */
+    public Proof getProof(int index) {
+        if (index < 0 || index >= txHashes.size())
+            throw new IndexOutOfBoundsException("leaf " + index + " of " + txHashes.size());
+        update();
+        ArrayList<byte[]> siblings = new ArrayList<byte[]>();
+        int i = index;
+        for (int l = 0; l < levels.size() - 1; l++, i >>= 1) {
+            byte[][] level = levels.get(l);
+            int sibling = i ^ 1;
+            if (sibling < level.length)
+                siblings.add(level[sibling].clone());
+        }
+        return new Proof(index, txHashes.size(), siblings.toArray(new byte[0][]));
+    }
+
+    /**
+     * @return true if {@code proof} shows that {@code txHash} is leaf {@code proof.getIndex()} of
+     *         the tree with root {@code root}; takes O(log n) hashes
+     */
+    public static boolean verify(byte[] root, byte[] txHash, Proof proof) {
+        MessageDigest md = sha256();
+        byte[] node = hashLeaf(md, txHash);
+        int i = proof.index;
+        int size = proof.size;
+        int k = 0;
+        while (size > 1) {
+            if ((i & 1) == 1 || i + 1 < size) {
+                if (k == proof.siblings.length)
+                    return false;
+                byte[] sibling = proof.siblings[k++];
+                node = (i & 1) == 1 ? hashPair(md, sibling, node) : hashPair(md, node, sibling);
+            }
+            i >>= 1;
+            size = (size + 1) / 2;
+        }
+        return k == proof.siblings.length && MessageDigest.isEqual(root, node);
+    }
+
+    /** The siblings on the path from a leaf to the root, lowest first */
+    public static final class Proof {
+        private final int index;
+        private final int size;
+        private final byte[][] siblings;
+
+        private Proof(int index, int size, byte[][] siblings) {
+            this.index = index;
+            this.size = size;
+            this.siblings = siblings;
+        }
+
+        /** @return the position of the leaf */
+        public int getIndex() {
+            return index;
+        }
+
+        /** @return the number of leaves of the tree */
+        public int getLeafCount() {
+            return size;
+        }
+
+        public int getNumSiblings() {
+            return siblings.length;
+        }
+    }
+
+    private static byte[] hashLeaf(MessageDigest md, byte[] txHash) {
+        md.update(LEAF);
+        md.update(txHash);
+        return md.digest();
+    }
+
+    private static byte[] hashNode(MessageDigest md, byte[][] children, int i) {
+        if (2 * i + 1 == children.length)
+            return children[2 * i];
+        return hashPair(md, children[2 * i], children[2 * i + 1]);
+    }
+
+    private static byte[] hashPair(MessageDigest md, byte[] left, byte[] right) {
+        md.update(NODE);
+        md.update(left);
+        md.update(right);
+        return md.digest();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    /** hashes nodes [from, to) of a level, splitting big ranges between the fork/join threads */
+    private class HashRange extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[][] children;
+        private final byte[][] nodes;
+        private final int from;
+        private final int to;
+
+        HashRange(byte[][] children, byte[][] nodes, int from, int to) {
+            this.children = children;
+            this.nodes = nodes;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from > PARALLEL_THRESHOLD) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new HashRange(children, nodes, from, mid), new HashRange(children, nodes, mid, to));
+                return;
+            }
+            MessageDigest md = sha256();
+            for (int i = from; i < to; i++)
+                nodes[i] = children == null ? hashLeaf(md, txHashes.get(i)) : hashNode(md, children, i);
+        }
+    }
+}
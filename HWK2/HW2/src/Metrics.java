@@ -0,0 +1,126 @@
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Registry of the counters, gauges and latency histograms of the validation pipeline. Counters are
+ * striped {@code LongAdder}s and histograms are lock-free, so recording from the hot path never
+ * blocks. A metric name may carry Prometheus labels, e.g. {@code tx_rejected_total{reason="x"}}.
+ */
+public class Metrics {
+
+    private static final Metrics DEFAULT = new Metrics();
+
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+    private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<String, LongSupplier>();
+    private final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    /** @return the registry the block chain classes record into */
+    public static Metrics getDefault() {
+        return DEFAULT;
+    }
+
+    /** @return the counter called {@code name}, created on first use */
+    public LongAdder counter(String name) {
+        LongAdder counter = counters.get(name);
+        if (counter == null)
+            counter = counters.computeIfAbsent(name, n -> new LongAdder());
+        return counter;
+    }
+
+    /** @return the histogram called {@code name}, created on first use */
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null)
+            histogram = histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+        return histogram;
+    }
+
+    /** Registers {@code value} as the gauge called {@code name}, replacing any previous one */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Registers {@code value} of {@code owner} as the gauge called {@code name}, replacing any
+     * previous one. The registry only holds {@code owner} weakly, so {@code value} must not capture
+     * it: once the owner is collected the gauge is dropped from the next snapshot.
+     */
+    public <T> void gauge(String name, T owner, ToLongFunction<? super T> value) {
+        gauges.put(name, new WeakGauge<T>(owner, value));
+    }
+
+    /** a gauge reading its owner through a weak reference, 0 once the owner is collected */
+    private static class WeakGauge<T> implements LongSupplier {
+        private final WeakReference<T> owner;
+        private final ToLongFunction<? super T> value;
+
+        WeakGauge(T owner, ToLongFunction<? super T> value) {
+            this.owner = new WeakReference<T>(owner);
+            this.value = value;
+        }
+
+        boolean isCleared() {
+            return owner.get() == null;
+        }
+
+        public long getAsLong() {
+            T o = owner.get();
+            return o == null ? 0 : value.applyAsLong(o);
+        }
+    }
+
+    /** @return the current value of the counter called {@code name}, 0 if it was never used */
+    public long getCount(String name) {
+        LongAdder counter = counters.get(name);
+        if (counter == null)
+            return 0;
+        return counter.sum();
+    }
+
+    /** @return a snapshot of every metric in the Prometheus text exposition format */
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        String family = null;
+        for (Map.Entry<String, LongAdder> e : new TreeMap<String, LongAdder>(counters).entrySet()) {
+            family = typeLine(sb, family, e.getKey(), "counter");
+            sb.append(e.getKey()).append(' ').append(e.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<String, LongSupplier> e : new TreeMap<String, LongSupplier>(gauges).entrySet()) {
+            if (e.getValue() instanceof WeakGauge && ((WeakGauge<?>) e.getValue()).isCleared()) {
+                gauges.remove(e.getKey(), e.getValue());
+                continue;
+            }
+            family = typeLine(sb, family, e.getKey(), "gauge");
+            sb.append(e.getKey()).append(' ').append(e.getValue().getAsLong()).append('\n');
+        }
+        for (Map.Entry<String, LatencyHistogram> e : new TreeMap<String, LatencyHistogram>(histograms).entrySet()) {
+            String name = e.getKey();
+            LatencyHistogram h = e.getValue();
+            family = typeLine(sb, family, name, "histogram");
+            long cumulative = 0;
+            for (int i = 0; i < h.numBuckets(); i++) {
+                cumulative += h.bucketCount(i);
+                long bound = h.upperBoundNanos(i);
+                String le = bound < 0 ? "+Inf" : Double.toString(bound / 1e9);
+                sb.append(name).append("_bucket{le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+            }
+            sb.append(name).append("_sum ").append(h.getSumNanos() / 1e9).append('\n');
+            sb.append(name).append("_count ").append(h.getCount()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /** appends the TYPE line of the family of {@code name} unless it was the previous family */
+    private static String typeLine(StringBuilder sb, String previousFamily, String name, String type) {
+        int brace = name.indexOf('{');
+        String family = brace < 0 ? name : name.substring(0, brace);
+        if (!family.equals(previousFamily))
+            sb.append("# TYPE ").append(family).append(' ').append(type).append('\n');
+        return family;
+    }
+}
@@ -0,0 +1,177 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Proof-of-work nonce search. A job splits the nonce space between the miner threads; each thread
+ * hashes its nonces from a clone of the header midstate of the block, so an attempt costs one
+ * SHA-256 compression however many transactions the block holds.
+ */
+public class Miner {
+
+    private static final Miner DEFAULT = new Miner(Runtime.getRuntime().availableProcessors());
+
+    private static final LongAdder HASHES = Metrics.getDefault().counter("miner_hashes_total");
+    private static final LatencyHistogram MINE = Metrics.getDefault().histogram("block_mine_seconds");
+
+    /** attempts between two looks at the cancellation flag and the shared hash counter */
+    private static final int BATCH = 1024;
+
+    private final int threads;
+    private final ExecutorService executor;
+
+    /** @return the miner shared by the {@code BlockHandler}s, one thread per core */
+    public static Miner getDefault() {
+        return DEFAULT;
+    }
+
+    public Miner(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        this.threads = threads;
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "miner");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Starts searching a nonce that puts the hash of the finalized {@code block} below its target.
+     * The block is only modified when a nonce is found. A job holds all threads of the miner until
+     * it ends, so the jobs of one miner run one after the other.
+     */
+    public Job start(Block block) {
+        Job job = new Job(block);
+        // the current nonce may already do, always for target 0
+        if (block.meetsTarget()) {
+            job.finish(true, block.getNonce());
+            return job;
+        }
+        MessageDigest midstate = block.headerMidstate();
+        long stride = Long.divideUnsigned(-1L, threads);
+        for (int i = 0; i < threads; i++) {
+            long first = block.getNonce() + i * stride;
+            long count = i == threads - 1 ? -1L - (threads - 1) * stride : stride;
+            executor.execute(() -> job.search(midstate, first, count));
+        }
+        return job;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /** One nonce search, shared by the miner threads */
+    public class Job {
+        private final Block block;
+        private final long startNanos = System.nanoTime();
+        private final AtomicBoolean done = new AtomicBoolean();
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private final CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+        private final LongAdder hashes = new LongAdder();
+        private final AtomicInteger searching;
+        private volatile boolean cancelled;
+        private volatile boolean found;
+        private volatile long elapsedNanos;
+
+        private Job(Block block) {
+            this.block = block;
+            searching = new AtomicInteger(threads);
+        }
+
+        /** hashes {@code count} nonces from {@code first} on, wrapping around */
+        private void search(MessageDigest midstate, long first, long count) {
+            int targetBits = block.getTargetBits();
+            ByteBuffer nonceBytes = ByteBuffer.allocate(Long.BYTES);
+            byte[] hash = new byte[32];
+            long tried = 0;
+            try {
+                for (long nonce = first; tried != count && !done.get(); ) {
+                    int batch = 0;
+                    for (; batch < BATCH && tried != count; batch++, tried++, nonce++) {
+                        MessageDigest md = (MessageDigest) midstate.clone();
+                        nonceBytes.putLong(0, nonce);
+                        md.update(nonceBytes.array());
+                        md.digest(hash, 0, hash.length);
+                        if (Block.leadingZeroBits(hash) >= targetBits) {
+                            hashes.add(batch + 1);
+                            HASHES.add(batch + 1);
+                            finish(true, nonce);
+                            return;
+                        }
+                    }
+                    hashes.add(batch);
+                    HASHES.add(batch);
+                    if (cancelled)
+                        break;
+                }
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            } finally {
+                if (searching.decrementAndGet() == 0)
+                    finish(false, 0);
+            }
+        }
+
+        /** the first caller wins: sets {@code nonce} on the block if it was found and releases the waiters */
+        private void finish(boolean success, long nonce) {
+            if (!done.compareAndSet(false, true))
+                return;
+            if (success && !cancelled) {
+                block.setNonce(nonce);
+                found = true;
+            }
+            elapsedNanos = System.nanoTime() - startNanos;
+            MINE.record(elapsedNanos);
+            finished.countDown();
+            result.complete(found);
+        }
+
+        /** Stops the search, e.g. because the tip of the chain changed; a no-op once finished */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Waits for the search to end.
+         *
+         * @return true if a nonce was found and set on the block, false if the job was cancelled or
+         *         the whole nonce space was tried
+         */
+        public boolean await() throws InterruptedException {
+            finished.await();
+            return found;
+        }
+
+        /**
+         * @return a future of what {@link #await} returns, completed on the miner thread that ends
+         *         the search, so that nothing has to wait for it
+         */
+        public CompletableFuture<Boolean> toFuture() {
+            return result;
+        }
+
+        public long getHashes() {
+            return hashes.sum();
+        }
+
+        /** @return the hash rate so far, or over the whole search once it has ended */
+        public double getHashesPerSecond() {
+            long nanos = finished.getCount() == 0 ? elapsedNanos : System.nanoTime() - startNanos;
+            if (nanos <= 0)
+                return 0;
+            return hashes.sum() * 1e9 / nanos;
+        }
+    }
+}
@@ -0,0 +1,685 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Gossips blocks and transactions with other nodes over TCP. One selector thread serves every
+ * connection with non-blocking sockets and pooled direct buffers, and it is also the only thread
+ * that touches the block chain, so the chain needs no locking; other threads hand it work through
+ * {@link #call(Function)}.
+ * <p>
+ * A message is a frame of a 4-byte length, a 1-byte {@link MessageType} and the payload, encoded
+ * by {@link WireCodec}. New txs are announced by inventory, collected per peer and sent in batches
+ * every {@link #INV_INTERVAL_MILLIS}; new blocks are announced at once by their header and fetched
+ * as compact blocks. A peer that does not drain its socket gets no announcements and no tx data
+ * while more than {@link #HIGH_WATERMARK} bytes wait for it, and is dropped past
+ * {@link #MAX_OUTBOUND}. Reading is never paused, so two slow peers cannot wait on each other.
+ */
+public class PeerNode implements Closeable {
+
+    public enum MessageType {
+        /** hashes of txs or blocks the sender has */
+        INV,
+        /** hashes of txs or blocks the sender wants */
+        GETDATA,
+        TX,
+        BLOCK,
+        /** headers of new blocks */
+        HEADERS,
+        CMPCTBLOCK,
+        /** positions of the txs of a compact block the sender is missing */
+        GETBLOCKTXN,
+        BLOCKTXN;
+
+        private static final MessageType[] VALUES = values();
+    }
+
+    /** kinds of inventory items */
+    static final byte INV_TX = 1;
+    static final byte INV_BLOCK = 2;
+    static final byte INV_COMPACT_BLOCK = 3;
+
+    private static final int HASH_SIZE = 32;
+    private static final int MAX_FRAME = 32 << 20;
+    private static final int BUFFER_SIZE = 64 << 10;
+    public static final long INV_INTERVAL_MILLIS = 20;
+    private static final int MAX_INV = 2000;
+    /** announcements kept for a peer under backpressure, the oldest are dropped */
+    private static final int MAX_PENDING_INV = 50_000;
+    public static final long HIGH_WATERMARK = 4 << 20;
+    public static final long MAX_OUTBOUND = 64 << 20;
+    private static final int MAX_KNOWN = 50_000;
+    private static final int MAX_ORPHANS = 64;
+    /** a tx or block asked from one peer is not asked again from another for this long */
+    private static final long REQUEST_TIMEOUT_NANOS = 2_000_000_000L;
+
+    private static final LongAdder BYTES_RECEIVED = Metrics.getDefault().counter("net_bytes_received_total");
+    private static final LongAdder BYTES_SENT = Metrics.getDefault().counter("net_bytes_sent_total");
+    private static final LongAdder MESSAGES_RECEIVED = Metrics.getDefault().counter("net_messages_received_total");
+    private static final LongAdder TX_REQUESTS_DROPPED = Metrics.getDefault().counter("net_tx_requests_dropped_total");
+    private static final LongAdder PEERS_DROPPED = Metrics.getDefault().counter("net_peers_dropped_total");
+
+    private final BlockChain blockChain;
+    private final BlockHandler blockHandler;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final BufferPool buffers = new BufferPool(BUFFER_SIZE, 1024);
+    private final WireCodec codec = new WireCodec();
+    private final MessageDigest sha256;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final ArrayList<Peer> peers = new ArrayList<Peer>();
+    private final HashMap<ByteArrayWrapper, Long> requested = new HashMap<ByteArrayWrapper, Long>();
+    /** blocks whose parent is unknown, by parent hash */
+    private final LinkedHashMap<ByteArrayWrapper, Block> orphans = new LinkedHashMap<ByteArrayWrapper, Block>();
+    private final Thread thread;
+    private volatile boolean open = true;
+    private volatile int numPeers;
+    private long nextInvFlush;
+
+    /**
+     * Starts a node serving {@code blockChain}, listening on {@code port} of the loopback address,
+     * 0 for any free port.
+     */
+    public PeerNode(BlockChain blockChain, int port) throws IOException {
+        this(blockChain, new BlockHandler(blockChain), new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    /** same as {@link #PeerNode(BlockChain, int)} on {@code address}, creating blocks with {@code blockHandler} */
+    public PeerNode(BlockChain blockChain, BlockHandler blockHandler, InetSocketAddress address) throws IOException {
+        this.blockChain = blockChain;
+        this.blockHandler = blockHandler;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        }
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(address);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        thread = new Thread(this::run, "peer-node-" + getPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress) server.socket().getLocalSocketAddress();
+    }
+
+    public int getNumPeers() {
+        return numPeers;
+    }
+
+    /** @return a future completed once the connection to {@code address} is established */
+    public CompletableFuture<Void> connect(InetSocketAddress address) {
+        CompletableFuture<Void> connected = new CompletableFuture<Void>();
+        execute(() -> {
+            try {
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                Peer peer = new Peer(channel);
+                peer.connected = connected;
+                if (channel.connect(address)) {
+                    peer.key = channel.register(selector, SelectionKey.OP_READ, peer);
+                    addPeer(peer);
+                    connected.complete(null);
+                } else {
+                    peer.key = channel.register(selector, SelectionKey.OP_CONNECT, peer);
+                }
+            } catch (IOException e) {
+                connected.completeExceptionally(e);
+            }
+        });
+        return connected;
+    }
+
+    /** Adds {@code tx} to the pool and announces it to every peer if it is valid */
+    public void submitTransaction(Transaction tx) {
+        execute(() -> receiveTx(tx, null));
+    }
+
+    /**
+     * Creates a block on the tip as {@link BlockHandler#createBlock} does and announces it. The
+     * block is put together on the selector thread but mined on the miner threads, so peers are
+     * served meanwhile and a block received on the tip cancels the search; the mined block is added
+     * back on the selector thread.
+     *
+     * @return a future of the block, or of null if none was created
+     */
+    public CompletableFuture<Block> mineBlock(PublicKey myAddress) {
+        return call(chain -> {
+            Block block = blockHandler.prepareBlock(myAddress);
+            return blockHandler.mineAsync(block).thenApply(found -> found ? block : null);
+        }).thenCompose(mining -> mining).thenCompose(block -> {
+            if (block == null)
+                return CompletableFuture.completedFuture(null);
+            return call(chain -> {
+                if (!chain.addBlock(block))
+                    return null;
+                announceBlock(block, null);
+                return block;
+            });
+        });
+    }
+
+    /** @return a future of {@code f} applied to the block chain on the selector thread */
+    public <T> CompletableFuture<T> call(Function<BlockChain, T> f) {
+        CompletableFuture<T> result = new CompletableFuture<T>();
+        execute(() -> {
+            try {
+                result.complete(f.apply(blockChain));
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    private void execute(Runnable task) {
+        if (!open)
+            throw new IllegalStateException("node closed");
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /** Closes every connection and stops the selector thread */
+    public void close() throws IOException {
+        open = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (open) {
+                long now = System.currentTimeMillis();
+                if (nextInvFlush <= now) {
+                    flushInventories();
+                    nextInvFlush = now + INV_INTERVAL_MILLIS;
+                }
+                selector.select(Math.max(1, nextInvFlush - now));
+                for (Runnable task; (task = tasks.poll()) != null; )
+                    task.run();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handleKey(key);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            for (Peer peer : new ArrayList<Peer>(peers))
+                closePeer(peer);
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        if (key.channel() == server) {
+            try {
+                SocketChannel channel = server.accept();
+                if (channel != null) {
+                    channel.configureBlocking(false);
+                    Peer peer = new Peer(channel);
+                    peer.key = channel.register(selector, SelectionKey.OP_READ, peer);
+                    addPeer(peer);
+                }
+            } catch (IOException e) {
+                // the connection went away before it was accepted
+            }
+            return;
+        }
+        Peer peer = (Peer) key.attachment();
+        try {
+            if (key.isConnectable()) {
+                peer.channel.finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+                addPeer(peer);
+                peer.connected.complete(null);
+                return;
+            }
+            if (key.isReadable())
+                read(peer);
+            if (!peer.closed && key.isWritable())
+                write(peer);
+        } catch (IOException | RuntimeException e) {
+            // a closed connection or a malformed message
+            if (peer.connected != null && !peer.connected.isDone())
+                peer.connected.completeExceptionally(e);
+            PEERS_DROPPED.increment();
+            closePeer(peer);
+        }
+    }
+
+    private void addPeer(Peer peer) throws IOException {
+        peer.channel.socket().setTcpNoDelay(true);
+        peers.add(peer);
+        numPeers = peers.size();
+    }
+
+    private void closePeer(Peer peer) {
+        if (peer.closed)
+            return;
+        peer.closed = true;
+        peers.remove(peer);
+        numPeers = peers.size();
+        try {
+            peer.channel.close();
+        } catch (IOException ignored) {
+        }
+        buffers.release(peer.in);
+        for (ByteBuffer buffer : peer.outbound)
+            buffers.release(buffer);
+        peer.outbound.clear();
+        if (peer.tail != null)
+            buffers.release(peer.tail);
+    }
+
+    /** reads what the socket has and handles every complete frame */
+    private void read(Peer peer) throws IOException {
+        int n = peer.channel.read(peer.in);
+        if (n < 0)
+            throw new IOException("connection closed by peer");
+        BYTES_RECEIVED.add(n);
+        ByteBuffer in = peer.in;
+        in.flip();
+        while (in.remaining() >= 4) {
+            int length = in.getInt(in.position());
+            if (length < 1 || length > MAX_FRAME)
+                throw new IllegalArgumentException("frame of " + length + " bytes");
+            if (in.remaining() - 4 < length)
+                break;
+            int start = in.position() + 4;
+            int type = in.get(start);
+            if (type < 0 || type >= MessageType.VALUES.length)
+                throw new IllegalArgumentException("unknown message type " + type);
+            ByteBuffer payload = in.slice(start + 1, length - 1);
+            in.position(start + length);
+            MESSAGES_RECEIVED.increment();
+            handle(peer, MessageType.VALUES[type], payload);
+            if (peer.closed)
+                return;
+        }
+        peer.compactInput();
+    }
+
+    /** writes as much of the outbound queue as the socket takes */
+    private void write(Peer peer) throws IOException {
+        if (peer.tail != null && peer.tail.position() > 0) {
+            peer.tail.flip();
+            peer.outbound.add(peer.tail);
+            peer.tail = null;
+        }
+        while (!peer.outbound.isEmpty()) {
+            ByteBuffer head = peer.outbound.peekFirst();
+            int n = peer.channel.write(head);
+            peer.pendingBytes -= n;
+            BYTES_SENT.add(n);
+            if (head.hasRemaining())
+                return;
+            buffers.release(peer.outbound.pollFirst());
+        }
+        peer.key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void send(Peer peer, MessageType type, WireCodec.Writer payload) {
+        if (peer.closed)
+            return;
+        byte[] bytes = payload.toByteArray();
+        byte[] header = ByteBuffer.allocate(5).putInt(bytes.length + 1).put((byte) type.ordinal()).array();
+        peer.enqueue(header);
+        peer.enqueue(bytes);
+        if (peer.pendingBytes > MAX_OUTBOUND) {
+            PEERS_DROPPED.increment();
+            closePeer(peer);
+            return;
+        }
+        peer.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void handle(Peer peer, MessageType type, ByteBuffer in) {
+        switch (type) {
+        case INV:
+            handleInv(peer, in);
+            break;
+        case GETDATA:
+            handleGetData(peer, in);
+            break;
+        case TX: {
+            Transaction tx = codec.readTransaction(in);
+            requested.remove(ByteArrayWrapper.wrap(tx.hashBytes()));
+            receiveTx(tx, peer);
+            break;
+        }
+        case BLOCK: {
+            Block block = codec.readBlock(in);
+            requested.remove(ByteArrayWrapper.wrap(block.getHash()));
+            receiveBlock(block, peer);
+            break;
+        }
+        case HEADERS:
+            handleHeaders(peer, in);
+            break;
+        case CMPCTBLOCK:
+            handleCompactBlock(peer, codec.readCompactBlock(in));
+            break;
+        case GETBLOCKTXN:
+            handleGetBlockTxn(peer, in);
+            break;
+        case BLOCKTXN:
+            handleBlockTxn(peer, in);
+            break;
+        }
+    }
+
+    private void handleInv(Peer peer, ByteBuffer in) {
+        int count = WireCodec.readCount(in, 1 + HASH_SIZE);
+        long now = System.nanoTime();
+        WireCodec.Writer out = new WireCodec.Writer();
+        int wanted = 0;
+        for (int i = 0; i < count; i++) {
+            byte kind = in.get();
+            byte[] hash = new byte[HASH_SIZE];
+            in.get(hash);
+            ByteArrayWrapper key = ByteArrayWrapper.wrap(hash);
+            peer.known.add(key);
+            boolean have = kind == INV_TX ? haveTx(hash) : blockChain.getBlock(hash) != null;
+            if (!have && request(key, now)) {
+                out.writeByte(kind == INV_TX ? INV_TX : INV_COMPACT_BLOCK).writeRaw(hash);
+                wanted++;
+            }
+        }
+        if (wanted > 0)
+            send(peer, MessageType.GETDATA, new WireCodec.Writer().writeInt(wanted).writeRaw(out.toByteArray()));
+    }
+
+    private void handleGetData(Peer peer, ByteBuffer in) {
+        int count = WireCodec.readCount(in, 1 + HASH_SIZE);
+        for (int i = 0; i < count; i++) {
+            byte kind = in.get();
+            byte[] hash = new byte[HASH_SIZE];
+            in.get(hash);
+            if (kind == INV_TX) {
+                // txs can be fetched again, blocks are always served
+                if (peer.pendingBytes > HIGH_WATERMARK) {
+                    TX_REQUESTS_DROPPED.increment();
+                    continue;
+                }
+                Transaction tx = blockChain.getTransactionPool().getTransaction(hash);
+                if (tx != null)
+                    send(peer, MessageType.TX, new WireCodec.Writer().writeTransaction(tx));
+                continue;
+            }
+            Block block = blockChain.getBlock(hash);
+            if (block == null)
+                continue;
+            if (kind == INV_COMPACT_BLOCK)
+                send(peer, MessageType.CMPCTBLOCK, new WireCodec.Writer().writeCompactBlock(new CompactBlock(block)));
+            else
+                send(peer, MessageType.BLOCK, new WireCodec.Writer().writeBlock(block));
+        }
+    }
+
+    private void handleHeaders(Peer peer, ByteBuffer in) {
+        int count = WireCodec.readCount(in, Block.HEADER_SIZE);
+        long now = System.nanoTime();
+        byte[] header = new byte[Block.HEADER_SIZE];
+        for (int i = 0; i < count; i++) {
+            in.get(header);
+            byte[] hash = sha256.digest(header);
+            ByteArrayWrapper key = ByteArrayWrapper.wrap(hash);
+            peer.known.add(key);
+            if (blockChain.getBlock(hash) == null && request(key, now)) {
+                WireCodec.Writer out = new WireCodec.Writer().writeInt(1).writeByte(INV_COMPACT_BLOCK).writeRaw(hash);
+                send(peer, MessageType.GETDATA, out);
+            }
+        }
+    }
+
+    private void handleCompactBlock(Peer peer, CompactBlock compact) {
+        ByteArrayWrapper key = ByteArrayWrapper.wrap(compact.getBlockHash());
+        peer.known.add(key);
+        if (blockChain.getBlock(compact.getBlockHash()) != null)
+            return;
+        CompactBlock.Reconstruction reconstruction = compact.reconstruct(blockChain.getTransactionPool());
+        int[] missing = reconstruction.getMissing();
+        if (missing.length == 0) {
+            completeCompactBlock(peer, compact.getBlockHash(), reconstruction, new Transaction[0]);
+            return;
+        }
+        peer.reconstructions.put(key, reconstruction);
+        WireCodec.Writer out = new WireCodec.Writer().writeBytes(compact.getBlockHash()).writeInt(missing.length);
+        for (int position : missing)
+            out.writeInt(position);
+        send(peer, MessageType.GETBLOCKTXN, out);
+    }
+
+    private void handleGetBlockTxn(Peer peer, ByteBuffer in) {
+        byte[] hash = WireCodec.readBytes(in);
+        int count = WireCodec.readCount(in, 4);
+        Block block = blockChain.getBlock(hash);
+        if (block == null)
+            return;
+        WireCodec.Writer out = new WireCodec.Writer().writeBytes(hash).writeInt(count);
+        for (int i = 0; i < count; i++)
+            out.writeTransaction(block.getTransaction(in.getInt()));
+        send(peer, MessageType.BLOCKTXN, out);
+    }
+
+    private void handleBlockTxn(Peer peer, ByteBuffer in) {
+        byte[] hash = WireCodec.readBytes(in);
+        int count = WireCodec.readCount(in, 9);
+        Transaction[] txs = new Transaction[count];
+        for (int i = 0; i < count; i++)
+            txs[i] = codec.readTransaction(in);
+        CompactBlock.Reconstruction reconstruction = peer.reconstructions.remove(ByteArrayWrapper.wrap(hash));
+        if (reconstruction != null)
+            completeCompactBlock(peer, hash, reconstruction, txs);
+    }
+
+    /** falls back to the full block if the rebuilt one does not match its header */
+    private void completeCompactBlock(Peer peer, byte[] hash, CompactBlock.Reconstruction reconstruction,
+            Transaction[] fetched) {
+        Block block = reconstruction.complete(fetched);
+        if (block != null) {
+            requested.remove(ByteArrayWrapper.wrap(hash));
+            receiveBlock(block, peer);
+            return;
+        }
+        send(peer, MessageType.GETDATA, new WireCodec.Writer().writeInt(1).writeByte(INV_BLOCK).writeRaw(hash));
+    }
+
+    private boolean haveTx(byte[] hash) {
+        return blockChain.getTransactionPool().getTransaction(hash) != null || blockChain.findTransaction(hash) != null;
+    }
+
+    /** @return true if {@code hash} may be asked for, i.e. no peer was asked for it lately */
+    private boolean request(ByteArrayWrapper hash, long now) {
+        Long since = requested.get(hash);
+        if (since != null && now - since < REQUEST_TIMEOUT_NANOS)
+            return false;
+        if (requested.size() > MAX_KNOWN)
+            requested.values().removeIf(t -> now - t >= REQUEST_TIMEOUT_NANOS);
+        requested.put(hash, now);
+        return true;
+    }
+
+    /**
+     * adds a tx from {@code from}, null if local, to the pool and queues its announcement if it is
+     * valid; an invalid tx from a peer is dropped, so that a peer cannot fill the pool
+     */
+    private void receiveTx(Transaction tx, Peer from) {
+        ByteArrayWrapper key = ByteArrayWrapper.wrap(tx.hashBytes());
+        if (from != null)
+            from.known.add(key);
+        if (haveTx(tx.hashBytes()))
+            return;
+        if (!blockHandler.submitTx(tx).isAccepted()) {
+            if (from != null)
+                blockChain.getTransactionPool().removeTransaction(tx.hashBytes());
+            return;
+        }
+        for (Peer peer : peers) {
+            if (peer != from && !peer.known.contains(key))
+                peer.queueInv(key);
+        }
+    }
+
+    private void receiveBlock(Block block, Peer from) {
+        Verdict verdict = blockHandler.submitBlock(block);
+        if (verdict.isAccepted()) {
+            announceBlock(block, from);
+            Block orphan = orphans.remove(ByteArrayWrapper.wrap(block.getHash()));
+            if (orphan != null)
+                receiveBlock(orphan, from);
+        } else if (verdict.getReason() == Verdict.Reason.UNKNOWN_PARENT && from != null) {
+            if (orphans.size() >= MAX_ORPHANS)
+                orphans.remove(orphans.keySet().iterator().next());
+            ByteArrayWrapper parent = new ByteArrayWrapper(block.getPrevBlockHash());
+            orphans.put(parent, block);
+            if (request(parent, System.nanoTime()))
+                send(from, MessageType.GETDATA,
+                        new WireCodec.Writer().writeInt(1).writeByte(INV_BLOCK).writeRaw(block.getPrevBlockHash()));
+        }
+    }
+
+    /** sends the header of {@code block} to the peers that may not have it */
+    private void announceBlock(Block block, Peer from) {
+        ByteArrayWrapper key = ByteArrayWrapper.wrap(block.getHash());
+        for (Peer peer : peers) {
+            if (peer == from || !peer.known.add(key))
+                continue;
+            send(peer, MessageType.HEADERS, new WireCodec.Writer().writeInt(1).writeRaw(block.getHeader()));
+        }
+    }
+
+    /** sends the queued tx announcements, in messages of up to {@link #MAX_INV} items */
+    private void flushInventories() {
+        for (Peer peer : new ArrayList<Peer>(peers)) {
+            while (!peer.inventory.isEmpty() && peer.pendingBytes <= HIGH_WATERMARK && !peer.closed) {
+                int count = Math.min(MAX_INV, peer.inventory.size());
+                WireCodec.Writer out = new WireCodec.Writer().writeInt(count);
+                Iterator<ByteArrayWrapper> it = peer.inventory.iterator();
+                for (int i = 0; i < count; i++) {
+                    ByteArrayWrapper hash = it.next();
+                    it.remove();
+                    peer.known.add(hash);
+                    out.writeByte(INV_TX).writeRaw(hash.toByteArray());
+                }
+                send(peer, MessageType.INV, out);
+            }
+        }
+    }
+
+    private static <T> Set<T> boundedSet(int max) {
+        return Collections.newSetFromMap(new LinkedHashMap<T, Boolean>() {
+            protected boolean removeEldestEntry(Map.Entry<T, Boolean> eldest) {
+                return size() > max;
+            }
+        });
+    }
+
+    /** A connection and what the node knows about the node at its other end */
+    private class Peer {
+        final SocketChannel channel;
+        SelectionKey key;
+        CompletableFuture<Void> connected;
+        boolean closed;
+        /** in write mode between reads; a heap buffer while a frame bigger than a pooled one comes in */
+        ByteBuffer in = buffers.acquire();
+        /** full buffers ready to be written, in read mode */
+        final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+        /** the buffer being filled, in write mode */
+        ByteBuffer tail;
+        long pendingBytes;
+        /** txs to announce at the next flush */
+        final LinkedHashSet<ByteArrayWrapper> inventory = new LinkedHashSet<ByteArrayWrapper>();
+        /** txs and blocks the peer has, announced by either side */
+        final Set<ByteArrayWrapper> known = boundedSet(MAX_KNOWN);
+        final HashMap<ByteArrayWrapper, CompactBlock.Reconstruction> reconstructions =
+                new HashMap<ByteArrayWrapper, CompactBlock.Reconstruction>();
+
+        Peer(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void queueInv(ByteArrayWrapper hash) {
+            if (inventory.size() >= MAX_PENDING_INV) {
+                Iterator<ByteArrayWrapper> it = inventory.iterator();
+                it.next();
+                it.remove();
+            }
+            inventory.add(hash);
+        }
+
+        void enqueue(byte[] bytes) {
+            for (int off = 0; off < bytes.length; ) {
+                if (tail == null || !tail.hasRemaining()) {
+                    if (tail != null) {
+                        tail.flip();
+                        outbound.add(tail);
+                    }
+                    tail = buffers.acquire();
+                }
+                int n = Math.min(tail.remaining(), bytes.length - off);
+                tail.put(bytes, off, n);
+                off += n;
+            }
+            pendingBytes += bytes.length;
+        }
+
+        /** keeps the unread bytes of {@code in}, in read mode, and makes room for the rest of their frame */
+        void compactInput() {
+            int needed = in.remaining() >= 4 ? 4 + in.getInt(in.position()) : 0;
+            if (needed > in.capacity()) {
+                ByteBuffer big = ByteBuffer.allocate(needed);
+                big.put(in);
+                buffers.release(in);
+                in = big;
+            } else if (!in.isDirect() && needed <= buffers.getBufferSize()) {
+                ByteBuffer pooled = buffers.acquire();
+                pooled.put(in);
+                in = pooled;
+            } else {
+                in.compact();
+            }
+        }
+    }
+}
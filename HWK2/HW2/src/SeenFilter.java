@@ -0,0 +1,43 @@
+import java.util.HashMap;
+
+/**
+ * The verdicts of the most recently seen blocks or txs, by hash. Entries go to a current
+ * generation; once it holds half of the capacity it becomes the previous generation and the old
+ * previous one is dropped, so the filter remembers between half and all of its capacity in hashes,
+ * and a lookup is at most two hash probes. Thread-safe.
+ */
+class SeenFilter {
+
+    private final int generationSize;
+    private HashMap<ByteArrayWrapper, Verdict> current;
+    private HashMap<ByteArrayWrapper, Verdict> previous = new HashMap<ByteArrayWrapper, Verdict>();
+
+    /** a filter remembering up to {@code capacity} hashes */
+    SeenFilter(int capacity) {
+        if (capacity < 2)
+            throw new IllegalArgumentException("capacity must be at least 2: " + capacity);
+        generationSize = capacity / 2;
+        current = new HashMap<ByteArrayWrapper, Verdict>();
+    }
+
+    /** @return the verdict recorded for {@code hash}, or null if it was not seen recently */
+    synchronized Verdict get(byte[] hash) {
+        ByteArrayWrapper key = ByteArrayWrapper.wrap(hash);
+        Verdict verdict = current.get(key);
+        return verdict != null ? verdict : previous.get(key);
+    }
+
+    /** Records {@code verdict} for {@code hash}, forgetting the oldest generation if needed */
+    synchronized void put(byte[] hash, Verdict verdict) {
+        if (current.size() >= generationSize) {
+            previous = current;
+            current = new HashMap<ByteArrayWrapper, Verdict>();
+        }
+        current.put(new ByteArrayWrapper(hash), verdict);
+    }
+
+    /** @return the number of hashes remembered */
+    synchronized int size() {
+        return current.size() + previous.size();
+    }
+}
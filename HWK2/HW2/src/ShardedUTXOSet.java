@@ -0,0 +1,219 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A UTXO set split into shards by the hash of each outpoint, its tx hash and index, each shard a
+ * hash map behind its own lock, so that lookups and single changes in different shards do not contend and
+ * the changes of a block can be applied to all shards at once.
+ * <p>
+ * {@link #apply} takes the txs of a block in two steps: first, on the calling thread, it walks the
+ * txs in order and nets their spends and creates into one {@link UTXODelta}, rejecting the block
+ * if an input spends an output that is missing or already spent; then each shard removes its spent
+ * UTXOs and adds its created ones on its own thread. Every UTXO ends as the last tx of the block to
+ * touch it left it, so the result is the same as applying the txs one after the other. The txs are
+ * assumed valid otherwise: signatures and values are checked by {@link TxHandler}.
+ * <p>
+ * Thread-safe. Calls to {@code apply} run one at a time; a reader running at the same time may see
+ * the block applied to some shards and not yet to others.
+ * <p>
+ * The set holds one state and has no copies or undo, so it is not what {@link BlockChain} keeps
+ * per block: every node there has its own {@link UTXOPool}, copied on write from its parent, so
+ * that blocks on any fork can be validated against the state they extend. The sharded set fits a
+ * node tracking only its best chain.
+ */
+public class ShardedUTXOSet {
+
+    private static final LatencyHistogram APPLY = Metrics.getDefault().histogram("sharded_utxo_apply_seconds");
+
+    /** changes below which a block is applied on the calling thread, handing off costs more */
+    private static final int PARALLEL_THRESHOLD = 256;
+
+    private final Shard[] shards;
+    /** top bits of the mixed outpoint hash that pick the shard */
+    private final int shardBits;
+    private final Executor executor;
+    private final Object applyLock = new Object();
+
+    private static class Shard {
+        final HashMap<UTXO, Transaction.Output> utxos = new HashMap<UTXO, Transaction.Output>();
+    }
+
+    /** a set of one shard per core, rounded up to a power of two, applying blocks on the common pool */
+    public ShardedUTXOSet() {
+        this(Runtime.getRuntime().availableProcessors(), ForkJoinPool.commonPool());
+    }
+
+    /** a set of at least {@code numShards} shards, a power of two, applying blocks on {@code executor} */
+    public ShardedUTXOSet(int numShards, Executor executor) {
+        if (numShards < 1 || numShards > 1 << 16)
+            throw new IllegalArgumentException("numShards must be in [1, 65536]: " + numShards);
+        shardBits = 32 - Integer.numberOfLeadingZeros(numShards - 1);
+        shards = new Shard[1 << shardBits];
+        for (int i = 0; i < shards.length; i++)
+            shards[i] = new Shard();
+        this.executor = executor;
+    }
+
+    /** a set holding the UTXOs of {@code pool}, see {@link #ShardedUTXOSet(int, Executor)} */
+    public ShardedUTXOSet(UTXOPool pool, int numShards, Executor executor) {
+        this(numShards, executor);
+        pool.snapshot().entryStream(false).forEach(e -> shards[shardOf(e.getKey())].utxos.put(e.getKey(), e.getValue()));
+    }
+
+    /**
+     * @return the shard of {@code utxo}, from the top bits of its hash code mixed by a golden ratio
+     *         multiply: the hash code covers the tx hash and the index, so the outputs of one tx
+     *         spread over the shards
+     */
+    private int shardOf(UTXO utxo) {
+        if (shardBits == 0)
+            return 0;
+        return (utxo.hashCode() * 0x9E3779B9) >>> (32 - shardBits);
+    }
+
+    public int getNumShards() {
+        return shards.length;
+    }
+
+    /** @return the output of {@code utxo}, or null if it is not in the set */
+    public Transaction.Output getTxOutput(UTXO utxo) {
+        Shard shard = shards[shardOf(utxo)];
+        synchronized (shard) {
+            return shard.utxos.get(utxo);
+        }
+    }
+
+    public boolean contains(UTXO utxo) {
+        return getTxOutput(utxo) != null;
+    }
+
+    /** Adds {@code utxo} with {@code output}, replacing the output it may have */
+    public void addUTXO(UTXO utxo, Transaction.Output output) {
+        Shard shard = shards[shardOf(utxo)];
+        synchronized (shard) {
+            shard.utxos.put(utxo, output);
+        }
+    }
+
+    public void removeUTXO(UTXO utxo) {
+        Shard shard = shards[shardOf(utxo)];
+        synchronized (shard) {
+            shard.utxos.remove(utxo);
+        }
+    }
+
+    /** @return the number of UTXOs, summed shard by shard */
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                size += shard.utxos.size();
+            }
+        }
+        return size;
+    }
+
+    /** @return a pool holding the same UTXOs, copied shard by shard */
+    public UTXOPool toUTXOPool() {
+        UTXOPool pool = new UTXOPool();
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                shard.utxos.forEach(pool::addUTXO);
+            }
+        }
+        return pool;
+    }
+
+    /** Applies the txs of {@code block}, then its coinbase, as {@link BlockChain} does, see {@link #apply(List)} */
+    public Verdict apply(Block block) {
+        ArrayList<Transaction> txs = new ArrayList<Transaction>(block.getTransactions());
+        txs.add(block.getCoinbase());
+        return apply(txs);
+    }
+
+    /**
+     * Applies the spends and creates of {@code txs}, in order, see the class comment.
+     *
+     * @return {@code Verdict.ACCEPTED}, or {@code MISSING_INPUT} or {@code DOUBLE_SPEND} for the
+     *         first input that spends an output that is missing or already spent, in which case
+     *         the set is left unchanged
+     */
+    public Verdict apply(List<Transaction> txs) {
+        synchronized (applyLock) {
+            long start = System.nanoTime();
+            int spends = 0;
+            int creates = 0;
+            for (Transaction tx : txs) {
+                spends += tx.numInputs();
+                creates += tx.numOutputs();
+            }
+            UTXODelta delta = new UTXODelta(spends, creates);
+            for (int i = 0; i < txs.size(); i++) {
+                Verdict verdict = delta.add(txs.get(i), this::contains);
+                if (!verdict.isAccepted())
+                    return verdict.atTx(i);
+            }
+            applyDelta(delta);
+            APPLY.recordSince(start);
+            return Verdict.ACCEPTED;
+        }
+    }
+
+    /**
+     * Applies {@code delta}, built for this set, removing its spent UTXOs and adding its created ones
+     * shard by shard, in parallel
+     */
+    public void apply(UTXODelta delta) {
+        synchronized (applyLock) {
+            long start = System.nanoTime();
+            applyDelta(delta);
+            APPLY.recordSince(start);
+        }
+    }
+
+    private void applyDelta(UTXODelta delta) {
+        Set<UTXO> spent = delta.getSpent();
+        Map<UTXO, Transaction.Output> created = delta.getCreated();
+        // each shard removes before it adds, so a UTXO spent and created again by the block stays
+        ArrayList<ArrayList<UTXO>> spentByShard = new ArrayList<ArrayList<UTXO>>();
+        ArrayList<ArrayList<Map.Entry<UTXO, Transaction.Output>>> createdByShard = new ArrayList<ArrayList<Map.Entry<UTXO, Transaction.Output>>>();
+        for (int s = 0; s < shards.length; s++) {
+            spentByShard.add(new ArrayList<UTXO>());
+            createdByShard.add(new ArrayList<Map.Entry<UTXO, Transaction.Output>>());
+        }
+        for (UTXO utxo : spent)
+            spentByShard.get(shardOf(utxo)).add(utxo);
+        for (Map.Entry<UTXO, Transaction.Output> e : created.entrySet())
+            createdByShard.get(shardOf(e.getKey())).add(e);
+
+        if (spent.size() + created.size() < PARALLEL_THRESHOLD) {
+            for (int s = 0; s < shards.length; s++)
+                applyToShard(s, spentByShard.get(s), createdByShard.get(s));
+        } else {
+            ArrayList<CompletableFuture<Void>> tasks = new ArrayList<CompletableFuture<Void>>();
+            for (int s = 0; s < shards.length; s++) {
+                int shard = s;
+                if (!spentByShard.get(s).isEmpty() || !createdByShard.get(s).isEmpty())
+                    tasks.add(CompletableFuture.runAsync(
+                            () -> applyToShard(shard, spentByShard.get(shard), createdByShard.get(shard)), executor));
+            }
+            CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+        }
+    }
+
+    private void applyToShard(int s, List<UTXO> spent, List<Map.Entry<UTXO, Transaction.Output>> created) {
+        Shard shard = shards[s];
+        synchronized (shard) {
+            for (UTXO utxo : spent)
+                shard.utxos.remove(utxo);
+            for (Map.Entry<UTXO, Transaction.Output> e : created)
+                shard.utxos.put(e.getKey(), e.getValue());
+        }
+    }
+}
@@ -0,0 +1,269 @@
+import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.EdECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.EdECPoint;
+import java.security.spec.EdECPublicKeySpec;
+import java.security.spec.NamedParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+/**
+ * The signature algorithms an address can use, all provided by the JDK. The scheme of an address
+ * follows from the type of its public key, so txs and chains may mix schemes freely.
+ * <p>
+ * An address is encoded by {@link #encode}, in the raw tx, the signed data and on disk:
+ * <ul>
+ * <li>RSA: the X.509 encoding, about 294 bytes for a 2048-bit key, which always starts with 0x30;</li>
+ * <li>Ed25519: tag 1 and the 32-byte key;</li>
+ * <li>ECDSA over secp256r1: tag 2 and the 33-byte compressed point.</li>
+ * </ul>
+ * Verifying with Ed25519 or ECDSA is cheaper than with RSA, and their keys and signatures
+ * (64 and about 71 bytes, against 256) are a fraction of the size. Each thread reuses one
+ * {@link Signature} per scheme.
+ * <p>
+ * The signatures are part of the raw tx and so of its hash. An ECDSA signature (r, s) is just as
+ * valid as (r, n - s), and DER can encode the same numbers in several ways, so only the strict DER
+ * encoding with {@code s <= n / 2} is accepted, and {@link #sign} always produces it: otherwise
+ * anyone could relay a tx under another hash.
+ */
+public enum SignatureScheme {
+    RSA("RSA", "SHA256withRSA", 0x30),
+    ED25519("Ed25519", "Ed25519", 1),
+    ECDSA("EC", "SHA256withECDSA", 2);
+
+    private static final String CURVE = "secp256r1";
+    private static final ECParameterSpec CURVE_PARAMS;
+    /** the largest s of a canonical ECDSA signature, half the order of the curve */
+    private static final BigInteger HALF_ORDER;
+
+    static {
+        try {
+            AlgorithmParameters params = AlgorithmParameters.getInstance("EC");
+            params.init(new ECGenParameterSpec(CURVE));
+            CURVE_PARAMS = params.getParameterSpec(ECParameterSpec.class);
+            HALF_ORDER = CURVE_PARAMS.getOrder().shiftRight(1);
+        } catch (GeneralSecurityException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    private final String keyAlgorithm;
+    private final String signatureAlgorithm;
+    private final int tag;
+    private final ThreadLocal<Signature> signatures;
+    private final ThreadLocal<KeyFactory> keyFactories;
+
+    SignatureScheme(String keyAlgorithm, String signatureAlgorithm, int tag) {
+        this.keyAlgorithm = keyAlgorithm;
+        this.signatureAlgorithm = signatureAlgorithm;
+        this.tag = tag;
+        signatures = ThreadLocal.withInitial(() -> {
+            try {
+                return Signature.getInstance(signatureAlgorithm);
+            } catch (GeneralSecurityException x) {
+                throw new IllegalStateException(x);
+            }
+        });
+        keyFactories = ThreadLocal.withInitial(() -> {
+            try {
+                return KeyFactory.getInstance(keyAlgorithm);
+            } catch (GeneralSecurityException x) {
+                throw new IllegalStateException(x);
+            }
+        });
+    }
+
+    /**
+     * @return the scheme of {@code key}
+     * @throws IllegalArgumentException if no scheme uses such keys
+     */
+    public static SignatureScheme of(PublicKey key) {
+        if (key instanceof RSAPublicKey)
+            return RSA;
+        if (key instanceof EdECPublicKey && "Ed25519".equals(((EdECPublicKey) key).getParams().getName()))
+            return ED25519;
+        if (key instanceof ECPublicKey && ((ECPublicKey) key).getParams().getCurve().equals(CURVE_PARAMS.getCurve()))
+            return ECDSA;
+        throw new IllegalArgumentException("unsupported key: " + (key == null ? null : key.getAlgorithm()));
+    }
+
+    /** @return a new key pair of this scheme */
+    public KeyPair generateKeyPair() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance(keyAlgorithm);
+            if (this == ECDSA)
+                generator.initialize(new ECGenParameterSpec(CURVE));
+            return generator.generateKeyPair();
+        } catch (GeneralSecurityException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    /** @return the signature of {@code message} by {@code key}, a private key of this scheme */
+    public byte[] sign(PrivateKey key, byte[] message) {
+        try {
+            Signature sig = Signature.getInstance(signatureAlgorithm);
+            sig.initSign(key);
+            sig.update(message);
+            byte[] signature = sig.sign();
+            if (this != ECDSA)
+                return signature;
+            BigInteger[] rs = decodeDer(signature);
+            if (rs[1].compareTo(HALF_ORDER) > 0)
+                return encodeDer(rs[0], CURVE_PARAMS.getOrder().subtract(rs[1]));
+            return signature;
+        } catch (GeneralSecurityException x) {
+            throw new IllegalArgumentException(x);
+        }
+    }
+
+    /** @return true if {@code signature} is a valid signature of {@code message} under {@code key} */
+    public boolean verify(PublicKey key, byte[] message, byte[] signature) {
+        if (this == ECDSA && !isCanonical(signature))
+            return false;
+        Signature sig = signatures.get();
+        try {
+            sig.initVerify(key);
+            sig.update(message);
+            return sig.verify(signature);
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            // malformed signature or key: not a valid signature
+            return false;
+        }
+    }
+
+    /** @return true if {@code signature} is an ECDSA signature in strict DER with a low s */
+    private static boolean isCanonical(byte[] signature) {
+        BigInteger[] rs = decodeDer(signature);
+        return rs != null && rs[0].signum() > 0 && rs[0].compareTo(CURVE_PARAMS.getOrder()) < 0
+                && rs[1].signum() > 0 && rs[1].compareTo(HALF_ORDER) <= 0;
+    }
+
+    /**
+     * @return r and s of an ECDSA {@code signature}, a DER sequence of two integers, or null unless it
+     *         is in strict DER: short lengths that add up, positive integers without leading zero
+     *         bytes they do not need, and nothing after them
+     */
+    static BigInteger[] decodeDer(byte[] signature) {
+        if (signature == null || signature.length < 8 || signature.length > 72)
+            return null;
+        if (signature[0] != 0x30 || signature[1] != signature.length - 2)
+            return null;
+        BigInteger[] rs = new BigInteger[2];
+        int pos = 2;
+        for (int i = 0; i < 2; i++) {
+            if (pos + 2 > signature.length || signature[pos] != 0x02)
+                return null;
+            int length = signature[pos + 1];
+            pos += 2;
+            if (length < 1 || pos + length > signature.length)
+                return null;
+            // negative, or a leading zero byte that does not keep the integer positive
+            if ((signature[pos] & 0x80) != 0)
+                return null;
+            if (length > 1 && signature[pos] == 0 && (signature[pos + 1] & 0x80) == 0)
+                return null;
+            rs[i] = new BigInteger(1, Arrays.copyOfRange(signature, pos, pos + length));
+            pos += length;
+        }
+        return pos == signature.length ? rs : null;
+    }
+
+    /** @return the strict DER encoding of the ECDSA signature ({@code r}, {@code s}) */
+    static byte[] encodeDer(BigInteger r, BigInteger s) {
+        byte[] rBytes = r.toByteArray();
+        byte[] sBytes = s.toByteArray();
+        byte[] out = new byte[6 + rBytes.length + sBytes.length];
+        out[0] = 0x30;
+        out[1] = (byte) (out.length - 2);
+        out[2] = 0x02;
+        out[3] = (byte) rBytes.length;
+        System.arraycopy(rBytes, 0, out, 4, rBytes.length);
+        out[4 + rBytes.length] = 0x02;
+        out[5 + rBytes.length] = (byte) sBytes.length;
+        System.arraycopy(sBytes, 0, out, 6 + rBytes.length, sBytes.length);
+        return out;
+    }
+
+    /** @return the encoding of {@code key}, see the class comment */
+    public static byte[] encode(PublicKey key) {
+        switch (of(key)) {
+        case ED25519: {
+            EdECPoint point = ((EdECPublicKey) key).getPoint();
+            byte[] out = new byte[33];
+            out[0] = (byte) ED25519.tag;
+            // little endian y, the top bit of the last byte tells whether x is odd
+            byte[] y = point.getY().toByteArray();
+            for (int i = 0; i < 32 && i < y.length; i++)
+                out[1 + i] = y[y.length - 1 - i];
+            if (point.isXOdd())
+                out[32] |= (byte) 0x80;
+            return out;
+        }
+        case ECDSA: {
+            ECPoint point = ((ECPublicKey) key).getW();
+            byte[] out = new byte[34];
+            out[0] = (byte) ECDSA.tag;
+            out[1] = (byte) (point.getAffineY().testBit(0) ? 3 : 2);
+            byte[] x = point.getAffineX().toByteArray();
+            int n = Math.min(32, x.length);
+            System.arraycopy(x, x.length - n, out, 34 - n, n);
+            return out;
+        }
+        default:
+            return key.getEncoded();
+        }
+    }
+
+    /**
+     * @return the key {@code encoded} by {@link #encode}
+     * @throws IllegalArgumentException if {@code encoded} is not the encoding of a key
+     */
+    public static PublicKey decode(byte[] encoded) {
+        if (encoded.length == 0)
+            throw new IllegalArgumentException("empty key");
+        try {
+            if (encoded[0] == ED25519.tag && encoded.length == 33) {
+                byte[] y = new byte[32];
+                for (int i = 0; i < 32; i++)
+                    y[i] = encoded[32 - i];
+                boolean xOdd = (y[0] & 0x80) != 0;
+                y[0] &= 0x7f;
+                EdECPoint point = new EdECPoint(xOdd, new BigInteger(1, y));
+                return ED25519.keyFactories.get().generatePublic(new EdECPublicKeySpec(NamedParameterSpec.ED25519, point));
+            }
+            if (encoded[0] == ECDSA.tag && encoded.length == 34 && (encoded[1] == 2 || encoded[1] == 3)) {
+                BigInteger p = ((ECFieldFp) CURVE_PARAMS.getCurve().getField()).getP();
+                BigInteger x = new BigInteger(1, Arrays.copyOfRange(encoded, 2, 34));
+                // y^2 = x^3 + ax + b, and p = 3 mod 4 so a square root is a power (p + 1) / 4
+                BigInteger rhs = x.pow(3).add(CURVE_PARAMS.getCurve().getA().multiply(x))
+                        .add(CURVE_PARAMS.getCurve().getB()).mod(p);
+                BigInteger y = rhs.modPow(p.add(BigInteger.ONE).shiftRight(2), p);
+                if (!y.multiply(y).mod(p).equals(rhs))
+                    throw new IllegalArgumentException("not a point of " + CURVE);
+                if (y.testBit(0) != (encoded[1] == 3))
+                    y = p.subtract(y);
+                return ECDSA.keyFactories.get().generatePublic(new ECPublicKeySpec(new ECPoint(x, y), CURVE_PARAMS));
+            }
+            if (encoded[0] == RSA.tag)
+                return RSA.keyFactories.get().generatePublic(new X509EncodedKeySpec(encoded));
+        } catch (GeneralSecurityException x) {
+            throw new IllegalArgumentException(x);
+        }
+        throw new IllegalArgumentException("unknown key encoding, tag " + encoded[0]);
+    }
+}
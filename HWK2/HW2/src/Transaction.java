@@ -6,14 +6,27 @@ import java.security.PublicKey;
 import java.security.interfaces.RSAPublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
-
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A tx is built mutable, e.g. to sign its inputs, then finalized to compute its hash. A tx made by
+ * a {@link Builder}, decoded from a peer or minted as a coinbase is sealed instead: its inputs and
+ * outputs cannot change, so its hash, raw bytes and signed data are computed once and shared by
+ * every thread, block and pool holding it. Outputs cannot change in any tx; a sealed tx hands out
+ * copies of its hash, raw bytes and inputs, while the package reads them in place through
+ * {@link #hashBytes}, {@link #rawTxBytes} and {@link #inputs}.
+ */
 public class Transaction {
 
+    /** base units per bitcoin; amounts are whole numbers of units so that sums are exact */
+    public static final long COIN = 100_000_000L;
+
     public class Input {
         /** hash of the Transaction whose output is being used */
-        public byte[] prevTxHash;
+        public final byte[] prevTxHash;
         /** used output's index in the previous transaction */
-        public int outputIndex;
+        public final int outputIndex;
         /** the signature produced to check validity */
         public byte[] signature;
 
@@ -25,7 +38,14 @@ public class Transaction {
             outputIndex = index;
         }
 
+        /** a copy of {@code in} with its own arrays, belonging to the same tx */
+        private Input(Input in) {
+            this(in.prevTxHash, in.outputIndex);
+            signature = in.signature == null ? null : in.signature.clone();
+        }
+
         public void addSignature(byte[] sig) {
+            checkNotSealed();
             if (sig == null)
                 signature = null;
             else
@@ -69,12 +89,12 @@ public class Transaction {
     }
 
     public class Output {
-        /** value in bitcoins of the output */
-        public double value;
+        /** value of the output in base units, {@link #COIN} units make one bitcoin */
+        public final long value;
         /** the address or public key of the recipient */
-        public PublicKey address;
+        public final PublicKey address;
 
-        public Output(double v, PublicKey addr) {
+        public Output(long v, PublicKey addr) {
             value = v;
             address = addr;
         }
@@ -91,29 +111,30 @@ public class Transaction {
 
             if (value != op.value)
                 return false;
-            if (!((RSAPublicKey) address).getPublicExponent().equals(
-                    ((RSAPublicKey) op.address).getPublicExponent()))
-                return false;
-            if (!((RSAPublicKey) address).getModulus().equals(
-                    ((RSAPublicKey) op.address).getModulus()))
-                return false;
-            return true;
+            // JDK keys are equal when their encodings are, whatever their scheme
+            return address.equals(op.address);
         }
 
         public int hashCode() {
             int hash = 1;
-            hash = hash * 17 + (int) value * 10000;
-            hash = hash * 31 + ((RSAPublicKey) address).getPublicExponent().hashCode();
-            hash = hash * 31 + ((RSAPublicKey) address).getModulus().hashCode();
+            // spread the bits first, values are mostly multiples of a round number of units
+            hash = hash * 17 + Long.hashCode(value * 0x9E3779B97F4A7C15L);
+            hash = hash * 31 + address.hashCode();
             return hash;
         }
     }
 
     /** hash of the transaction, its unique id */
     private byte[] hash;
-    private ArrayList<Input> inputs;
-    private ArrayList<Output> outputs;
+    private List<Input> inputs;
+    private List<Output> outputs;
+    /** encoding of the outputs, see {@link #encodedOutputs} */
+    private EncodedOutputs encoded;
     private boolean coinbase;
+    /** true once the tx cannot change, see {@link #seal} */
+    private boolean sealed;
+    /** the raw tx, computed once for a sealed tx */
+    private volatile byte[] rawTx;
 
     public Transaction() {
         inputs = new ArrayList<Input>();
@@ -121,20 +142,95 @@ public class Transaction {
         coinbase = false;
     }
 
+    /** a mutable copy of {@code tx}, sharing none of its inputs */
     public Transaction(Transaction tx) {
-        hash = tx.hash.clone();
-        inputs = new ArrayList<Input>(tx.inputs);
+        hash = tx.hash == null ? null : tx.hash.clone();
+        inputs = new ArrayList<Input>(tx.inputs.size());
+        for (Input in : tx.inputs) {
+            Input copy = new Input(in.prevTxHash, in.outputIndex);
+            copy.addSignature(in.signature);
+            inputs.add(copy);
+        }
+        // outputs cannot change, so the copy shares them
         outputs = new ArrayList<Output>(tx.outputs);
         coinbase = false;
     }
 
-    /** create a coinbase transaction of value {@code coin} and calls finalize on it */
-    public Transaction(double coin, PublicKey address) {
+    /** create a sealed coinbase transaction of {@code coin} base units */
+    public Transaction(long coin, PublicKey address) {
         coinbase = true;
         inputs = new ArrayList<Input>();
         outputs = new ArrayList<Output>();
-        addOutput(coin, address);
+        addOutputUnits(coin, address);
+        seal();
+    }
+
+    /**
+     * Builds a sealed tx. The signed data of an input can be taken from the builder once all the
+     * outputs are added, and the signatures added before {@link #build}:
+     * <pre>
+     * Transaction.Builder builder = new Transaction.Builder().addInput(prevTxHash, 0).addOutput(10, address);
+     * builder.addSignature(SignatureScheme.RSA.sign(key, builder.getRawDataToSign(0)), 0);
+     * Transaction tx = builder.build();
+     * </pre>
+     */
+    public static class Builder {
+        private final Transaction tx = new Transaction();
+
+        public Builder addInput(byte[] prevTxHash, int outputIndex) {
+            tx.addInput(prevTxHash, outputIndex);
+            return this;
+        }
+
+        /** adds an output of {@code value} bitcoins, rounded to the nearest base unit */
+        public Builder addOutput(double value, PublicKey address) {
+            tx.addOutput(value, address);
+            return this;
+        }
+
+        /** adds an output of exactly {@code units} base units */
+        public Builder addOutputUnits(long units, PublicKey address) {
+            tx.addOutputUnits(units, address);
+            return this;
+        }
+
+        /** @return the data input {@code index} signs, valid as long as no output is added */
+        public byte[] getRawDataToSign(int index) {
+            return tx.getRawDataToSign(index);
+        }
+
+        public Builder addSignature(byte[] signature, int index) {
+            tx.addSignature(signature, index);
+            return this;
+        }
+
+        /** @return a sealed tx of the inputs and outputs added so far, the builder can go on */
+        public Transaction build() {
+            return new Transaction(tx).seal();
+        }
+    }
+
+    /**
+     * Makes this tx immutable and computes its hash; the inputs and outputs must not be reachable
+     * from anywhere else.
+     */
+    private Transaction seal() {
         finalize();
+        inputs = Collections.unmodifiableList(inputs);
+        outputs = Collections.unmodifiableList(outputs);
+        encodedOutputs();
+        sealed = true;
+        return this;
+    }
+
+    /** @return true if this tx cannot change */
+    public boolean isSealed() {
+        return sealed;
+    }
+
+    private void checkNotSealed() {
+        if (sealed)
+            throw new IllegalStateException("transaction is sealed");
     }
 
     public boolean isCoinbase() {
@@ -142,23 +238,48 @@ public class Transaction {
     }
 
     public void addInput(byte[] prevTxHash, int outputIndex) {
+        checkNotSealed();
         Input in = new Input(prevTxHash, outputIndex);
         this.inputs.add(in);
     }
 
+    /** adds an output of {@code value} bitcoins, rounded to the nearest base unit */
     public void addOutput(double value, PublicKey address) {
-        Output op = new Output(value, address);
+        addOutputUnits(toUnits(value), address);
+    }
+
+    /** adds an output of exactly {@code units} base units */
+    public void addOutputUnits(long units, PublicKey address) {
+        checkNotSealed();
+        Output op = new Output(units, address);
         outputs.add(op);
     }
 
+    /**
+     * @return {@code coins} bitcoins in base units, rounded to the nearest unit
+     * @throws ArithmeticException if {@code coins} is NaN or does not fit in a long of units
+     */
+    public static long toUnits(double coins) {
+        if (!(Math.abs(coins) <= Long.MAX_VALUE / COIN))
+            throw new ArithmeticException("amount out of range: " + coins);
+        return Math.round(coins * COIN);
+    }
+
+    /** @return {@code units} base units in bitcoins, for display; not exact for large amounts */
+    public static double toCoins(long units) {
+        return (double) units / COIN;
+    }
+
     public void removeInput(int index) {
+        checkNotSealed();
         inputs.remove(index);
     }
 
     public void removeInput(UTXO ut) {
+        checkNotSealed();
         for (int i = 0; i < inputs.size(); i++) {
             Input in = inputs.get(i);
-            UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
+            UTXO u = UTXO.wrap(in.prevTxHash, in.outputIndex);
             if (u.equals(ut)) {
                 inputs.remove(i);
                 return;
@@ -166,109 +287,205 @@ public class Transaction {
         }
     }
 
+    /**
+     * @return the data input {@code index} signs: the output it spends, then every output of this
+     *         tx. The outputs are encoded once and shared by all inputs, so their keys are not
+     *         converted again for each input; each call still copies the encoded outputs, and
+     *         every input still hashes them all when signed or verified.
+     */
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
         if (index > inputs.size())
             return null;
         Input in = inputs.get(index);
-        byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
-        if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                sigData.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                sigData.add(addressModulus[i]);
-        }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
-        return sigD;
+        byte[] outputsData = encodedOutputs();
+        int hashLength = in.prevTxHash == null ? 0 : in.prevTxHash.length;
+        ByteBuffer sigData = ByteBuffer.allocate(hashLength + Integer.BYTES + outputsData.length);
+        if (in.prevTxHash != null)
+            sigData.put(in.prevTxHash);
+        sigData.putInt(in.outputIndex);
+        sigData.put(outputsData);
+        return sigData.array();
     }
 
     public void addSignature(byte[] signature, int index) {
         inputs.get(index).addSignature(signature);
     }
 
+    /** @return the raw tx, a copy for a sealed tx */
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
+        return sealed ? rawTxBytes().clone() : encodeRawTx();
+    }
+
+    /** @return the raw tx, for a sealed tx the cached array itself, for callers that only read it */
+    byte[] rawTxBytes() {
+        if (sealed) {
+            byte[] raw = rawTx;
+            if (raw == null) {
+                raw = encodeRawTx();
+                rawTx = raw;
+            }
+            return raw;
+        }
+        return encodeRawTx();
+    }
+
+    private byte[] encodeRawTx() {
+        byte[] outputsData = encodedOutputs();
+        int length = outputsData.length;
+        for (Input in : inputs) {
+            length += Integer.BYTES;
+            if (in.prevTxHash != null)
+                length += in.prevTxHash.length;
+            if (in.signature != null)
+                length += in.signature.length;
+        }
+        ByteBuffer rawTx = ByteBuffer.allocate(length);
         for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
+            if (in.prevTxHash != null)
+                rawTx.put(in.prevTxHash);
+            rawTx.putInt(in.outputIndex);
+            if (in.signature != null)
+                rawTx.put(in.signature);
         }
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                rawTx.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                rawTx.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                rawTx.add(addressModulus[i]);
+        rawTx.put(outputsData);
+        return rawTx.array();
+    }
+
+    /** @return the value and address of every output, as they appear in the raw tx and the signed data */
+    private byte[] encodedOutputs() {
+        EncodedOutputs encoded = this.encoded;
+        if (sealed)
+            return encoded.bytes;
+        if (encoded == null || !encoded.matches(outputs)) {
+            encoded = new EncodedOutputs(outputs);
+            this.encoded = encoded;
+        }
+        return encoded.bytes;
+    }
+
+    /**
+     * The outputs of a tx encoded once, with the outputs they were encoded from: outputs cannot
+     * change, but can be added and removed, so the encoding is only reused while the tx holds the
+     * same output objects. Checking that costs a comparison per output, encoding an RSA key costs a
+     * conversion of its modulus. Immutable, so threads can share it.
+     */
+    private static class EncodedOutputs {
+        final byte[] bytes;
+        final Output[] outputs;
+
+        EncodedOutputs(List<Output> outputs) {
+            int n = outputs.size();
+            this.outputs = outputs.toArray(new Output[n]);
+            byte[][] addressBytes = new byte[n][];
+            int length = 0;
+            for (int i = 0; i < n; i++) {
+                addressBytes[i] = addressBytes(this.outputs[i].address);
+                length += Long.BYTES + addressBytes[i].length;
+            }
+            ByteBuffer b = ByteBuffer.allocate(length);
+            for (int i = 0; i < n; i++)
+                b.putLong(this.outputs[i].value).put(addressBytes[i]);
+            bytes = b.array();
+        }
+
+        boolean matches(List<Output> current) {
+            if (current.size() != outputs.length)
+                return false;
+            for (int i = 0; i < outputs.length; i++) {
+                if (current.get(i) != outputs[i])
+                    return false;
+            }
+            return true;
         }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
+    }
+
+    /**
+     * @return the bytes standing for {@code address} in the raw tx and the signed data: the public
+     *         exponent and modulus of an RSA key, as txs always had, or the {@link SignatureScheme}
+     *         encoding of any other key
+     */
+    static byte[] addressBytes(PublicKey address) {
+        if (!(address instanceof RSAPublicKey))
+            return SignatureScheme.encode(address);
+        byte[] exponent = ((RSAPublicKey) address).getPublicExponent().toByteArray();
+        byte[] modulus = ((RSAPublicKey) address).getModulus().toByteArray();
+        byte[] bytes = Arrays.copyOf(exponent, exponent.length + modulus.length);
+        System.arraycopy(modulus, 0, bytes, exponent.length, modulus.length);
+        return bytes;
     }
 
     public void finalize() {
+        // the hash of a sealed tx is already final
+        if (sealed)
+            return;
+        hash = computeHash();
+    }
+
+    private byte[] computeHash() {
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
-            hash = md.digest();
+            md.update(rawTxBytes());
+            return md.digest();
         } catch (NoSuchAlgorithmException x) {
             x.printStackTrace(System.err);
+            return null;
         }
     }
 
+    /**
+     * @return true if {@link #getHash()} is the hash of the tx as it is now: always for a sealed tx,
+     *         while an unsealed one may have changed since its last {@link #finalize()}, so its hash
+     *         is computed again
+     */
+    public boolean isHashCurrent() {
+        if (sealed)
+            return true;
+        return hash != null && MessageDigest.isEqual(hash, computeHash());
+    }
+
     public void setHash(byte[] h) {
+        checkNotSealed();
         hash = h;
     }
 
+    /** @return the hash of the tx, a copy for a sealed tx */
     public byte[] getHash() {
+        return sealed ? hash.clone() : hash;
+    }
+
+    /** @return the hash itself, not a copy, for callers that only read it */
+    byte[] hashBytes() {
         return hash;
     }
 
-    public ArrayList<Input> getInputs() {
+    /** @return the inputs, copies for a sealed tx */
+    public List<Input> getInputs() {
+        if (!sealed)
+            return inputs;
+        ArrayList<Input> copies = new ArrayList<Input>(inputs.size());
+        for (Input in : inputs)
+            copies.add(new Input(in));
+        return Collections.unmodifiableList(copies);
+    }
+
+    /** @return the inputs themselves, not copies, for callers that only read them */
+    List<Input> inputs() {
         return inputs;
     }
 
-    public ArrayList<Output> getOutputs() {
+    public List<Output> getOutputs() {
         return outputs;
     }
 
+    /** @return input {@code index}, a copy for a sealed tx, or null if there is none */
     public Input getInput(int index) {
+        Input in = input(index);
+        return sealed && in != null ? new Input(in) : in;
+    }
+
+    /** @return input {@code index} itself, not a copy, for callers that only read it */
+    Input input(int index) {
         if (index < inputs.size()) {
             return inputs.get(index);
         }
@@ -304,7 +521,7 @@ public class Transaction {
             return false;
 
         for (int i = 0; i < numInputs(); i++) {
-            if (!getInput(i).equals(tx.getInput(i)))
+            if (!input(i).equals(tx.input(i)))
                 return false;
         }
 
@@ -321,7 +538,7 @@ public class Transaction {
     public int hashCode() {
         int hash = 1;
         for (int i = 0; i < numInputs(); i++) {
-            hash = hash * 31 + getInput(i).hashCode();
+            hash = hash * 31 + input(i).hashCode();
         }
         for (int i = 0; i < numOutputs(); i++) {
             hash = hash * 31 + getOutput(i).hashCode();
@@ -1,39 +1,159 @@
-
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeMap;
 
+/**
+ * The txs waiting for a block, in arrival order except for the txs given back by a reorganization,
+ * which go first. An index from each outpoint to the pooled txs spending it lets conflicts and their
+ * descendants be evicted without scanning the pool.
+ */
 public class TransactionPool {
 
     private HashMap<ByteArrayWrapper, Transaction> H;
+    /** hashes of the txs in the pool whose signatures are known to be valid */
+    private HashSet<ByteArrayWrapper> verified;
+    /** the pooled txs by sequence number, and the sequence number of each */
+    private TreeMap<Long, Transaction> order;
+    private HashMap<ByteArrayWrapper, Long> sequence;
+    /** the pooled txs spending each outpoint, usually one */
+    private HashMap<UTXO, ArrayList<ByteArrayWrapper>> spenders;
+    private long nextLast;
+    private long nextFirst = -1;
 
     public TransactionPool() {
         H = new HashMap<ByteArrayWrapper, Transaction>();
+        verified = new HashSet<ByteArrayWrapper>();
+        order = new TreeMap<Long, Transaction>();
+        sequence = new HashMap<ByteArrayWrapper, Long>();
+        spenders = new HashMap<UTXO, ArrayList<ByteArrayWrapper>>();
     }
 
     public TransactionPool(TransactionPool txPool) {
         H = new HashMap<ByteArrayWrapper, Transaction>(txPool.H);
+        verified = new HashSet<ByteArrayWrapper>(txPool.verified);
+        order = new TreeMap<Long, Transaction>(txPool.order);
+        sequence = new HashMap<ByteArrayWrapper, Long>(txPool.sequence);
+        spenders = new HashMap<UTXO, ArrayList<ByteArrayWrapper>>();
+        for (UTXO utxo : txPool.spenders.keySet())
+            spenders.put(utxo, new ArrayList<ByteArrayWrapper>(txPool.spenders.get(utxo)));
+        nextLast = txPool.nextLast;
+        nextFirst = txPool.nextFirst;
     }
 
     public void addTransaction(Transaction tx) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
+        add(tx, nextLast++);
+    }
+
+    /**
+     * Puts {@code txs}, in this order, ahead of every pooled tx and marks them verified; for the
+     * txs of disconnected blocks, whose signatures were checked when the blocks were added.
+     */
+    void addTransactionsFirst(List<Transaction> txs) {
+        for (int i = txs.size() - 1; i >= 0; i--)
+            verified.add(add(txs.get(i), nextFirst--));
+    }
+
+    /** @return the key of {@code tx}, a copy of its hash since the pool keeps it */
+    private ByteArrayWrapper add(Transaction tx, long seq) {
+        ByteArrayWrapper hash = new ByteArrayWrapper(tx.hashBytes());
+        if (H.containsKey(hash))
+            removeTransaction(tx.hashBytes());
         H.put(hash, tx);
+        order.put(seq, tx);
+        sequence.put(hash, seq);
+        for (Transaction.Input in : tx.inputs()) {
+            if (in.prevTxHash == null)
+                continue;
+            ArrayList<ByteArrayWrapper> txs = spenders.get(UTXO.wrap(in.prevTxHash, in.outputIndex));
+            if (txs == null) {
+                txs = new ArrayList<ByteArrayWrapper>(1);
+                spenders.put(new UTXO(in.prevTxHash, in.outputIndex), txs);
+            }
+            txs.add(hash);
+        }
+        return hash;
     }
 
     public void removeTransaction(byte[] txHash) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        H.remove(hash);
+        ByteArrayWrapper hash = ByteArrayWrapper.wrap(txHash);
+        Transaction tx = H.remove(hash);
+        if (tx == null)
+            return;
+        verified.remove(hash);
+        order.remove(sequence.remove(hash));
+        for (Transaction.Input in : tx.inputs()) {
+            if (in.prevTxHash == null)
+                continue;
+            UTXO utxo = UTXO.wrap(in.prevTxHash, in.outputIndex);
+            ArrayList<ByteArrayWrapper> txs = spenders.get(utxo);
+            txs.remove(hash);
+            if (txs.isEmpty())
+                spenders.remove(utxo);
+        }
+    }
+
+    /**
+     * Evicts every pooled tx spending one of {@code outpoints}, and the pooled txs spending their
+     * outputs in turn; takes time in the number of outpoints and evicted txs, not the pool size.
+     *
+     * @return the number of txs evicted
+     */
+    int removeSpenders(Collection<UTXO> outpoints) {
+        ArrayDeque<UTXO> pending = new ArrayDeque<UTXO>(outpoints);
+        int removed = 0;
+        while (!pending.isEmpty()) {
+            ArrayList<ByteArrayWrapper> txs = spenders.get(pending.poll());
+            if (txs == null)
+                continue;
+            for (ByteArrayWrapper hash : new ArrayList<ByteArrayWrapper>(txs)) {
+                // a tx spending the outpoint twice is listed twice, and gone after the first
+                Transaction tx = H.get(hash);
+                if (tx == null)
+                    continue;
+                removeTransaction(tx.hashBytes());
+                removed++;
+                for (int i = 0; i < tx.numOutputs(); i++)
+                    pending.add(UTXO.wrap(tx.hashBytes(), i));
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Records that the signatures of the pooled tx with hash {@code txHash} are valid. They sign the
+     * outputs they spend by hash, so this holds on top of any block where those outputs exist.
+     */
+    public void markVerified(byte[] txHash) {
+        if (H.containsKey(ByteArrayWrapper.wrap(txHash)))
+            verified.add(new ByteArrayWrapper(txHash));
+    }
+
+    /** @return true if the tx with hash {@code txHash} is in the pool with verified signatures */
+    public boolean isVerified(byte[] txHash) {
+        return verified.contains(ByteArrayWrapper.wrap(txHash));
+    }
+
+    /**
+     * @return true if {@code tx} is in the pool with verified signatures and is still the tx that
+     *         was verified: an unsealed tx may have changed without being finalized again, so its
+     *         hash is recomputed first
+     */
+    public boolean isVerified(Transaction tx) {
+        return isVerified(tx.hashBytes()) && tx.isHashCurrent();
     }
 
     public Transaction getTransaction(byte[] txHash) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
+        ByteArrayWrapper hash = ByteArrayWrapper.wrap(txHash);
         return H.get(hash);
     }
 
+    /** @return the pooled txs, in pool order */
     public ArrayList<Transaction> getTransactions() {
-        ArrayList<Transaction> T = new ArrayList<Transaction>();
-        for (Transaction tx : H.values())
-            T.add(tx);
-        return T;
+        return new ArrayList<Transaction>(order.values());
     }
 
     public int getTransactionPoolSize(){
@@ -1,11 +1,45 @@
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 
 public class TxHandler {
+	private static final LatencyHistogram UTXO_LOOKUP = Metrics.getDefault().histogram("utxo_lookup_seconds");
+	private static final LatencyHistogram SIGNATURE_VERIFY = Metrics.getDefault().histogram("signature_verify_seconds");
+	/** rejection counters indexed by {@code Verdict.Reason.ordinal()} */
+	private static final LongAdder[] REJECTED = new LongAdder[Verdict.Reason.values().length];
+	static {
+		for (Verdict.Reason reason : new Verdict.Reason[] { Verdict.Reason.MISSING_INPUT, Verdict.Reason.BAD_SIGNATURE,
+				Verdict.Reason.DOUBLE_SPEND, Verdict.Reason.INVALID_OUTPUT_VALUE, Verdict.Reason.INSUFFICIENT_INPUT, Verdict.Reason.VALUE_OVERFLOW })
+			REJECTED[reason.ordinal()] = Metrics.getDefault().counter("tx_rejected_total{reason=\"" + reason.label + "\"}");
+	}
+
+	private static final LongAdder SIGNATURES_SKIPPED = Metrics.getDefault().counter("signature_verify_skipped_total");
+	private static final LongAdder SIGNATURES_PREVERIFIED = Metrics.getDefault().counter("signature_verify_preverified_total");
+
+	/** cost of checking one input or output of a block, the unit of {@link #handleBlockTxs} budgets */
+	public static final long LOOKUP_COST = 1;
+	/** cost of checking one signature of a block; an RSA verification takes about as long as 100 lookups */
+	public static final long SIGNATURE_COST = 100;
+	/** one UTXO lookup in LOOKUP_SAMPLE, a power of two, is timed: timing them all would cost about as much as the lookups */
+	private static final int LOOKUP_SAMPLE = 64;
+
 	private UTXOPool utxoPool;
+	// txs whose signatures were verified before, e.g. when they entered the pool
+	private TransactionPool verifiedTxs;
+	// public keys that the signature of input (tx hash, input index) was checked against, see BlockPipeline
+	private Map<UTXO, PublicKey> preverified;
+	// signature checks of the current epoch, for the ChainEvents.SignatureBatch event
+	private int signatures;
+	private int invalidSignatures;
+	private long verifyNanos;
+	// UTXO lookups so far, to time one in LOOKUP_SAMPLE
+	private int lookups;
 
 	/**
 	 * Creates a public ledger whose current UTXOPool (collection of unspent
@@ -16,6 +50,27 @@ public class TxHandler {
 		this.utxoPool = new UTXOPool(utxoPool);
 	}
 
+	/**
+	 * Same as {@link #TxHandler(UTXOPool)}, but does not check the signatures of
+	 * the txs that {@code verifiedTxs} holds as verified; all other rules are
+	 * still checked.
+	 */
+	public TxHandler(UTXOPool utxoPool, TransactionPool verifiedTxs) {
+		this(utxoPool);
+		this.verifiedTxs = verifiedTxs;
+	}
+
+	/**
+	 * Same as {@link #TxHandler(UTXOPool, TransactionPool)}, but also does not check
+	 * the signature of input i of a tx when {@code preverified} maps UTXO(tx hash, i)
+	 * to the key of the output it spends, i.e. it was found valid for that key
+	 * ahead of time.
+	 */
+	TxHandler(UTXOPool utxoPool, TransactionPool verifiedTxs, Map<UTXO, PublicKey> preverified) {
+		this(utxoPool, verifiedTxs);
+		this.preverified = preverified;
+	}
+
 	/**
 	 * @return true if: (1) all outputs claimed by {@code tx} are in the current
 	 *         UTXO pool, (2) the signatures on each input of {@code tx} are valid,
@@ -26,29 +81,59 @@ public class TxHandler {
 	 *         output value be equal? Otherwise the ledger will become unbalanced.
 	 */
 	public boolean isValidTx(Transaction tx) {
+		return validateTx(tx).isAccepted();
+	}
+
+	/**
+	 * Checks the same rules as {@link #isValidTx}, in the same order.
+	 * 
+	 * @return {@code Verdict.ACCEPTED}, or the first rule {@code tx} breaks with the
+	 *         offending input or output index
+	 */
+	public Verdict validateTx(Transaction tx) {
 		Set<UTXO> claimedUTXO = new HashSet<UTXO>();
-		double inputSum = 0;
-		double outputSum = 0;
+		// in base units, so that the sums are exact
+		long inputSum = 0;
+		long outputSum = 0;
 
-		List<Transaction.Input> inputs = tx.getInputs();
+		List<Transaction.Input> inputs = tx.inputs();
+		boolean signaturesVerified = verifiedTxs != null && verifiedTxs.isVerified(tx);
+		if (signaturesVerified)
+			SIGNATURES_SKIPPED.add(inputs.size());
 		for (int i = 0; i < inputs.size(); i++) {
 			Transaction.Input input = inputs.get(i);
+			// one key per input, shared by the lookup, the signature check and the claimed set
+			UTXO utxo = UTXO.wrap(input.prevTxHash, input.outputIndex);
+			Transaction.Output correspondingOutput = lookup(utxo);
 
-			if (!isConsumedCoinAvailable(input)) {
-				return false;
+			if (correspondingOutput == null) {
+				return reject(Verdict.Reason.MISSING_INPUT, i);
 			}
 
-			if (!verifySignatureOfConsumeCoin(tx, i, input)) {
-				return false;
+			if (!signaturesVerified && isPreverified(tx, i, correspondingOutput)) {
+				SIGNATURES_PREVERIFIED.increment();
+			} else if (!signaturesVerified) {
+				long start = System.nanoTime();
+				boolean signatureValid = verifySignatureOfConsumeCoin(tx, i, input, correspondingOutput);
+				long verifyTime = System.nanoTime() - start;
+				SIGNATURE_VERIFY.record(verifyTime);
+				signatures++;
+				verifyNanos += verifyTime;
+				if (!signatureValid) {
+					invalidSignatures++;
+					return reject(Verdict.Reason.BAD_SIGNATURE, i);
+				}
 			}
 
-			if (isCoinConsumedMultipleTimes(claimedUTXO, input)) {
-				return false;
+			if (isCoinConsumedMultipleTimes(claimedUTXO, utxo)) {
+				return reject(Verdict.Reason.DOUBLE_SPEND, i);
 			}
 
-			UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
-			Transaction.Output correspondingOutput = utxoPool.getTxOutput(utxo);
-			inputSum += correspondingOutput.value;
+			try {
+				inputSum = Math.addExact(inputSum, correspondingOutput.value);
+			} catch (ArithmeticException e) {
+				return reject(Verdict.Reason.VALUE_OVERFLOW, i);
+			}
 
 		}
 
@@ -56,49 +141,97 @@ public class TxHandler {
 		for (int i = 0; i < outputs.size(); i++) {
 			Transaction.Output output = outputs.get(i);
 			if (output.value <= 0) {
-				return false;
+				return reject(Verdict.Reason.INVALID_OUTPUT_VALUE, i);
 			}
 
-			outputSum += output.value;
+			try {
+				outputSum = Math.addExact(outputSum, output.value);
+			} catch (ArithmeticException e) {
+				return reject(Verdict.Reason.VALUE_OVERFLOW, i);
+			}
 		}
 
 		// Should the input value and output value be equal? Otherwise the ledger will
 		// become unbalanced.
 		// The difference between inputSum and outputSum is the transaction fee
 		if (outputSum > inputSum) {
-			return false;
+			return reject(Verdict.Reason.INSUFFICIENT_INPUT, -1);
 		}
 
+		return Verdict.ACCEPTED;
+	}
+
+	private boolean isPreverified(Transaction tx, int index, Transaction.Output spent) {
+		if (preverified == null)
+			return false;
+		PublicKey key = preverified.get(UTXO.wrap(tx.hashBytes(), index));
+		return key != null && key.equals(spent.address);
+	}
+
+	/** @return the output of {@code utxo} in the pool, timing one lookup in LOOKUP_SAMPLE */
+	private Transaction.Output lookup(UTXO utxo) {
+		if ((lookups++ & (LOOKUP_SAMPLE - 1)) != 0)
+			return utxoPool.getTxOutput(utxo);
+		long start = System.nanoTime();
+		Transaction.Output output = utxoPool.getTxOutput(utxo);
+		UTXO_LOOKUP.recordSince(start);
+		return output;
+	}
+
+	private static Verdict reject(Verdict.Reason reason, int index) {
+		REJECTED[reason.ordinal()].increment();
+		return Verdict.reject(reason, index);
+	}
+
+	/**
+	 * @return true if every input of {@code tx} spends an output of the current
+	 *         pool and carries a valid signature for it; the other rules are not
+	 *         checked
+	 */
+	public boolean verifySignatures(Transaction tx) {
+		for (int i = 0; i < tx.numInputs(); i++) {
+			Transaction.Input input = tx.input(i);
+			Transaction.Output output = utxoPool.getTxOutput(UTXO.wrap(input.prevTxHash, input.outputIndex));
+			if (output == null || !verifySignatureOfConsumeCoin(tx, i, input, output))
+				return false;
+		}
 		return true;
 	}
 
-	private boolean isCoinConsumedMultipleTimes(Set<UTXO> claimedUTXO, Transaction.Input input) {
-		UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+	private boolean isCoinConsumedMultipleTimes(Set<UTXO> claimedUTXO, UTXO utxo) {
 		return !claimedUTXO.add(utxo);
 	}
 
-	private boolean verifySignatureOfConsumeCoin(Transaction tx, int index, Transaction.Input input) {
-		UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
-		Transaction.Output correspondingOutput = utxoPool.getTxOutput(utxo);
+	private boolean verifySignatureOfConsumeCoin(Transaction tx, int index, Transaction.Input input,
+			Transaction.Output correspondingOutput) {
 		PublicKey pk = correspondingOutput.address;
 		return Crypto.verifySignature(pk, tx.getRawDataToSign(index), input.signature);
 	}
 
-	private boolean isConsumedCoinAvailable(Transaction.Input input) {
-		UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
-		return utxoPool.contains(utxo);
-	}
-
 	/**
 	 * Handles each epoch by receiving an unordered array of proposed transactions,
 	 * checking each transaction for correctness, returning a mutually valid array
 	 * of accepted transactions, and updating the current UTXO pool as appropriate.
 	 */
 	public Transaction[] handleTxs(Transaction[] possibleTxs) {
+		return handleTxs(possibleTxs, null);
+	}
+
+	/**
+	 * Same as {@link #handleTxs(Transaction[])}, additionally storing the verdict of
+	 * {@code possibleTxs[i]} in {@code verdicts[i]} unless {@code verdicts} is null.
+	 */
+	public Transaction[] handleTxs(Transaction[] possibleTxs, Verdict[] verdicts) {
+		ChainEvents.TxEpoch epoch = beginEpoch();
+		ChainEvents.SignatureBatch batch = new ChainEvents.SignatureBatch();
+		batch.begin();
 		List<Transaction> acceptedTx = new ArrayList<Transaction>();
 		for (int i = 0; i < possibleTxs.length; i++) {
 			Transaction tx = possibleTxs[i];
-			if (isValidTx(tx)) {
+			Verdict verdict = validateTx(tx);
+			if (verdicts != null)
+				verdicts[i] = verdict;
+			if (verdict.isAccepted()) {
 				acceptedTx.add(tx);
 
 				removeConsumedCoinsFromPool(tx);
@@ -108,25 +241,223 @@ public class TxHandler {
 
 		Transaction[] result = new Transaction[acceptedTx.size()];
 		acceptedTx.toArray(result);
+		endEpoch(epoch, batch, possibleTxs.length, result.length, false);
 		return result;
 	}
 
+	/**
+	 * Applies {@code txs} in order as long as they are valid, stopping at the first
+	 * invalid one. Used for blocks, which are rejected as soon as one of their
+	 * transactions is; the pool is left partially updated in that case.
+	 * 
+	 * @return {@code Verdict.ACCEPTED} if every transaction was applied, otherwise
+	 *         the verdict of the first invalid one, attributed to its position
+	 */
+	public Verdict handleAllTxs(Transaction[] txs) {
+		ChainEvents.TxEpoch epoch = beginEpoch();
+		ChainEvents.SignatureBatch batch = new ChainEvents.SignatureBatch();
+		batch.begin();
+		for (int i = 0; i < txs.length; i++) {
+			Verdict verdict = validateTx(txs[i]);
+			if (!verdict.isAccepted()) {
+				endEpoch(epoch, batch, txs.length, i, true);
+				return verdict.atTx(i);
+			}
+			removeConsumedCoinsFromPool(txs[i]);
+			addCreatedCoinsToPool(txs[i]);
+		}
+		endEpoch(epoch, batch, txs.length, txs.length, true);
+		return Verdict.ACCEPTED;
+	}
+
+	/**
+	 * Validates the txs of a block in order of cost, so that a bad block is rejected
+	 * before any signature is checked, then applies them to the pool:
+	 * <ol>
+	 * <li>structure: every input names an output and carries a signature, every
+	 * output value is positive and their sum fits in a long;</li>
+	 * <li>outpoints, with one set of the outputs the block spends: every input spends
+	 * an output of the pool or of an earlier tx of the block that no other input
+	 * spends, and each tx has enough input value;</li>
+	 * <li>signatures, except those verified before, see
+	 * {@link #TxHandler(UTXOPool, TransactionPool)}.</li>
+	 * </ol>
+	 * Before each stage its cost, {@link #LOOKUP_COST} per input and output and
+	 * {@link #SIGNATURE_COST} per signature to check, is added to the cost so far; the
+	 * block is rejected as soon as the total exceeds {@code costBudget}. The rules are
+	 * those of {@link #validateTx}, but a block breaking several may get another
+	 * reason than the first one in tx order. The pool is only updated if the block is
+	 * accepted.
+	 * 
+	 * @return {@code Verdict.ACCEPTED}, or the first failed check attributed to the
+	 *         position of its transaction
+	 */
+	public Verdict handleBlockTxs(Transaction[] txs, long costBudget) {
+		return handleBlockTxs(txs, null, costBudget);
+	}
+
+	/**
+	 * Same as {@link #handleBlockTxs(Transaction[], long)}, then also adds the outputs
+	 * of {@code coinbase}, if not null: an accepted block is applied to the pool as
+	 * one {@link UTXODelta}.
+	 */
+	public Verdict handleBlockTxs(Transaction[] txs, Transaction coinbase, long costBudget) {
+		ChainEvents.TxEpoch epoch = beginEpoch();
+		ChainEvents.SignatureBatch batch = new ChainEvents.SignatureBatch();
+		batch.begin();
+		Verdict verdict = validateBlockTxs(txs, costBudget);
+		if (!verdict.isAccepted()) {
+			endEpoch(epoch, batch, txs.length, verdict.getTxIndex(), true);
+			return verdict;
+		}
+		ArrayList<Transaction> applied = new ArrayList<Transaction>(Arrays.asList(txs));
+		if (coinbase != null)
+			applied.add(coinbase);
+		utxoPool.apply(UTXODelta.of(applied));
+		endEpoch(epoch, batch, txs.length, txs.length, true);
+		return Verdict.ACCEPTED;
+	}
+
+	private Verdict validateBlockTxs(Transaction[] txs, long costBudget) {
+		long cost = 0;
+		long[] outputSums = new long[txs.length];
+		for (int i = 0; i < txs.length; i++) {
+			Transaction tx = txs[i];
+			cost += LOOKUP_COST * (tx.numInputs() + tx.numOutputs());
+			if (cost > costBudget)
+				return Verdict.reject(Verdict.Reason.COST_EXCEEDED, -1).atTx(i);
+			for (int j = 0; j < tx.numInputs(); j++) {
+				Transaction.Input input = tx.input(j);
+				if (input.prevTxHash == null)
+					return reject(Verdict.Reason.MISSING_INPUT, j).atTx(i);
+				if (input.signature == null)
+					return reject(Verdict.Reason.BAD_SIGNATURE, j).atTx(i);
+			}
+			for (int j = 0; j < tx.numOutputs(); j++) {
+				long value = tx.getOutput(j).value;
+				if (value <= 0)
+					return reject(Verdict.Reason.INVALID_OUTPUT_VALUE, j).atTx(i);
+				try {
+					outputSums[i] = Math.addExact(outputSums[i], value);
+				} catch (ArithmeticException e) {
+					return reject(Verdict.Reason.VALUE_OVERFLOW, j).atTx(i);
+				}
+			}
+		}
+
+		// the outputs each input spends, for the signature checks
+		Transaction.Output[][] spentOutputs = new Transaction.Output[txs.length][];
+		HashSet<UTXO> spent = new HashSet<UTXO>();
+		HashMap<UTXO, Transaction.Output> created = new HashMap<UTXO, Transaction.Output>();
+		for (int i = 0; i < txs.length; i++) {
+			Transaction tx = txs[i];
+			spentOutputs[i] = new Transaction.Output[tx.numInputs()];
+			long inputSum = 0;
+			for (int j = 0; j < tx.numInputs(); j++) {
+				Transaction.Input input = tx.input(j);
+				UTXO utxo = UTXO.wrap(input.prevTxHash, input.outputIndex);
+				if (!spent.add(utxo))
+					return reject(Verdict.Reason.DOUBLE_SPEND, j).atTx(i);
+				Transaction.Output output = created.get(utxo);
+				if (output == null)
+					output = lookup(utxo);
+				if (output == null)
+					return reject(Verdict.Reason.MISSING_INPUT, j).atTx(i);
+				spentOutputs[i][j] = output;
+				try {
+					inputSum = Math.addExact(inputSum, output.value);
+				} catch (ArithmeticException e) {
+					return reject(Verdict.Reason.VALUE_OVERFLOW, j).atTx(i);
+				}
+			}
+			if (outputSums[i] > inputSum)
+				return reject(Verdict.Reason.INSUFFICIENT_INPUT, -1).atTx(i);
+			for (int j = 0; j < tx.numOutputs(); j++)
+				created.put(UTXO.wrap(tx.hashBytes(), j), tx.getOutput(j));
+		}
+
+		// which signatures need checking, so that their cost is known before the first one
+		boolean[] txVerified = new boolean[txs.length];
+		boolean[][] inputVerified = new boolean[txs.length][];
+		for (int i = 0; i < txs.length; i++) {
+			Transaction tx = txs[i];
+			txVerified[i] = verifiedTxs != null && verifiedTxs.isVerified(tx);
+			if (txVerified[i]) {
+				SIGNATURES_SKIPPED.add(tx.numInputs());
+				continue;
+			}
+			inputVerified[i] = new boolean[tx.numInputs()];
+			for (int j = 0; j < tx.numInputs(); j++) {
+				inputVerified[i][j] = isPreverified(tx, j, spentOutputs[i][j]);
+				if (inputVerified[i][j]) {
+					SIGNATURES_PREVERIFIED.increment();
+				} else {
+					cost += SIGNATURE_COST;
+					if (cost > costBudget)
+						return Verdict.reject(Verdict.Reason.COST_EXCEEDED, j).atTx(i);
+				}
+			}
+		}
+		for (int i = 0; i < txs.length; i++) {
+			if (txVerified[i])
+				continue;
+			Transaction tx = txs[i];
+			for (int j = 0; j < tx.numInputs(); j++) {
+				if (inputVerified[i][j])
+					continue;
+				long start = System.nanoTime();
+				boolean signatureValid = verifySignatureOfConsumeCoin(tx, j, tx.input(j), spentOutputs[i][j]);
+				long verifyTime = System.nanoTime() - start;
+				SIGNATURE_VERIFY.record(verifyTime);
+				signatures++;
+				verifyNanos += verifyTime;
+				if (!signatureValid) {
+					invalidSignatures++;
+					return reject(Verdict.Reason.BAD_SIGNATURE, j).atTx(i);
+				}
+			}
+		}
+		return Verdict.ACCEPTED;
+	}
+
+	private ChainEvents.TxEpoch beginEpoch() {
+		signatures = 0;
+		invalidSignatures = 0;
+		verifyNanos = 0;
+		ChainEvents.TxEpoch epoch = new ChainEvents.TxEpoch();
+		epoch.begin();
+		return epoch;
+	}
+
+	private void endEpoch(ChainEvents.TxEpoch epoch, ChainEvents.SignatureBatch batch, int candidates,
+			int accepted, boolean failFast) {
+		epoch.end();
+		batch.end();
+		if (epoch.shouldCommit()) {
+			epoch.candidates = candidates;
+			epoch.accepted = accepted;
+			epoch.failFast = failFast;
+			epoch.commit();
+		}
+		if (batch.shouldCommit()) {
+			batch.signatures = signatures;
+			batch.invalid = invalidSignatures;
+			batch.verifyTime = verifyNanos;
+			batch.commit();
+		}
+	}
+
 	private void addCreatedCoinsToPool(Transaction tx) {
 		List<Transaction.Output> outputs = tx.getOutputs();
-		for (int j = 0; j < outputs.size(); j++) {
-			Transaction.Output output = outputs.get(j);
-			UTXO utxo = new UTXO(tx.getHash(), j);
-			utxoPool.addUTXO(utxo, output);
-		}
+		// the keys stay in the pool: copy the hash once for all the outputs
+		byte[] txHash = tx.hashBytes().clone();
+		for (int j = 0; j < outputs.size(); j++)
+			utxoPool.addUTXO(UTXO.wrap(txHash, j), outputs.get(j));
 	}
 
 	private void removeConsumedCoinsFromPool(Transaction tx) {
-		List<Transaction.Input> inputs = tx.getInputs();
-		for (int j = 0; j < inputs.size(); j++) {
-			Transaction.Input input = inputs.get(j);
-			UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
-			utxoPool.removeUTXO(utxo);
-		}
+		for (Transaction.Input input : tx.inputs())
+			utxoPool.removeUTXO(UTXO.wrap(input.prevTxHash, input.outputIndex));
 	}
 
 	public UTXOPool getUTXOPool() {
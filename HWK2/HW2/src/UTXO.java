@@ -3,22 +3,56 @@ import java.util.Arrays;
 public class UTXO implements Comparable<UTXO> {
 
     /** Hash of the transaction from which this UTXO originates */
-    private byte[] txHash;
+    private final byte[] txHash;
 
     /** Index of the corresponding output in said transaction */
-    private int index;
+    private final int index;
+
+    /** hashCode computed once at construction, UTXOs are used as map keys on every lookup */
+    private final int hash;
 
     /**
      * Creates a new UTXO corresponding to the output with index <index> in the transaction whose
      * hash is {@code txHash}
      */
     public UTXO(byte[] txHash, int index) {
-        this.txHash = Arrays.copyOf(txHash, txHash.length);
+        this(txHash, index, true);
+    }
+
+    private UTXO(byte[] txHash, int index, boolean copy) {
+        this.txHash = copy ? Arrays.copyOf(txHash, txHash.length) : txHash;
         this.index = index;
+        this.hash = 31 * digestHashCode(txHash) + index;
+    }
+
+    /**
+     * Creates a UTXO that shares {@code txHash} instead of copying it. Only for arrays that are
+     * never modified afterwards, e.g. a finalized transaction hash or a short-lived lookup key.
+     */
+    static UTXO wrap(byte[] txHash, int index) {
+        return new UTXO(txHash, index, false);
+    }
+
+    /**
+     * The hashes we key on are SHA-256 digests, so their first 8 bytes are already uniformly
+     * distributed and can be folded into the hash code directly instead of hashing all 32 bytes.
+     */
+    static int digestHashCode(byte[] digest) {
+        if (digest.length < 8)
+            return Arrays.hashCode(digest);
+        long prefix = 0;
+        for (int i = 0; i < 8; i++)
+            prefix = (prefix << 8) | (digest[i] & 0xff);
+        return (int) (prefix ^ (prefix >>> 32));
     }
 
-    /** @return the transaction hash of this UTXO */
+    /** @return a copy of the transaction hash of this UTXO */
     public byte[] getTxHash() {
+        return txHash.clone();
+    }
+
+    /** @return the transaction hash itself, not a copy, for callers that only read it */
+    byte[] txHashBytes() {
         return txHash;
     }
 
@@ -40,25 +74,16 @@ public class UTXO implements Comparable<UTXO> {
         }
 
         UTXO utxo = (UTXO) other;
-        byte[] hash = utxo.txHash;
-        int in = utxo.index;
-        if (hash.length != txHash.length || index != in)
+        if (hash != utxo.hash || index != utxo.index)
             return false;
-        for (int i = 0; i < hash.length; i++) {
-            if (hash[i] != txHash[i])
-                return false;
-        }
-        return true;
+        return Arrays.equals(txHash, utxo.txHash);
     }
 
     /**
-     * Simple implementation of a UTXO hashCode that respects equality of UTXOs // (i.e.
+     * Cached hash code that respects equality of UTXOs (i.e.
      * utxo1.equals(utxo2) => utxo1.hashCode() == utxo2.hashCode())
      */
     public int hashCode() {
-        int hash = 1;
-        hash = hash * 17 + index;
-        hash = hash * 31 + Arrays.hashCode(txHash);
         return hash;
     }
 
@@ -0,0 +1,128 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * The change a tx or a block makes to a UTXO set: the UTXOs it spends and those it creates, with
+ * their outputs. The txs of a delta are netted in order, so an output created and spent again
+ * within it is only in the spent set, which a set lacking the output ignores. A set applies a
+ * delta in one call, removals first, see {@link UTXOPool#apply}, and
+ * {@link UTXOPool#applyWithUndo} also returns the inverse, which undoes the change.
+ * <p>
+ * The created keys share one copy of the hash of their tx and are hashed once, when the delta is
+ * built, and the maps are sized for the txs up front. Not thread-safe.
+ */
+public class UTXODelta {
+
+    private final HashSet<UTXO> spent;
+    private final HashMap<UTXO, Transaction.Output> created;
+
+    public UTXODelta() {
+        this(0, 0);
+    }
+
+    /** an empty delta with room for {@code spends} spent and {@code creates} created UTXOs */
+    public UTXODelta(int spends, int creates) {
+        spent = new HashSet<UTXO>(capacity(spends));
+        created = new HashMap<UTXO, Transaction.Output>(capacity(creates));
+    }
+
+    /** @return the capacity of a hash map holding {@code n} entries without resizing */
+    static int capacity(int n) {
+        return (int) Math.min(1 << 30, n / 0.75 + 1);
+    }
+
+    /** @return the change {@code tx} makes */
+    public static UTXODelta of(Transaction tx) {
+        UTXODelta delta = new UTXODelta(tx.numInputs(), tx.numOutputs());
+        delta.add(tx);
+        return delta;
+    }
+
+    /** @return the change {@code txs} make, applied in order */
+    public static UTXODelta of(List<Transaction> txs) {
+        int spends = 0;
+        int creates = 0;
+        for (Transaction tx : txs) {
+            spends += tx.numInputs();
+            creates += tx.numOutputs();
+        }
+        UTXODelta delta = new UTXODelta(spends, creates);
+        for (Transaction tx : txs)
+            delta.add(tx);
+        return delta;
+    }
+
+    /** @return the change {@code block} makes: its txs, then its coinbase, as {@link BlockChain} applies them */
+    public static UTXODelta of(Block block) {
+        ArrayList<Transaction> txs = new ArrayList<Transaction>(block.getTransactions());
+        txs.add(block.getCoinbase());
+        return of(txs);
+    }
+
+    /** Adds the change {@code tx} makes after those already in the delta, without checking its inputs */
+    public void add(Transaction tx) {
+        add(tx, utxo -> true);
+    }
+
+    /**
+     * Adds the change {@code tx} makes after those already in the delta, if each of its inputs
+     * spends an output created earlier in the delta and not spent since, or an output for which
+     * {@code exists} holds and that the delta does not spend yet.
+     *
+     * @return {@code Verdict.ACCEPTED}, or {@code MISSING_INPUT} or {@code DOUBLE_SPEND} for the
+     *         first input that does not; the delta then holds part of {@code tx} and must be
+     *         dropped
+     */
+    public Verdict add(Transaction tx, Predicate<UTXO> exists) {
+        for (int j = 0; j < tx.numInputs(); j++) {
+            Transaction.Input in = tx.input(j);
+            if (in.prevTxHash == null)
+                return Verdict.reject(Verdict.Reason.MISSING_INPUT, j);
+            UTXO utxo = UTXO.wrap(in.prevTxHash, in.outputIndex);
+            if (created.remove(utxo) == null) {
+                if (spent.contains(utxo))
+                    return Verdict.reject(Verdict.Reason.DOUBLE_SPEND, j);
+                if (!exists.test(utxo))
+                    return Verdict.reject(Verdict.Reason.MISSING_INPUT, j);
+            }
+            // spent from the set even if the delta created it again, as applying the txs one by one would
+            spent.add(utxo);
+        }
+        // the created keys end up in a pool: copy the hash once for all the outputs
+        byte[] txHash = tx.hashBytes().clone();
+        List<Transaction.Output> outputs = tx.getOutputs();
+        for (int j = 0; j < outputs.size(); j++)
+            created.put(UTXO.wrap(txHash, j), outputs.get(j));
+        return Verdict.ACCEPTED;
+    }
+
+    /** Records that applying the delta spends {@code utxo} */
+    void spend(UTXO utxo) {
+        spent.add(utxo);
+    }
+
+    /** Records that applying the delta creates {@code utxo} with {@code output} */
+    void create(UTXO utxo, Transaction.Output output) {
+        created.put(utxo, output);
+    }
+
+    /** @return a read-only view of the UTXOs removed when the delta is applied */
+    public Set<UTXO> getSpent() {
+        return Collections.unmodifiableSet(spent);
+    }
+
+    /** @return a read-only view of the UTXOs added when the delta is applied, after the removals */
+    public Map<UTXO, Transaction.Output> getCreated() {
+        return Collections.unmodifiableMap(created);
+    }
+
+    public boolean isEmpty() {
+        return spent.isEmpty() && created.isEmpty();
+    }
+}
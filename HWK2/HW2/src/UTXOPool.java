@@ -1,32 +1,135 @@
+import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class UTXOPool {
 
+    private static final LatencyHistogram COPY = Metrics.getDefault().histogram("utxo_pool_copy_seconds");
+
     /**
      * The current collection of UTXOs, with each one mapped to its corresponding transaction output
      */
     private HashMap<UTXO, Transaction.Output> H;
 
+    /** The UTXOs of {@code H} grouped by the address they pay to, kept in step with {@code H} */
+    private AddressIndex addressIndex;
+
+    /**
+     * The number of pools and snapshots holding {@code H} and {@code addressIndex}, one counter
+     * shared by all of them. A pool modified while it is above 1 copies them first and leaves the
+     * count (copy-on-write), so only the side that writes copies: once a copy has left, the pool it
+     * was copied from is modified in place again. Snapshots never leave.
+     */
+    private AtomicInteger holders;
+
     /** Creates a new empty UTXOPool */
     public UTXOPool() {
         H = new HashMap<UTXO, Transaction.Output>();
+        addressIndex = new AddressIndex();
+        holders = new AtomicInteger(1);
     }
 
-    /** Creates a new UTXOPool that is a copy of {@code uPool} */
+    /**
+     * Creates a new UTXOPool that is a copy of {@code uPool}. The copy is lazy: both pools share their
+     * contents until one of them is modified, which then copies every UTXO and address once.
+     */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        H = uPool.H;
+        addressIndex = uPool.addressIndex;
+        holders = uPool.holders;
+        holders.incrementAndGet();
+    }
+
+    private void ensureWritable() {
+        ensureWritable(0);
+    }
+
+    /** copies the shared contents, with room for {@code extra} more UTXOs without resizing */
+    private void ensureWritable(int extra) {
+        if (holders.get() == 1)
+            return;
+        long start = System.nanoTime();
+        ChainEvents.UTXOPoolCopy event = new ChainEvents.UTXOPoolCopy();
+        event.begin();
+        HashMap<UTXO, Transaction.Output> copy = new HashMap<UTXO, Transaction.Output>(UTXODelta.capacity(H.size() + extra));
+        copy.putAll(H);
+        H = copy;
+        addressIndex = new AddressIndex(addressIndex);
+        holders.decrementAndGet();
+        holders = new AtomicInteger(1);
+        event.end();
+        COPY.recordSince(start);
+        if (event.shouldCommit()) {
+            event.entries = H.size();
+            event.addresses = addressIndex.getNumAddresses();
+            event.commit();
+        }
     }
 
     /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
     public void addUTXO(UTXO utxo, Transaction.Output txOut) {
-        H.put(utxo, txOut);
+        ensureWritable();
+        Transaction.Output replaced = H.put(utxo, txOut);
+        if (replaced != null)
+            addressIndex.remove(utxo, replaced);
+        addressIndex.add(utxo, txOut);
     }
 
     /** Removes the UTXO {@code utxo} from the pool */
     public void removeUTXO(UTXO utxo) {
-        H.remove(utxo);
+        ensureWritable();
+        Transaction.Output removed = H.remove(utxo);
+        if (removed != null)
+            addressIndex.remove(utxo, removed);
+    }
+
+    /**
+     * Removes the UTXOs {@code delta} spends, then adds those it creates, copying a shared pool at
+     * most once, with room for the created UTXOs.
+     */
+    public void apply(UTXODelta delta) {
+        apply(delta, null);
+    }
+
+    /**
+     * Same as {@link #apply(UTXODelta)}, also recording what it removes and replaces.
+     * 
+     * @return the inverse of {@code delta}, which restores the pool as it was when applied to it
+     */
+    public UTXODelta applyWithUndo(UTXODelta delta) {
+        UTXODelta inverse = new UTXODelta(delta.getCreated().size(), delta.getSpent().size());
+        apply(delta, inverse);
+        return inverse;
+    }
+
+    /** applies {@code delta}, recording its inverse in {@code inverse} unless it is null */
+    private void apply(UTXODelta delta, UTXODelta inverse) {
+        Set<UTXO> spent = delta.getSpent();
+        Map<UTXO, Transaction.Output> created = delta.getCreated();
+        ensureWritable(created.size());
+        for (UTXO utxo : spent) {
+            Transaction.Output removed = H.remove(utxo);
+            if (removed != null) {
+                addressIndex.remove(utxo, removed);
+                if (inverse != null)
+                    inverse.create(utxo, removed);
+            }
+        }
+        for (Map.Entry<UTXO, Transaction.Output> e : created.entrySet()) {
+            UTXO utxo = e.getKey();
+            Transaction.Output replaced = H.put(utxo, e.getValue());
+            if (replaced != null) {
+                addressIndex.remove(utxo, replaced);
+                if (inverse != null)
+                    inverse.create(utxo, replaced);
+            }
+            addressIndex.add(utxo, e.getValue());
+            if (inverse != null)
+                inverse.spend(utxo);
+        }
     }
 
     /**
@@ -42,13 +145,60 @@ public class UTXOPool {
         return H.containsKey(utxo);
     }
 
-    /** Returns an {@code ArrayList} of all UTXOs in the pool */
+    /** @return the number of UTXOs in the pool */
+    public int size() {
+        return H.size();
+    }
+
+    /**
+     * Returns an {@code ArrayList} of all UTXOs in the pool. This copies every UTXO, use
+     * {@link #snapshot()} to iterate or stream over a large pool.
+     */
     public ArrayList<UTXO> getAllUTXO() {
-        Set<UTXO> setUTXO = H.keySet();
-        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
-        for (UTXO ut : setUTXO) {
-            allUTXO.add(ut);
+        return new ArrayList<UTXO>(H.keySet());
+    }
+
+    /**
+     * @return a read-only view of the current contents of the pool that is not affected by later
+     *         changes to the pool. Taking it copies nothing, but the view keeps the contents it
+     *         shares, so the next change to the pool copies every UTXO and address, even if the
+     *         view is dropped by then: a pool changed between snapshots pays one full copy per
+     *         snapshot.
+     */
+    public UTXOSnapshot snapshot() {
+        holders.incrementAndGet();
+        return new UTXOSnapshot(H);
+    }
+
+    /** @return a read-only view of the UTXOs in the pool paying to {@code address} */
+    public Set<UTXO> getUTXOs(PublicKey address) {
+        return addressIndex.getUTXOs(address);
+    }
+
+    /** @return the total value of the UTXOs in the pool paying to {@code address}, in base units */
+    public long getBalance(PublicKey address) {
+        return addressIndex.getBalance(address);
+    }
+
+    /**
+     * Picks UTXOs of {@code address}, largest first, until their values cover {@code amount} base
+     * units.
+     * 
+     * @return the selected UTXOs, or null if the balance of {@code address} is below {@code amount}
+     */
+    public ArrayList<UTXO> selectCoins(PublicKey address, long amount) {
+        if (addressIndex.getBalance(address) < amount)
+            return null;
+        ArrayList<UTXO> coins = new ArrayList<UTXO>(addressIndex.getUTXOs(address));
+        coins.sort((a, b) -> Long.compare(H.get(b).value, H.get(a).value));
+        ArrayList<UTXO> selected = new ArrayList<UTXO>();
+        long covered = 0;
+        for (UTXO ut : coins) {
+            if (covered >= amount)
+                break;
+            selected.add(ut);
+            covered += H.get(ut).value;
         }
-        return allUTXO;
+        return selected;
     }
 }
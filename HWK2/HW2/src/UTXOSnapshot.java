@@ -0,0 +1,108 @@
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Read-only view of a {@code UTXOPool} as it was when {@code UTXOPool.snapshot()} was called. The
+ * snapshot shares the pool's map instead of copying it; the pool copies the map itself the next time
+ * it is modified, so later changes to the pool are never visible here.
+ *
+ * <p>
+ * Iteration goes straight over the shared map. Its spliterators split like the ones of a
+ * {@code HashMap}, so {@code parallelStream()} aggregations (total supply, value histograms, ...)
+ * spread over all cores without collecting the UTXOs first.
+ */
+public class UTXOSnapshot implements Iterable<UTXO> {
+
+    private final Map<UTXO, Transaction.Output> H;
+
+    UTXOSnapshot(Map<UTXO, Transaction.Output> H) {
+        this.H = Collections.unmodifiableMap(H);
+    }
+
+    /** @return the number of UTXOs in the snapshot */
+    public int size() {
+        return H.size();
+    }
+
+    /** @return true if UTXO {@code utxo} is in the snapshot and false otherwise */
+    public boolean contains(UTXO utxo) {
+        return H.containsKey(utxo);
+    }
+
+    /**
+     * @return the transaction output corresponding to UTXO {@code utxo}, or null if {@code utxo} is
+     *         not in the snapshot
+     */
+    public Transaction.Output getTxOutput(UTXO utxo) {
+        return H.get(utxo);
+    }
+
+    public Iterator<UTXO> iterator() {
+        return H.keySet().iterator();
+    }
+
+    public Spliterator<UTXO> spliterator() {
+        return new ImmutableSpliterator<UTXO>(H.keySet().spliterator());
+    }
+
+    /** @return a sequential stream of the UTXOs in the snapshot */
+    public Stream<UTXO> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /** @return a parallel stream of the UTXOs in the snapshot */
+    public Stream<UTXO> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    /** @return a stream of the (UTXO, output) pairs in the snapshot, parallel if {@code parallel} */
+    public Stream<Map.Entry<UTXO, Transaction.Output>> entryStream(boolean parallel) {
+        return StreamSupport.stream(new ImmutableSpliterator<Map.Entry<UTXO, Transaction.Output>>(
+                H.entrySet().spliterator()), parallel);
+    }
+
+    /**
+     * @return the UTXOs {@code u} with {@code from <= u < to} in {@code UTXO.compareTo} order. Only the
+     *         UTXOs inside the range are buffered for sorting.
+     */
+    public Stream<UTXO> range(UTXO from, UTXO to) {
+        return stream().filter(u -> u.compareTo(from) >= 0 && u.compareTo(to) < 0).sorted();
+    }
+
+    /** Marks the underlying spliterators as splitting over data that will never change */
+    private static class ImmutableSpliterator<T> implements Spliterator<T> {
+        private final Spliterator<T> s;
+
+        private ImmutableSpliterator(Spliterator<T> s) {
+            this.s = s;
+        }
+
+        public boolean tryAdvance(Consumer<? super T> action) {
+            return s.tryAdvance(action);
+        }
+
+        public void forEachRemaining(Consumer<? super T> action) {
+            s.forEachRemaining(action);
+        }
+
+        public Spliterator<T> trySplit() {
+            Spliterator<T> split = s.trySplit();
+            if (split == null)
+                return null;
+            return new ImmutableSpliterator<T>(split);
+        }
+
+        public long estimateSize() {
+            return s.estimateSize();
+        }
+
+        public int characteristics() {
+            return s.characteristics() | IMMUTABLE | NONNULL;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Outcome of validating a transaction or a block: either {@link #ACCEPTED}, or the reason of the
+ * rejection with the offending input/output index and, for blocks, the position of the offending
+ * transaction. Accepting never allocates, only rejections create a new verdict.
+ */
+public final class Verdict {
+
+    public enum Reason {
+        ACCEPTED,
+        /** (1) an input claims an output that is not in the UTXO pool */
+        MISSING_INPUT,
+        /** (2) the signature of an input is not valid */
+        BAD_SIGNATURE,
+        /** (3) an output is claimed by more than one input */
+        DOUBLE_SPEND,
+        /** (4) an output value is not positive */
+        INVALID_OUTPUT_VALUE,
+        /** (5) the outputs are worth more than the inputs */
+        INSUFFICIENT_INPUT,
+        /** the sum of the input or of the output values does not fit in a long */
+        VALUE_OVERFLOW,
+        /** {@code null} was passed instead of a block */
+        NULL_BLOCK,
+        /** the block has no previous block hash, e.g. a second genesis block */
+        NO_PARENT,
+        /** the previous block is unknown or has been cut off from memory */
+        UNKNOWN_PARENT,
+        /** the block hash is not the hash of its header, or not below the target of the chain */
+        INSUFFICIENT_WORK,
+        /** the txs of the block, or those rebuilt for a compact block, do not match the Merkle root of its header */
+        MERKLE_MISMATCH,
+        /** the block would be at a height {@code <= maxHeight - CUT_OFF_AGE} */
+        TOO_OLD,
+        /** the block is already in the chain */
+        DUPLICATE,
+        /** validating the block would cost more than the budget of a block, see {@link TxHandler#handleBlockTxs} */
+        COST_EXCEEDED;
+
+        /** the reason in lower case, as used for metric labels */
+        public final String label = name().toLowerCase();
+    }
+
+    public static final Verdict ACCEPTED = new Verdict(Reason.ACCEPTED, -1, -1);
+
+    private final Reason reason;
+    private final int index;
+    private final int txIndex;
+
+    private Verdict(Reason reason, int index, int txIndex) {
+        this.reason = reason;
+        this.index = index;
+        this.txIndex = txIndex;
+    }
+
+    /** @return a rejection for {@code reason} caused by input/output {@code index}, or -1 if none */
+    public static Verdict reject(Reason reason, int index) {
+        return new Verdict(reason, index, -1);
+    }
+
+    /** @return this verdict attributed to the transaction at {@code txIndex} of a block or batch */
+    public Verdict atTx(int txIndex) {
+        if (reason == Reason.ACCEPTED)
+            return this;
+        return new Verdict(reason, index, txIndex);
+    }
+
+    public boolean isAccepted() {
+        return reason == Reason.ACCEPTED;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+    /**
+     * @return true for a rejection that only depends on the block or tx itself, or on the outputs it
+     *         spends, which its hash fixes for good: resubmitting the same hash is rejected again
+     *         whatever the chain state. A missing input or parent may show up later, and the cost
+     *         budget or the cut-off height can change, so those are not context free.
+     */
+    public boolean isContextFree() {
+        switch (reason) {
+        case BAD_SIGNATURE:
+        case DOUBLE_SPEND:
+        case INVALID_OUTPUT_VALUE:
+        case INSUFFICIENT_INPUT:
+        case VALUE_OVERFLOW:
+        case NO_PARENT:
+        case INSUFFICIENT_WORK:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @return the offending input (reasons 1-3) or output (reason 4) index, or for an overflow the
+     *         input or output at which the sum overflowed; -1 if none
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /** @return the position of the offending transaction in its block or batch, or -1 */
+    public int getTxIndex() {
+        return txIndex;
+    }
+
+    public String toString() {
+        if (isAccepted())
+            return "ACCEPTED";
+        return reason + "(index=" + index + ", tx=" + txIndex + ")";
+    }
+}
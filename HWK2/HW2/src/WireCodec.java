@@ -0,0 +1,211 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Byte encoding of transactions, blocks and compact blocks for the peer layer. Integers are big
+ * endian, byte strings are prefixed with their length (-1 for null) and public keys are encoded
+ * by {@link SignatureScheme#encode}. Decoded txs are sealed and blocks finalized here, so their
+ * hashes are computed locally rather than taken from the peer.
+ * <p>
+ * Decoding keeps the recently seen public keys, as most coins go to a few addresses and parsing a
+ * key costs more than the rest of a tx. A codec is not thread-safe.
+ */
+class WireCodec {
+
+    /** longest byte string accepted when decoding, a signature or a key is far shorter */
+    private static final int MAX_BYTES = 1 << 16;
+    private static final int MAX_CACHED_KEYS = 4096;
+
+    private final LinkedHashMap<ByteArrayWrapper, PublicKey> keys =
+            new LinkedHashMap<ByteArrayWrapper, PublicKey>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, PublicKey> eldest) {
+                    return size() > MAX_CACHED_KEYS;
+                }
+            };
+
+    /** An output stream for one message, whose writes cannot fail */
+    static class Writer {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        Writer writeByte(int v) {
+            try {
+                out.writeByte(v);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return this;
+        }
+
+        Writer writeInt(int v) {
+            try {
+                out.writeInt(v);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return this;
+        }
+
+        Writer writeLong(long v) {
+            try {
+                out.writeLong(v);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return this;
+        }
+
+        /** writes {@code b} as is, without a length */
+        Writer writeRaw(byte[] b) {
+            bytes.write(b, 0, b.length);
+            return this;
+        }
+
+        Writer writeBytes(byte[] b) {
+            if (b == null)
+                return writeInt(-1);
+            writeInt(b.length);
+            return writeRaw(b);
+        }
+
+        Writer writeTransaction(Transaction tx) {
+            writeByte(tx.isCoinbase() ? 1 : 0);
+            if (tx.isCoinbase()) {
+                Transaction.Output out = tx.getOutput(0);
+                return writeLong(out.value).writeBytes(SignatureScheme.encode(out.address));
+            }
+            writeInt(tx.numInputs());
+            for (Transaction.Input in : tx.inputs())
+                writeBytes(in.prevTxHash).writeInt(in.outputIndex).writeBytes(in.signature);
+            writeInt(tx.numOutputs());
+            for (Transaction.Output out : tx.getOutputs())
+                writeLong(out.value).writeBytes(SignatureScheme.encode(out.address));
+            return this;
+        }
+
+        Writer writeBlock(Block block) {
+            writeBytes(block.getPrevBlockHash()).writeLong(block.getTimestamp()).writeInt(block.getTargetBits())
+                    .writeLong(block.getNonce()).writeTransaction(block.getCoinbase());
+            writeInt(block.getTransactions().size());
+            for (Transaction tx : block.getTransactions())
+                writeTransaction(tx);
+            return this;
+        }
+
+        Writer writeCompactBlock(CompactBlock compact) {
+            writeBytes(compact.getBlockHash()).writeBytes(compact.getPrevBlockHash())
+                    .writeBytes(compact.getMerkleRoot()).writeLong(compact.getTimestamp())
+                    .writeInt(compact.getTargetBits()).writeLong(compact.getNonce())
+                    .writeTransaction(compact.getCoinbase()).writeLong(compact.getSalt());
+            writeInt(compact.getNumTransactions());
+            for (int i = 0; i < compact.getNumTransactions(); i++) {
+                long id = compact.getShortId(i);
+                // 6 bytes
+                writeByte((int) (id >>> 40)).writeByte((int) (id >>> 32)).writeInt((int) id);
+            }
+            return this;
+        }
+
+        byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+
+    static int readCount(ByteBuffer in, int bytesPerItem) {
+        int count = in.getInt();
+        if (count < 0 || (long) count * bytesPerItem > in.remaining())
+            throw new IllegalArgumentException("bad count " + count);
+        return count;
+    }
+
+    static byte[] readBytes(ByteBuffer in) {
+        int length = in.getInt();
+        if (length == -1)
+            return null;
+        if (length < 0 || length > MAX_BYTES || length > in.remaining())
+            throw new IllegalArgumentException("bad length " + length);
+        byte[] b = new byte[length];
+        in.get(b);
+        return b;
+    }
+
+    private PublicKey readKey(ByteBuffer in) {
+        byte[] encoded = readBytes(in);
+        if (encoded == null)
+            throw new IllegalArgumentException("missing public key");
+        ByteArrayWrapper wrapped = ByteArrayWrapper.wrap(encoded);
+        PublicKey key = keys.get(wrapped);
+        if (key == null) {
+            try {
+                key = SignatureScheme.decode(encoded);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("bad public key", e);
+            }
+            keys.put(wrapped, key);
+        }
+        return key;
+    }
+
+    Transaction readTransaction(ByteBuffer in) {
+        if (in.get() != 0) {
+            long value = in.getLong();
+            return new Transaction(value, readKey(in));
+        }
+        Transaction.Builder tx = new Transaction.Builder();
+        int numInputs = readCount(in, 12);
+        for (int i = 0; i < numInputs; i++) {
+            byte[] prevTxHash = readBytes(in);
+            int outputIndex = in.getInt();
+            tx.addInput(prevTxHash, outputIndex);
+            tx.addSignature(readBytes(in), i);
+        }
+        int numOutputs = readCount(in, 12);
+        for (int i = 0; i < numOutputs; i++) {
+            long value = in.getLong();
+            tx.addOutputUnits(value, readKey(in));
+        }
+        return tx.build();
+    }
+
+    Block readBlock(ByteBuffer in) {
+        byte[] prevBlockHash = readBytes(in);
+        long timestamp = in.getLong();
+        int targetBits = in.getInt();
+        long nonce = in.getLong();
+        Block block = new Block(prevBlockHash, readTransaction(in));
+        int numTxs = readCount(in, 9);
+        for (int i = 0; i < numTxs; i++)
+            block.addTransaction(readTransaction(in));
+        block.setTimestamp(timestamp);
+        block.setTargetBits(targetBits);
+        block.finalize();
+        block.setNonce(nonce);
+        return block;
+    }
+
+    CompactBlock readCompactBlock(ByteBuffer in) {
+        byte[] blockHash = readBytes(in);
+        byte[] prevBlockHash = readBytes(in);
+        byte[] merkleRoot = readBytes(in);
+        long timestamp = in.getLong();
+        int targetBits = in.getInt();
+        long nonce = in.getLong();
+        Transaction coinbase = readTransaction(in);
+        long salt = in.getLong();
+        long[] shortIds = new long[readCount(in, CompactBlock.SHORT_ID_SIZE)];
+        for (int i = 0; i < shortIds.length; i++) {
+            long high = in.getShort() & 0xffffL;
+            shortIds[i] = (high << 32) | (in.getInt() & 0xffffffffL);
+        }
+        if (blockHash == null || merkleRoot == null)
+            throw new IllegalArgumentException("compact block without hash or Merkle root");
+        return new CompactBlock(blockHash, prevBlockHash, merkleRoot, timestamp, targetBits, nonce, coinbase,
+                salt, shortIds);
+    }
+}
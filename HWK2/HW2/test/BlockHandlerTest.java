@@ -1,7 +1,29 @@
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.*;
+import java.security.interfaces.ECPublicKey;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -127,8 +149,11 @@ class BlockHandlerTest {
         // add txA2BC to blockB and check whether blockHandler can process this blockB
         blockB.addTransaction(txA2BC);
         blockB.finalize();
-        // should print "Error: Some Txs in this block are invalid !"
-        assertFalse(blockHandler.processBlock(blockB));
+        // txA2BC spends more than the coinbase it claims
+        Verdict verdict = blockHandler.submitBlock(blockB);
+        assertFalse(verdict.isAccepted());
+        assertEquals(Verdict.Reason.INSUFFICIENT_INPUT, verdict.getReason());
+        assertEquals(0, verdict.getTxIndex());
 
     }
 
@@ -183,6 +208,950 @@ class BlockHandlerTest {
         // after cutting off 16 blocks in memory, the oldestBlockHeight should be
         // 21 - 16 = 5
         assertTrue(blockChain.getOldestBlockHeight()==5);
+        // the cut off genesis block can still be located by hash, but no longer fetched
+        assertEquals(1, blockChain.getBlockHeight(genesisBlock.getHash()));
+        assertNull(blockChain.getBlock(genesisBlock.getHash()));
+        ChainIndex.TxLocation location = blockChain.findTransaction(genesisBlock.getCoinbase().getHash());
+        assertArrayEquals(genesisBlock.getHash(), location.getBlockHash());
+        assertEquals(-1, location.getPosition());
+        Block maxHeightBlock = blockChain.getMaxHeightBlock();
+        assertSame(maxHeightBlock.getCoinbase(), blockChain.getTransaction(maxHeightBlock.getCoinbase().getHash()));
+
+        // txs whose hashes share the first 8 bytes are told apart by the full hash
+        ChainIndex index = new ChainIndex();
+        Block colliding = new Block(genesisBlock.getHash(), keyPairB.getPublic());
+        byte[][] hashes = new byte[3][32];
+        for (int i = 0; i < 3; i++) {
+            hashes[i][31] = (byte) (i + 1);
+            if (i < 2) {
+                Transaction tx = new Transaction();
+                tx.setHash(hashes[i]);
+                colliding.addTransaction(tx);
+            }
+        }
+        colliding.finalize();
+        index.addBlock(colliding, 2);
+        assertEquals(0, index.findTransaction(hashes[0]).getPosition());
+        assertEquals(1, index.findTransaction(hashes[1]).getPosition());
+        assertNull(index.findTransaction(hashes[2]));
+
+    }
+    @Test
+    /**
+     * check that the address index of the max height UTXOPool follows the blocks
+     * A mines the genesis block (25) and pays B 15 and C 10 in the next block mined by D
+     */
+    void testAddressBalance() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Block genesisBlock = new Block(null, keyPairA.getPublic());
+        genesisBlock.finalize();
+        BlockChain blockChain = new BlockChain(genesisBlock);
+        BlockHandler blockHandler = new BlockHandler(blockChain);
+        assertEquals(Block.COINBASE, blockChain.getMaxHeightUTXOPool().getBalance(keyPairA.getPublic()));
+
+        Transaction txA2BC = new Transaction();
+        txA2BC.addInput(genesisBlock.getCoinbase().getHash(), 0);
+        txA2BC.addOutput(15, keyPairB.getPublic());
+        txA2BC.addOutput(10, keyPairC.getPublic());
+        Signature sign = Signature.getInstance("SHA256withRSA");
+        sign.initSign(keyPairA.getPrivate());
+        sign.update(txA2BC.getRawDataToSign(0));
+        txA2BC.addSignature(sign.sign(), 0);
+        txA2BC.finalize();
+        blockHandler.processTx(txA2BC);
+        assertNotNull(blockHandler.createBlock(keyPairD.getPublic()));
+
+        UTXOPool uPool = blockChain.getMaxHeightUTXOPool();
+        assertEquals(0, uPool.getBalance(keyPairA.getPublic()));
+        assertEquals(Transaction.toUnits(15), uPool.getBalance(keyPairB.getPublic()));
+        assertEquals(1, uPool.getUTXOs(keyPairC.getPublic()).size());
+        assertEquals(Block.COINBASE, uPool.getBalance(keyPairD.getPublic()));
+        // B cannot cover 20, C's single coin covers 10
+        assertNull(uPool.selectCoins(keyPairB.getPublic(), Transaction.toUnits(20)));
+        assertEquals(1, uPool.selectCoins(keyPairC.getPublic(), Transaction.toUnits(10)).size());
+    }
+    @Test
+    /**
+     * rejected blocks are counted by reason and exported at /metrics
+     */
+    void testMetrics() throws Exception {
+        Block genesisBlock = new Block(null, keyPairA.getPublic());
+        genesisBlock.finalize();
+        BlockChain blockChain = new BlockChain(genesisBlock);
+        BlockHandler blockHandler = new BlockHandler(blockChain);
+        Metrics metrics = Metrics.getDefault();
+        String noParent = "block_rejected_total{reason=\"no_parent\"}";
+        long rejectedBefore = metrics.getCount(noParent);
+        assertFalse(blockHandler.processBlock(genesisBlock));
+        assertEquals(rejectedBefore + 1, metrics.getCount(noParent));
+        assertNotNull(blockHandler.createBlock(keyPairB.getPublic()));
+
+        MetricsServer server = new MetricsServer(metrics, 0);
+        try (InputStream in = new URL("http://localhost:" + server.getPort() + "/metrics").openStream()) {
+            String body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            assertTrue(body.contains("# TYPE block_rejected_total counter"));
+            assertTrue(body.contains("block_nodes_retained 2"));
+            assertTrue(body.contains("block_add_seconds_count"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    /**
+     * with the thresholds lowered to 0, a recording gets one BlockAdd event per block and one
+     * TxEpoch event per TxHandler run: createBlock selects the txs, then addBlock validates them
+     */
+    void testFlightRecorderEvents() throws Exception {
+        Block genesisBlock = new Block(null, keyPairA.getPublic());
+        genesisBlock.finalize();
+        BlockChain blockChain = new BlockChain(genesisBlock);
+        BlockHandler blockHandler = new BlockHandler(blockChain);
+        Path file = Files.createTempFile("chain", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("phbs.BlockAdd").withThreshold(Duration.ZERO);
+            recording.enable("phbs.TxEpoch").withThreshold(Duration.ZERO);
+            recording.start();
+            Block blockB = blockHandler.createBlock(keyPairB.getPublic());
+            assertNotNull(blockB);
+            assertFalse(blockHandler.processBlock(genesisBlock));
+            recording.stop();
+            recording.dump(file);
+
+            RecordedEvent accepted = null;
+            RecordedEvent rejected = null;
+            int epochs = 0;
+            for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                if (event.getEventType().getName().equals("phbs.TxEpoch"))
+                    epochs++;
+                else if (event.getString("outcome").equals("accepted"))
+                    accepted = event;
+                else
+                    rejected = event;
+            }
+            assertNotNull(accepted);
+            assertEquals(2, accepted.getInt("height"));
+            assertEquals(0, accepted.getInt("txCount"));
+            assertEquals(blockB.getHash().length * 2, accepted.getString("blockHash").length());
+            assertNotNull(rejected);
+            assertEquals("no_parent", rejected.getString("outcome"));
+            assertEquals(2, epochs);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    /**
+     * with a target of 12 bits, createBlock mines a block whose hash has 12 leading zero bits;
+     * a block with the wrong nonce is rejected before its txs are looked at, and a search that
+     * cannot succeed is cancelled when the tip changes
+     */
+    void testProofOfWork() throws Exception {
+        Block genesisBlock = new Block(null, keyPairA.getPublic());
+        genesisBlock.finalize();
+        BlockChain blockChain = new BlockChain(genesisBlock, 12);
+        Miner miner = new Miner(2);
+        Miner otherMiner = new Miner(2);
+        try {
+            BlockHandler blockHandler = new BlockHandler(blockChain, miner);
+            Block blockB = blockHandler.createBlock(keyPairB.getPublic());
+            assertNotNull(blockB);
+            assertTrue(Block.leadingZeroBits(blockB.getHash()) >= 12);
+            assertTrue(blockB.checkProofOfWork());
+
+            // an unmined block on top of blockB
+            Block blockC = new Block(blockB.getHash(), keyPairC.getPublic());
+            blockC.setTargetBits(12);
+            blockC.finalize();
+            while (blockC.meetsTarget())
+                blockC.setNonce(blockC.getNonce() + 1);
+            assertEquals(Verdict.Reason.INSUFFICIENT_WORK, blockHandler.submitBlock(blockC).getReason());
+            // a forged hash does not help
+            blockC.getHash()[0] = 0;
+            blockC.getHash()[1] = 0;
+            assertFalse(blockC.checkProofOfWork());
+            // nor does a target below the one of the chain
+            Block blockD = new Block(blockB.getHash(), keyPairD.getPublic());
+            blockD.finalize();
+            assertEquals(Verdict.Reason.INSUFFICIENT_WORK, blockHandler.submitBlock(blockD).getReason());
+
+            // 256 bits cannot be reached, the job runs until the tip moves
+            Block blockE = new Block(blockB.getHash(), keyPairE.getPublic());
+            blockE.setTargetBits(256);
+            blockE.finalize();
+            // on its own miner, the job keeps the threads of its miner busy until it ends
+            Miner.Job job = otherMiner.start(blockE);
+            blockChain.addTipListener(job::cancel);
+            assertNotNull(blockHandler.createBlock(keyPairC.getPublic()));
+            assertFalse(job.await());
+            assertTrue(job.isCancelled());
+            assertTrue(job.getHashes() > 0);
+            assertTrue(job.getHashesPerSecond() > 0);
+        } finally {
+            miner.shutdown();
+            otherMiner.shutdown();
+        }
+    }
+
+    @Test
+    /**
+     * a block commits to the Merkle root of its txs: inclusion proofs verify against it and have
+     * O(log n) siblings, and editing a finalized block gives the root of a block built from scratch
+     */
+    void testMerkleProof() {
+        Block genesisBlock = new Block(null, keyPairA.getPublic());
+        genesisBlock.finalize();
+        // enough txs for the levels to be hashed with fork/join
+        Block block = new Block(genesisBlock.getHash(), keyPairB.getPublic());
+        Transaction[] txs = new Transaction[1500];
+        for (int i = 0; i < txs.length; i++) {
+            txs[i] = new Transaction();
+            txs[i].addOutput(i + 1, keyPairC.getPublic());
+            txs[i].finalize();
+            block.addTransaction(txs[i]);
+        }
+        block.finalize();
+        byte[] root = block.getMerkleRoot();
+
+        for (int position : new int[]{-1, 0, 1, 777, 1498, 1499}) {
+            MerkleTree.Proof proof = block.getInclusionProof(position);
+            byte[] txHash = position < 0 ? block.getCoinbase().getHash() : txs[position].getHash();
+            assertTrue(MerkleTree.verify(root, txHash, proof));
+            // 1501 leaves, 11 levels above them
+            assertTrue(proof.getNumSiblings() <= 11);
+        }
+        assertFalse(MerkleTree.verify(root, txs[1].getHash(), block.getInclusionProof(0)));
+
+        // replace one tx, drop the last two and append one, only their paths are rehashed
+        Transaction replacement = new Transaction();
+        replacement.addOutput(42, keyPairD.getPublic());
+        replacement.finalize();
+        block.getTransactions().set(777, replacement);
+        block.getTransactions().remove(1499);
+        block.getTransactions().remove(1498);
+        block.finalize();
+        block.addTransaction(replacement);
+        block.finalize();
+        assertFalse(Arrays.equals(root, block.getMerkleRoot()));
+        assertTrue(MerkleTree.verify(block.getMerkleRoot(), replacement.getHash(), block.getInclusionProof(777)));
+
+        Block rebuilt = new Block(genesisBlock.getHash(), keyPairB.getPublic());
+        for (Transaction tx : block.getTransactions())
+            rebuilt.addTransaction(tx);
+        rebuilt.finalize();
+        assertArrayEquals(rebuilt.getMerkleRoot(), block.getMerkleRoot());
+        assertArrayEquals(rebuilt.getHash(), block.getHash());
+    }
+
+    /** @return a tx spending output {@code index} of {@code prevTx}, owned by {@code owner}, to {@code to} */
+    private static Transaction signedTx(Transaction prevTx, int index, KeyPair owner, PublicKey to)
+            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Transaction tx = new Transaction();
+        tx.addInput(prevTx.getHash(), index);
+        tx.addOutputUnits(prevTx.getOutput(index).value, to);
+        Signature sign = Signature.getInstance("SHA256withRSA");
+        sign.initSign(owner.getPrivate());
+        sign.update(tx.getRawDataToSign(0));
+        tx.addSignature(sign.sign(), 0);
+        tx.finalize();
+        return tx;
+    }
+
+    @Test
+    /**
+     * a compact block is rebuilt from the txs the receiver already has, only the others are
+     * fetched, and the signatures verified when a tx entered the pool are not checked again
+     */
+    void testCompactBlock() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Block genesisBlock = new Block(null, keyPairA.getPublic());
+        genesisBlock.finalize();
+        BlockHandler sender = new BlockHandler(new BlockChain(genesisBlock));
+        BlockHandler receiver = new BlockHandler(new BlockChain(genesisBlock));
+
+        // A pays 10 to B and 15 to C, in a block both chains have
+        Transaction txA2BC = new Transaction();
+        txA2BC.addInput(genesisBlock.getCoinbase().getHash(), 0);
+        txA2BC.addOutput(10, keyPairB.getPublic());
+        txA2BC.addOutput(15, keyPairC.getPublic());
+        Signature sign = Signature.getInstance("SHA256withRSA");
+        sign.initSign(keyPairA.getPrivate());
+        sign.update(txA2BC.getRawDataToSign(0));
+        txA2BC.addSignature(sign.sign(), 0);
+        txA2BC.finalize();
+        sender.processTx(txA2BC);
+        Block block1 = sender.createBlock(keyPairA.getPublic());
+        assertTrue(receiver.processBlock(block1));
+
+        // the receiver has seen txB2D but not txC2E
+        Transaction txB2D = signedTx(txA2BC, 0, keyPairB, keyPairD.getPublic());
+        Transaction txC2E = signedTx(txA2BC, 1, keyPairC, keyPairE.getPublic());
+        sender.processTx(txB2D);
+        sender.processTx(txC2E);
+        receiver.processTx(txB2D);
+        Block block2 = sender.createBlock(keyPairA.getPublic());
+        assertEquals(2, block2.getTransactions().size());
+
+        CompactBlock compact = new CompactBlock(block2);
+        int[][] requested = new int[1][];
+        BlockHandler.TxFetcher fetcher = (blockHash, positions) -> {
+            assertArrayEquals(block2.getHash(), blockHash);
+            requested[0] = positions;
+            Transaction[] txs = new Transaction[positions.length];
+            for (int i = 0; i < positions.length; i++)
+                txs[i] = block2.getTransaction(positions[i]);
+            return txs;
+        };
+        String skipped = "signature_verify_skipped_total";
+        long skippedBefore = Metrics.getDefault().getCount(skipped);
+        assertEquals(Verdict.ACCEPTED, receiver.processCompactBlock(compact, fetcher));
+        assertArrayEquals(new int[]{block2.getTransactions().indexOf(txC2E)}, requested[0]);
+        assertEquals(skippedBefore + 1, Metrics.getDefault().getCount(skipped));
+
+        // a peer sending the wrong tx cannot make the receiver accept another block
+        BlockHandler other = new BlockHandler(new BlockChain(genesisBlock));
+        assertTrue(other.processBlock(block1));
+        Verdict verdict = other.processCompactBlock(compact, (blockHash, positions) -> {
+            Transaction[] txs = new Transaction[positions.length];
+            Arrays.fill(txs, txB2D);
+            return txs;
+        });
+        assertEquals(Verdict.Reason.MERKLE_MISMATCH, verdict.getReason());
+
+        // nor can a tx be slipped into a block after its hash was computed
+        Block tampered = new Block(block1.getHash(), keyPairA.getPublic());
+        tampered.addTransaction(txB2D);
+        tampered.finalize();
+        tampered.addTransaction(txC2E);
+        assertTrue(tampered.checkProofOfWork());
+        assertEquals(Verdict.Reason.MERKLE_MISMATCH, other.submitBlock(tampered).getReason());
+    }
+
+    @Test
+    /**
+     * when a side branch overtakes the main chain, the txs of the disconnected blocks go back to
+     * the pool ahead of their children unless the new branch spends the same outputs, in which
+     * case they and their pooled descendants are evicted
+     */
+    void testReorg() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Block genesisBlock = new Block(null, keyPairA.getPublic());
+        genesisBlock.finalize();
+        BlockChain blockChain = new BlockChain(genesisBlock);
+        BlockHandler blockHandler = new BlockHandler(blockChain);
+
+        // main chain: block1 confirms A -> B, B -> C waits in the pool
+        Transaction txA2B = signedTx(genesisBlock.getCoinbase(), 0, keyPairA, keyPairB.getPublic());
+        blockHandler.processTx(txA2B);
+        Block block1 = blockHandler.createBlock(keyPairA.getPublic());
+        assertEquals(1, block1.getTransactions().size());
+        Transaction txB2C = signedTx(txA2B, 0, keyPairB, keyPairC.getPublic());
+        blockHandler.processTx(txB2C);
+        assertEquals(1, blockChain.getTransactionPool().getTransactionPoolSize());
+
+        // an empty side branch overtakes it: A -> B comes back ahead of B -> C
+        Block side1 = new Block(genesisBlock.getHash(), keyPairD.getPublic());
+        side1.finalize();
+        Block side2 = new Block(side1.getHash(), keyPairD.getPublic());
+        side2.finalize();
+        assertTrue(blockHandler.processBlock(side1));
+        assertEquals(1, blockChain.getTransactionPool().getTransactionPoolSize());
+        assertTrue(blockHandler.processBlock(side2));
+        assertArrayEquals(side2.getHash(), blockChain.getMaxHeightBlock().getHash());
+        assertEquals(Arrays.asList(txA2B, txB2C), blockChain.getTransactionPool().getTransactions());
+        assertTrue(blockChain.getTransactionPool().isVerified(txA2B.getHash()));
+        Block block3 = blockHandler.createBlock(keyPairA.getPublic());
+        assertEquals(Arrays.asList(txA2B, txB2C), block3.getTransactions());
+
+        // a branch from block1 spending the coinbase of genesis to E instead: both are evicted
+        blockHandler.processTx(txA2B);
+        blockHandler.processTx(txB2C);
+        Block conflict1 = new Block(genesisBlock.getHash(), keyPairE.getPublic());
+        conflict1.addTransaction(signedTx(genesisBlock.getCoinbase(), 0, keyPairA, keyPairE.getPublic()));
+        conflict1.finalize();
+        Block conflict2 = new Block(conflict1.getHash(), keyPairE.getPublic());
+        conflict2.finalize();
+        Block conflict3 = new Block(conflict2.getHash(), keyPairE.getPublic());
+        conflict3.finalize();
+        Block conflict4 = new Block(conflict3.getHash(), keyPairE.getPublic());
+        conflict4.finalize();
+        assertTrue(blockHandler.processBlock(conflict1));
+        assertTrue(blockHandler.processBlock(conflict2));
+        assertTrue(blockHandler.processBlock(conflict3));
+        assertEquals(2, blockChain.getTransactionPool().getTransactionPoolSize());
+        assertTrue(blockHandler.processBlock(conflict4));
+        assertArrayEquals(conflict4.getHash(), blockChain.getMaxHeightBlock().getHash());
+        assertEquals(0, blockChain.getTransactionPool().getTransactionPoolSize());
+
+        // a pooled tx spending the same output twice is evicted once when a block spends it
+        Transaction twice = new Transaction();
+        twice.addInput(conflict4.getCoinbase().getHash(), 0);
+        twice.addInput(conflict4.getCoinbase().getHash(), 0);
+        twice.addOutput(1, keyPairE.getPublic());
+        twice.finalize();
+        assertFalse(blockChain.submitTransaction(twice).isAccepted());
+        assertEquals(1, blockChain.getTransactionPool().getTransactionPoolSize());
+        Block spend = new Block(conflict4.getHash(), keyPairE.getPublic());
+        spend.addTransaction(signedTx(conflict4.getCoinbase(), 0, keyPairE, keyPairA.getPublic()));
+        spend.finalize();
+        assertEquals(Verdict.ACCEPTED, blockChain.tryAddBlock(spend));
+        assertArrayEquals(spend.getHash(), blockChain.getMaxHeightBlock().getHash());
+        assertEquals(0, blockChain.getTransactionPool().getTransactionPoolSize());
+    }
+
+    @Test
+    /**
+     * blocks added through the pipeline get the same verdicts and leave the same chain as blocks
+     * added one by one, and the signatures checked ahead of time are not checked again
+     */
+    void testBlockPipeline() throws Exception {
+        Block genesisBlock = new Block(null, keyPairA.getPublic());
+        genesisBlock.finalize();
+        BlockHandler miner = new BlockHandler(new BlockChain(genesisBlock));
+
+        // each block spends the output of the previous one, which is still in the pipeline
+        KeyPair[] owners = { keyPairA, keyPairB, keyPairC, keyPairD, keyPairE };
+        Transaction prevTx = genesisBlock.getCoinbase();
+        Block[] blocks = new Block[owners.length];
+        for (int i = 0; i < owners.length; i++) {
+            KeyPair next = owners[(i + 1) % owners.length];
+            Transaction tx = signedTx(prevTx, 0, owners[i], next.getPublic());
+            miner.processTx(tx);
+            blocks[i] = miner.createBlock(keyPairA.getPublic());
+            assertEquals(1, blocks[i].getTransactions().size());
+            prevTx = tx;
+        }
+        // signed by the wrong key, on top of the last block
+        Block bad = new Block(blocks[owners.length - 1].getHash(), keyPairA.getPublic());
+        bad.addTransaction(signedTx(prevTx, 0, keyPairB, keyPairB.getPublic()));
+        bad.finalize();
+
+        BlockChain blockChain = new BlockChain(genesisBlock);
+        String preverified = "signature_verify_preverified_total";
+        long preverifiedBefore = Metrics.getDefault().getCount(preverified);
+        ArrayList<CompletableFuture<Verdict>> verdicts = new ArrayList<CompletableFuture<Verdict>>();
+        try (BlockPipeline pipeline = new BlockPipeline(blockChain, 2, 2)) {
+            for (Block block : blocks)
+                verdicts.add(pipeline.submit(block));
+            verdicts.add(pipeline.submit(bad));
+            verdicts.add(pipeline.submit(blocks[0]));
+        }
+        for (int i = 0; i < blocks.length; i++)
+            assertEquals(Verdict.ACCEPTED, verdicts.get(i).get());
+        assertEquals(Verdict.Reason.BAD_SIGNATURE, verdicts.get(blocks.length).get().getReason());
+        assertEquals(0, verdicts.get(blocks.length).get().getTxIndex());
+        // the same verdicts as one by one
+        BlockChain sequential = new BlockChain(genesisBlock);
+        for (int i = 0; i < blocks.length; i++)
+            assertEquals(sequential.tryAddBlock(blocks[i]).getReason(), verdicts.get(i).get().getReason());
+        assertEquals(sequential.tryAddBlock(bad).getReason(), verdicts.get(blocks.length).get().getReason());
+        assertEquals(sequential.tryAddBlock(blocks[0]).getReason(), verdicts.get(blocks.length + 1).get().getReason());
+        assertArrayEquals(sequential.getMaxHeightBlock().getHash(), blockChain.getMaxHeightBlock().getHash());
+        assertArrayEquals(blocks[blocks.length - 1].getHash(), blockChain.getMaxHeightBlock().getHash());
+        // one signature per accepted block, blocks[0] submitted again is a duplicate rejected before its txs
+        assertEquals(Verdict.Reason.DUPLICATE, verdicts.get(blocks.length + 1).get().getReason());
+        assertEquals(blocks.length, Metrics.getDefault().getCount(preverified) - preverifiedBefore);
+    }
+
+    @Test
+    /**
+     * three nodes on localhost in a line A - B - C: valid txs submitted at A reach C through B, even
+     * those spending pooled txs, and a block mined at A is relayed as a compact block and becomes
+     * the tip of C
+     */
+    void testPeerNodes() throws Exception {
+        Block genesisBlock = new Block(null, keyPairA.getPublic());
+        genesisBlock.finalize();
+        PeerNode nodeA = new PeerNode(new BlockChain(genesisBlock), 0);
+        PeerNode nodeB = new PeerNode(new BlockChain(genesisBlock), 0);
+        PeerNode nodeC = new PeerNode(new BlockChain(genesisBlock), 0);
+        try {
+            nodeB.connect(nodeA.getAddress()).get(10, TimeUnit.SECONDS);
+            nodeC.connect(nodeB.getAddress()).get(10, TimeUnit.SECONDS);
+            awaitTrue(() -> nodeA.getNumPeers() == 1 && nodeB.getNumPeers() == 2);
+
+            // A pays the coinbase to B in 50 outputs, B pays each one to C
+            int n = 50;
+            Transaction split = new Transaction();
+            split.addInput(genesisBlock.getCoinbase().getHash(), 0);
+            for (int i = 0; i < n; i++)
+                split.addOutputUnits(Block.COINBASE / n, keyPairB.getPublic());
+            Signature sign = Signature.getInstance("SHA256withRSA");
+            sign.initSign(keyPairA.getPrivate());
+            sign.update(split.getRawDataToSign(0));
+            split.addSignature(sign.sign(), 0);
+            split.finalize();
+            nodeA.submitTransaction(split);
+            for (int i = 0; i < n; i++)
+                nodeA.submitTransaction(signedTx(split, i, keyPairB, keyPairC.getPublic()));
+            awaitTrue(() -> poolSize(nodeC) == n + 1);
+            assertEquals(n + 1, poolSize(nodeB));
+
+            Block block = nodeA.mineBlock(keyPairA.getPublic()).get(10, TimeUnit.SECONDS);
+            assertNotNull(block);
+            awaitTrue(() -> Arrays.equals(block.getHash(), tipHash(nodeC)));
+            assertArrayEquals(block.getHash(), tipHash(nodeB));
+            assertEquals(poolSize(nodeA), poolSize(nodeC));
+
+            // an invalid tx stays in the pool of A but is not relayed, the valid one after it is
+            int pooled = poolSize(nodeC);
+            nodeA.submitTransaction(signedTx(block.getCoinbase(), 0, keyPairB, keyPairC.getPublic()));
+            nodeA.submitTransaction(signedTx(block.getCoinbase(), 0, keyPairA, keyPairC.getPublic()));
+            awaitTrue(() -> poolSize(nodeC) == pooled + 1);
+            assertEquals(pooled + 1, poolSize(nodeB));
+            assertEquals(pooled + 2, poolSize(nodeA));
+        } finally {
+            nodeA.close();
+            nodeB.close();
+            nodeC.close();
+        }
+    }
+
+    private static int poolSize(PeerNode node) {
+        return node.call(chain -> chain.getTransactionPool().getTransactionPoolSize()).join();
+    }
+
+    private static byte[] tipHash(PeerNode node) {
+        return node.call(chain -> chain.getMaxHeightBlock().getHash()).join();
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    /**
+     * A pays RSA coins to Ed25519 and ECDSA addresses, which pay them back to C in the next block:
+     * txs of mixed schemes validate, survive the wire codec, and a signature of the wrong scheme
+     * is rejected, as is an ECDSA signature in any but its canonical encoding
+     */
+    void testSignatureSchemes() {
+        KeyPair ed = SignatureScheme.ED25519.generateKeyPair();
+        KeyPair ec = SignatureScheme.ECDSA.generateKeyPair();
+        assertEquals(SignatureScheme.RSA, SignatureScheme.of(keyPairA.getPublic()));
+        assertEquals(SignatureScheme.ED25519, SignatureScheme.of(ed.getPublic()));
+        assertEquals(SignatureScheme.ECDSA, SignatureScheme.of(ec.getPublic()));
+        assertEquals(33, SignatureScheme.encode(ed.getPublic()).length);
+        assertEquals(34, SignatureScheme.encode(ec.getPublic()).length);
+        assertEquals(ed.getPublic(), SignatureScheme.decode(SignatureScheme.encode(ed.getPublic())));
+        assertEquals(ec.getPublic(), SignatureScheme.decode(SignatureScheme.encode(ec.getPublic())));
+
+        // an ECDSA signature has a single valid encoding: strict DER with s <= n / 2
+        byte[] message = "message".getBytes(StandardCharsets.UTF_8);
+        BigInteger n = ((ECPublicKey) ec.getPublic()).getParams().getOrder();
+        for (int i = 0; i < 8; i++) {
+            byte[] signature = SignatureScheme.ECDSA.sign(ec.getPrivate(), message);
+            BigInteger[] rs = SignatureScheme.decodeDer(signature);
+            assertTrue(rs[1].compareTo(n.shiftRight(1)) <= 0);
+            assertTrue(SignatureScheme.ECDSA.verify(ec.getPublic(), message, signature));
+            assertFalse(SignatureScheme.ECDSA.verify(ec.getPublic(), message, SignatureScheme.encodeDer(rs[0], n.subtract(rs[1]))));
+            // r padded with a zero byte it does not need
+            byte[] padded = new byte[signature.length + 1];
+            padded[0] = 0x30;
+            padded[1] = (byte) (signature.length - 1);
+            padded[2] = 0x02;
+            padded[3] = (byte) (signature[3] + 1);
+            System.arraycopy(signature, 4, padded, 5, signature.length - 4);
+            assertNull(SignatureScheme.decodeDer(padded));
+            assertFalse(SignatureScheme.ECDSA.verify(ec.getPublic(), message, padded));
+        }
+
+        Block genesisBlock = new Block(null, keyPairA.getPublic());
+        genesisBlock.finalize();
+        BlockChain blockChain = new BlockChain(genesisBlock);
+        BlockHandler blockHandler = new BlockHandler(blockChain);
+        Transaction txA2EdEc = new Transaction();
+        txA2EdEc.addInput(genesisBlock.getCoinbase().getHash(), 0);
+        txA2EdEc.addOutput(10, ed.getPublic());
+        txA2EdEc.addOutput(15, ec.getPublic());
+        txA2EdEc.addSignature(SignatureScheme.RSA.sign(keyPairA.getPrivate(), txA2EdEc.getRawDataToSign(0)), 0);
+        txA2EdEc.finalize();
+        blockHandler.processTx(txA2EdEc);
+        assertNotNull(blockHandler.createBlock(keyPairB.getPublic()));
+
+        Transaction txEdEc2C = new Transaction();
+        txEdEc2C.addInput(txA2EdEc.getHash(), 0);
+        txEdEc2C.addInput(txA2EdEc.getHash(), 1);
+        txEdEc2C.addOutput(25, keyPairC.getPublic());
+        // the ECDSA input signed with the Ed25519 key
+        txEdEc2C.addSignature(SignatureScheme.ED25519.sign(ed.getPrivate(), txEdEc2C.getRawDataToSign(0)), 0);
+        txEdEc2C.addSignature(SignatureScheme.ED25519.sign(ed.getPrivate(), txEdEc2C.getRawDataToSign(1)), 1);
+        txEdEc2C.finalize();
+        assertFalse(new TxHandler(blockChain.getMaxHeightUTXOPool()).isValidTx(txEdEc2C));
+        txEdEc2C.addSignature(SignatureScheme.ECDSA.sign(ec.getPrivate(), txEdEc2C.getRawDataToSign(1)), 1);
+        txEdEc2C.finalize();
+
+        WireCodec codec = new WireCodec();
+        Transaction decoded = codec.readTransaction(ByteBuffer.wrap(new WireCodec.Writer().writeTransaction(txEdEc2C).toByteArray()));
+        assertArrayEquals(txEdEc2C.getHash(), decoded.getHash());
+        assertEquals(txEdEc2C.getOutput(0), decoded.getOutput(0));
+        assertTrue(new TxHandler(blockChain.getMaxHeightUTXOPool()).isValidTx(decoded));
+        blockHandler.processTx(decoded);
+        assertNotNull(blockHandler.createBlock(keyPairB.getPublic()));
+        assertEquals(Transaction.toUnits(25), blockChain.getMaxHeightUTXOPool().getBalance(keyPairC.getPublic()));
+    }
+
+    @Test
+    /**
+     * a tx from the builder hashes and signs like the same tx built by hand, cannot change once
+     * sealed, and is accepted by the pool and in a block
+     */
+    void testSealedTransaction() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Block genesisBlock = new Block(null, keyPairA.getPublic());
+        genesisBlock.finalize();
+        assertTrue(genesisBlock.getCoinbase().isSealed());
+        BlockChain blockChain = new BlockChain(genesisBlock);
+        BlockHandler blockHandler = new BlockHandler(blockChain);
+
+        Transaction txA2B = signedTx(genesisBlock.getCoinbase(), 0, keyPairA, keyPairB.getPublic());
+        assertFalse(txA2B.isSealed());
+        Transaction.Builder builder = new Transaction.Builder()
+                .addInput(genesisBlock.getCoinbase().getHash(), 0)
+                .addOutputUnits(Block.COINBASE, keyPairB.getPublic());
+        builder.addSignature(SignatureScheme.RSA.sign(keyPairA.getPrivate(), builder.getRawDataToSign(0)), 0);
+        Transaction sealed = builder.build();
+        assertTrue(sealed.isSealed());
+        assertArrayEquals(txA2B.getHash(), sealed.getHash());
+        assertArrayEquals(txA2B.getRawDataToSign(0), sealed.getRawDataToSign(0));
+        // what a sealed tx hands out are copies: changing them does not change the tx
+        byte[] hash = sealed.getHash();
+        byte[] rawTx = sealed.getRawTx();
+        sealed.getHash()[0] ^= 1;
+        sealed.getRawTx()[0] ^= 1;
+        sealed.getInput(0).signature[0] ^= 1;
+        sealed.getInputs().get(0).prevTxHash[0] ^= 1;
+        assertArrayEquals(hash, sealed.getHash());
+        assertArrayEquals(rawTx, sealed.getRawTx());
+        assertArrayEquals(txA2B.getInput(0).signature, sealed.getInput(0).signature);
+        assertArrayEquals(genesisBlock.getCoinbase().getHash(), sealed.getInput(0).prevTxHash);
+
+        assertThrows(IllegalStateException.class, () -> sealed.addInput(txA2B.getHash(), 0));
+        assertThrows(IllegalStateException.class, () -> sealed.addOutput(1, keyPairC.getPublic()));
+        assertThrows(IllegalStateException.class, () -> sealed.addSignature(new byte[1], 0));
+        assertThrows(IllegalStateException.class, () -> sealed.setHash(new byte[32]));
+        assertThrows(UnsupportedOperationException.class, () -> sealed.getOutputs().remove(0));
+        assertThrows(UnsupportedOperationException.class, () -> sealed.getInputs().remove(0));
+        // neither the builder nor a mutable copy share inputs with the sealed tx
+        builder.addSignature(new byte[1], 0);
+        Transaction copy = new Transaction(sealed);
+        copy.addSignature(new byte[1], 0);
+        assertFalse(copy.isSealed());
+        assertTrue(new TxHandler(blockChain.getMaxHeightUTXOPool()).isValidTx(sealed));
+
+        blockHandler.processTx(sealed);
+        Block block = blockHandler.createBlock(keyPairC.getPublic());
+        assertEquals(1, block.getTransactions().size());
+        assertSame(sealed, block.getTransactions().get(0));
+        assertEquals(Block.COINBASE, blockChain.getMaxHeightUTXOPool().getBalance(keyPairB.getPublic()));
+
+        // an unsealed tx changed after it was verified in the pool has its signatures checked again
+        BlockChain other = new BlockChain(genesisBlock);
+        other.addTransaction(txA2B);
+        assertTrue(other.getTransactionPool().isVerified(txA2B));
+        txA2B.addSignature(new byte[1], 0);
+        assertFalse(other.getTransactionPool().isVerified(txA2B));
+        TxHandler handler = new TxHandler(other.getMaxHeightUTXOPool(), other.getTransactionPool());
+        assertEquals(Verdict.Reason.BAD_SIGNATURE, handler.validateTx(txA2B).getReason());
+    }
+
+    @Test
+    /**
+     * ancestors and fork points found through the skip pointers match the blocks of the chain,
+     * and the tips are ranked by chain work as a side branch overtakes the main one
+     */
+    void testAncestors() {
+        Block genesisBlock = new Block(null, keyPairA.getPublic());
+        genesisBlock.finalize();
+        BlockChain blockChain = new BlockChain(genesisBlock);
+        BlockHandler blockHandler = new BlockHandler(blockChain);
+        ArrayList<Block> blocks = new ArrayList<Block>();
+        blocks.add(null);
+        blocks.add(genesisBlock);
+        for (int h = 2; h <= 100; h++)
+            blocks.add(blockHandler.createBlock(keyPairA.getPublic()));
+        Block tip = blockChain.getMaxHeightBlock();
+        for (int h = 1; h <= 100; h++) {
+            assertTrue(BlockChain.skipHeight(h) <= Math.max(1, h - 1));
+            assertSame(blocks.get(h), blockChain.getAncestor(tip.getHash(), h));
+            assertSame(blocks.get(h), blockChain.getBlockAtHeight(h));
+        }
+        assertNull(blockChain.getAncestor(tip.getHash(), 101));
+        assertNull(blockChain.getAncestor(tip.getHash(), 0));
+
+        // a side branch forking off block 96 overtakes the main branch
+        Block parent = blocks.get(96);
+        ArrayList<Block> side = new ArrayList<Block>();
+        for (int i = 0; i < 5; i++) {
+            Block block = new Block(parent.getHash(), keyPairB.getPublic());
+            block.finalize();
+            assertTrue(blockHandler.processBlock(block));
+            side.add(block);
+            parent = block;
+            if (i == 0) {
+                assertSame(blocks.get(96), blockChain.getLowestCommonAncestor(tip.getHash(), block.getHash()));
+                assertSame(tip, blockChain.getTips().get(0));
+                assertEquals(2, blockChain.getTips().size());
+            }
+        }
+        assertSame(blocks.get(96), blockChain.getLowestCommonAncestor(side.get(4).getHash(), tip.getHash()));
+        assertSame(blocks.get(98), blockChain.getLowestCommonAncestor(blocks.get(98).getHash(), tip.getHash()));
+        assertSame(side.get(4), blockChain.getTips().get(0));
+        assertSame(tip, blockChain.getTips().get(1));
+        assertSame(side.get(4), blockChain.getMaxHeightBlock());
+        assertEquals(BigInteger.valueOf(101), blockChain.getChainWork(side.get(4).getHash()));
+        assertSame(side.get(0), blockChain.getBlockAtHeight(97));
+    }
+
+    @Test
+    /**
+     * a block is rejected by its cheapest failing check: missing inputs and double spends are found
+     * before bad signatures, and a block over the cost budget is rejected before its signatures
+     */
+    void testCostOrderedValidation() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Block genesisBlock = new Block(null, keyPairA.getPublic());
+        genesisBlock.finalize();
+        BlockChain blockChain = new BlockChain(genesisBlock);
+        Transaction coinbase = genesisBlock.getCoinbase();
+
+        // tx 0 is signed by the wrong key, tx 1 spends an output that does not exist
+        Block missing = new Block(genesisBlock.getHash(), keyPairB.getPublic());
+        missing.addTransaction(signedTx(coinbase, 0, keyPairB, keyPairB.getPublic()));
+        Transaction txMissing = new Transaction();
+        txMissing.addInput(new byte[32], 0);
+        txMissing.addOutput(1, keyPairC.getPublic());
+        txMissing.addSignature(new byte[256], 0);
+        txMissing.finalize();
+        missing.addTransaction(txMissing);
+        missing.finalize();
+        Verdict verdict = blockChain.tryAddBlock(missing);
+        assertEquals(Verdict.Reason.MISSING_INPUT, verdict.getReason());
+        assertEquals(1, verdict.getTxIndex());
+
+        // both txs spend the coinbase, the second one with a bad signature
+        Block doubleSpend = new Block(genesisBlock.getHash(), keyPairB.getPublic());
+        doubleSpend.addTransaction(signedTx(coinbase, 0, keyPairA, keyPairB.getPublic()));
+        doubleSpend.addTransaction(signedTx(coinbase, 0, keyPairB, keyPairC.getPublic()));
+        doubleSpend.finalize();
+        verdict = blockChain.tryAddBlock(doubleSpend);
+        assertEquals(Verdict.Reason.DOUBLE_SPEND, verdict.getReason());
+        assertEquals(1, verdict.getTxIndex());
+
+        // A pays B, B pays C: 4 inputs and outputs and 2 signatures
+        Transaction txA2B = signedTx(coinbase, 0, keyPairA, keyPairB.getPublic());
+        Block valid = new Block(genesisBlock.getHash(), keyPairB.getPublic());
+        valid.addTransaction(txA2B);
+        valid.addTransaction(signedTx(txA2B, 0, keyPairB, keyPairC.getPublic()));
+        valid.finalize();
+        blockChain.setMaxBlockCost(4 * TxHandler.LOOKUP_COST + 2 * TxHandler.SIGNATURE_COST - 1);
+        verdict = blockChain.tryAddBlock(valid);
+        assertEquals(Verdict.Reason.COST_EXCEEDED, verdict.getReason());
+        assertEquals(1, verdict.getTxIndex());
+        blockChain.setMaxBlockCost(4 * TxHandler.LOOKUP_COST + 2 * TxHandler.SIGNATURE_COST);
+        assertEquals(Verdict.ACCEPTED, blockChain.tryAddBlock(valid));
+        assertEquals(Verdict.Reason.DUPLICATE, blockChain.tryAddBlock(valid).getReason());
+        assertEquals(Transaction.toUnits(25), blockChain.getMaxHeightUTXOPool().getBalance(keyPairC.getPublic()));
+    }
+
+    @Test
+    /**
+     * a resent block or tx is answered by the seen filters or the pool without validating it again, and
+     * threads submitting the same block at once share a single validation
+     */
+    void testSeenFilters() throws Exception {
+        Block genesisBlock = new Block(null, keyPairA.getPublic());
+        genesisBlock.finalize();
+        BlockChain blockChain = new BlockChain(genesisBlock);
+        BlockHandler blockHandler = new BlockHandler(blockChain);
+        Transaction coinbase = genesisBlock.getCoinbase();
+        Metrics metrics = Metrics.getDefault();
+        String blockHits = "seen_filter_hits_total{kind=\"block\"}";
+        String txHits = "seen_filter_hits_total{kind=\"tx\"}";
+        String joined = "inflight_validations_joined_total";
+        String added = "blocks_added_total";
+        String duplicates = "block_rejected_total{reason=\"duplicate\"}";
+
+        // signed by B instead of A: rejected for good, pooled once and not checked again
+        Transaction badTx = signedTx(coinbase, 0, keyPairB, keyPairB.getPublic());
+        long txHitsBefore = metrics.getCount(txHits);
+        assertEquals(Verdict.Reason.BAD_SIGNATURE, blockHandler.submitTx(badTx).getReason());
+        assertEquals(Verdict.Reason.BAD_SIGNATURE, blockHandler.submitTx(badTx).getReason());
+        assertEquals(txHitsBefore + 1, metrics.getCount(txHits));
+        assertEquals(1, blockChain.getTransactionPool().getTransactionPoolSize());
+
+        Transaction txA2B = signedTx(coinbase, 0, keyPairA, keyPairB.getPublic());
+        assertEquals(Verdict.ACCEPTED, blockHandler.submitTx(txA2B));
+        assertEquals(Verdict.ACCEPTED, blockHandler.submitTx(txA2B));
+        assertEquals(txHitsBefore + 2, metrics.getCount(txHits));
+        assertEquals(2, blockChain.getTransactionPool().getTransactionPoolSize());
+
+        Block badBlock = new Block(genesisBlock.getHash(), keyPairB.getPublic());
+        badBlock.addTransaction(badTx);
+        badBlock.finalize();
+        long blockHitsBefore = metrics.getCount(blockHits);
+        Verdict verdict = blockHandler.submitBlock(badBlock);
+        assertEquals(Verdict.Reason.BAD_SIGNATURE, verdict.getReason());
+        assertSame(verdict, blockHandler.submitBlock(badBlock));
+        assertEquals(blockHitsBefore + 1, metrics.getCount(blockHits));
+
+        Block block = new Block(genesisBlock.getHash(), keyPairB.getPublic());
+        block.addTransaction(txA2B);
+        block.finalize();
+        int threads = 8;
+        long addedBefore = metrics.getCount(added);
+        long duplicatesBefore = metrics.getCount(duplicates);
+        long hitsBefore = metrics.getCount(blockHits) + metrics.getCount(joined);
+        CompletableFuture<?>[] submits = new CompletableFuture<?>[threads];
+        ArrayList<Verdict> verdicts = new ArrayList<Verdict>();
+        for (int i = 0; i < threads; i++)
+            submits[i] = CompletableFuture.supplyAsync(() -> blockHandler.submitBlock(block))
+                    .thenAccept(v -> {
+                        synchronized (verdicts) {
+                            verdicts.add(v);
+                        }
+                    });
+        CompletableFuture.allOf(submits).get(30, TimeUnit.SECONDS);
+        // one thread validated the block, the others joined it or found it in the accepted filter
+        assertEquals(addedBefore + 1, metrics.getCount(added));
+        assertEquals(duplicatesBefore, metrics.getCount(duplicates));
+        assertEquals(hitsBefore + threads - 1, metrics.getCount(blockHits) + metrics.getCount(joined));
+        assertTrue(verdicts.contains(Verdict.ACCEPTED));
+        for (Verdict v : verdicts)
+            assertTrue(v.isAccepted() || v.getReason() == Verdict.Reason.DUPLICATE, v.toString());
+        assertEquals(Verdict.Reason.DUPLICATE, blockHandler.submitBlock(block).getReason());
+        assertEquals(duplicatesBefore, metrics.getCount(duplicates));
+    }
+
+    @Test
+    /**
+     * a block applied to a sharded set in parallel leaves the same UTXOs as its txs applied one
+     * after the other, and a block spending a missing or spent output leaves the set unchanged
+     */
+    void testShardedUTXOSet() {
+        Block genesisBlock = new Block(null, keyPairA.getPublic());
+        genesisBlock.finalize();
+        UTXOPool serial = new UTXOPool(new BlockChain(genesisBlock).getMaxHeightUTXOPool());
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            ShardedUTXOSet sharded = new ShardedUTXOSet(serial, 8, executor);
+            ShardedUTXOSet single = new ShardedUTXOSet(serial, 1, executor);
+            assertEquals(8, sharded.getNumShards());
+
+            // the coinbase fans out to 200 outputs, each spent by a tx of 2 outputs, the first of
+            // which the next tx spends too; signatures and values are not the set's business
+            ArrayList<Transaction> txs = new ArrayList<Transaction>();
+            Transaction fanOut = new Transaction();
+            fanOut.addInput(genesisBlock.getCoinbase().getHash(), 0);
+            for (int i = 0; i < 200; i++)
+                fanOut.addOutput(0.1, keyPairB.getPublic());
+            fanOut.finalize();
+            txs.add(fanOut);
+            for (int i = 0; i < 200; i++) {
+                Transaction tx = new Transaction();
+                tx.addInput(fanOut.getHash(), i);
+                if (i > 0)
+                    tx.addInput(txs.get(txs.size() - 1).getHash(), 0);
+                tx.addOutput(0.05, keyPairC.getPublic());
+                tx.addOutput(0.05, i % 2 == 0 ? keyPairD.getPublic() : keyPairE.getPublic());
+                tx.finalize();
+                txs.add(tx);
+            }
+            for (Transaction tx : txs) {
+                for (Transaction.Input in : tx.getInputs())
+                    serial.removeUTXO(new UTXO(in.prevTxHash, in.outputIndex));
+                for (int j = 0; j < tx.numOutputs(); j++)
+                    serial.addUTXO(new UTXO(tx.getHash(), j), tx.getOutput(j));
+            }
+            assertEquals(Verdict.ACCEPTED, sharded.apply(txs));
+            assertEquals(Verdict.ACCEPTED, single.apply(txs));
+            assertEquals(contents(serial), contents(sharded.toUTXOPool()));
+            assertEquals(contents(serial), contents(single.toUTXOPool()));
+            assertEquals(201, sharded.size());
+
+            Transaction respend = new Transaction();
+            respend.addInput(txs.get(200).getHash(), 1);
+            respend.finalize();
+            Verdict verdict = sharded.apply(Arrays.asList(respend, txs.get(0)));
+            assertEquals(Verdict.Reason.MISSING_INPUT, verdict.getReason());
+            assertEquals(1, verdict.getTxIndex());
+            verdict = sharded.apply(Arrays.asList(respend, respend));
+            assertEquals(Verdict.Reason.DOUBLE_SPEND, verdict.getReason());
+            assertEquals(1, verdict.getTxIndex());
+            assertEquals(contents(serial), contents(sharded.toUTXOPool()));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    /**
+     * the delta of a block nets the outputs it creates and spends again, and its inverse restores
+     * the pool, address index included
+     */
+    void testUTXODelta() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Block genesisBlock = new Block(null, keyPairA.getPublic());
+        genesisBlock.finalize();
+        BlockChain blockChain = new BlockChain(genesisBlock);
+        Transaction coinbase = genesisBlock.getCoinbase();
+        Transaction txA2B = signedTx(coinbase, 0, keyPairA, keyPairB.getPublic());
+        Transaction txB2C = signedTx(txA2B, 0, keyPairB, keyPairC.getPublic());
+        Block block = new Block(genesisBlock.getHash(), keyPairD.getPublic());
+        block.addTransaction(txA2B);
+        block.addTransaction(txB2C);
+        block.finalize();
+
+        UTXODelta delta = UTXODelta.of(block);
+        assertEquals(2, delta.getSpent().size());
+        assertTrue(delta.getSpent().contains(new UTXO(txA2B.getHash(), 0)));
+        assertEquals(2, delta.getCreated().size());
+        assertEquals(txB2C.getOutput(0), delta.getCreated().get(new UTXO(txB2C.getHash(), 0)));
+        assertFalse(delta.getCreated().containsKey(new UTXO(txA2B.getHash(), 0)));
+
+        UTXOPool pool = new UTXOPool(blockChain.getMaxHeightUTXOPool());
+        Map<UTXO, Transaction.Output> before = contents(pool);
+        UTXOPool withoutUndo = new UTXOPool(pool);
+        UTXODelta inverse = pool.applyWithUndo(delta);
+        withoutUndo.apply(delta);
+        assertTrue(blockChain.addBlock(block));
+        assertEquals(contents(blockChain.getMaxHeightUTXOPool()), contents(pool));
+        assertEquals(contents(pool), contents(withoutUndo));
+        assertEquals(Transaction.toUnits(25), pool.getBalance(keyPairC.getPublic()));
+        assertEquals(0, pool.getBalance(keyPairA.getPublic()));
+
+        pool.apply(inverse);
+        assertEquals(before, contents(pool));
+        assertEquals(Transaction.toUnits(25), pool.getBalance(keyPairA.getPublic()));
+        assertEquals(0, pool.getBalance(keyPairC.getPublic()));
+        assertEquals(0, pool.getBalance(keyPairD.getPublic()));
+
+        Verdict verdict = new UTXODelta().add(txB2C, pool::contains);
+        assertEquals(Verdict.Reason.MISSING_INPUT, verdict.getReason());
+
+        // only the side that writes copies: once its copy has left, a pool is changed in place
+        LatencyHistogram copies = Metrics.getDefault().histogram("utxo_pool_copy_seconds");
+        UTXO a2b = new UTXO(txA2B.getHash(), 0);
+        UTXO b2c = new UTXO(txB2C.getHash(), 0);
+        UTXOPool source = new UTXOPool();
+        source.addUTXO(a2b, txA2B.getOutput(0));
+        long copiesBefore = copies.getCount();
+        UTXOPool copy = new UTXOPool(source);
+        copy.removeUTXO(a2b);
+        source.addUTXO(b2c, txB2C.getOutput(0));
+        assertEquals(copiesBefore + 1, copies.getCount());
+        assertEquals(0, copy.size());
+        // a snapshot costs one copy on the next change, and sees none of them
+        UTXOSnapshot snapshot = source.snapshot();
+        source.removeUTXO(a2b);
+        source.removeUTXO(b2c);
+        assertEquals(copiesBefore + 2, copies.getCount());
+        assertEquals(2, snapshot.size());
+        assertEquals(0, source.size());
+    }
 
+    private static Map<UTXO, Transaction.Output> contents(UTXOPool pool) {
+        HashMap<UTXO, Transaction.Output> contents = new HashMap<UTXO, Transaction.Output>();
+        pool.snapshot().entryStream(false).forEach(e -> contents.put(e.getKey(), e.getValue()));
+        return contents;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,268 @@
+import phbs.bench.Workload;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * The workloads measured by the {@code phbs.bench} benchmarks. Keys and signatures are made the same
+ * way as in {@code BlockHandlerTest}: RSA key pairs and SHA256withRSA signatures over
+ * {@code getRawDataToSign}.
+ */
+public class WorkloadFactory implements Workload.Factory {
+
+    public Workload create(String name, Workload.Params params) throws Exception {
+        switch (name) {
+            case "handleTxs":
+                return new HandleTxs(params);
+            case "verifySignature":
+                return new VerifySignature(params);
+            case "getRawTx":
+                return new GetRawTx(params);
+            case "finalizeBlock":
+                return new FinalizeBlock(params);
+            case "copyPool":
+                return new CopyPool(params);
+            case "addBlock":
+                return new AddBlock(params);
+            default:
+                throw new IllegalArgumentException("unknown workload " + name);
+        }
+    }
+
+    /** value of the funding outputs, in base units */
+    private static final long FUNDING_VALUE = 10 * Transaction.COIN;
+
+    private static KeyPair owner;
+
+    /** all coins of a workload belong to one owner, generating RSA keys is slow */
+    private static synchronized KeyPair owner() throws Exception {
+        if (owner == null)
+            owner = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        return owner;
+    }
+
+    /**
+     * @return a transaction spending the outputs {@code prevIndexes} of {@code prevTx} and creating
+     *         {@code numOutputs} outputs of {@code value} each, signed by {@code signer}
+     */
+    private static Transaction signedTx(Transaction prevTx, int[] prevIndexes, int numOutputs, long value,
+            KeyPair signer) throws Exception {
+        Transaction tx = new Transaction();
+        for (int index : prevIndexes)
+            tx.addInput(prevTx.getHash(), index);
+        for (int i = 0; i < numOutputs; i++)
+            tx.addOutputUnits(value, signer.getPublic());
+        Signature sign = Signature.getInstance("SHA256withRSA");
+        for (int i = 0; i < prevIndexes.length; i++) {
+            sign.initSign(signer.getPrivate());
+            sign.update(tx.getRawDataToSign(i));
+            tx.addSignature(sign.sign(), i);
+        }
+        tx.finalize();
+        return tx;
+    }
+
+    /** @return an unsigned transaction with {@code numOutputs} outputs of {@code value} units to the owner */
+    private static Transaction fundingTx(int numOutputs, long value) throws Exception {
+        Transaction tx = new Transaction();
+        for (int i = 0; i < numOutputs; i++)
+            tx.addOutputUnits(value, owner().getPublic());
+        tx.finalize();
+        return tx;
+    }
+
+    /**
+     * Builds {@code params.txCount} transactions spending the outputs of {@code funding}, in chains
+     * of {@code params.chainDepth} transactions where each one spends the outputs of the previous
+     * one. Every transaction has {@code params.inputsPerTx} inputs and as many outputs. The result is
+     * in dependency order, so {@code TxHandler.handleTxs} accepts all of it in one pass.
+     */
+    private static Transaction[] chainedTxs(Transaction funding, Workload.Params params, long value)
+            throws Exception {
+        Transaction[] txs = new Transaction[params.txCount];
+        int k = params.inputsPerTx;
+        int n = 0;
+        for (int chain = 0; n < txs.length; chain++) {
+            Transaction prev = funding;
+            int firstIndex = chain * k;
+            for (int depth = 0; depth < params.chainDepth && n < txs.length; depth++) {
+                int[] prevIndexes = new int[k];
+                for (int i = 0; i < k; i++)
+                    prevIndexes[i] = firstIndex + i;
+                prev = signedTx(prev, prevIndexes, k, value, owner());
+                txs[n++] = prev;
+                firstIndex = 0;
+            }
+        }
+        return txs;
+    }
+
+    /** number of funding outputs {@link #chainedTxs} needs */
+    private static int numFundingOutputs(Workload.Params params) {
+        int numChains = (params.txCount + params.chainDepth - 1) / params.chainDepth;
+        return numChains * params.inputsPerTx;
+    }
+
+    /**
+     * @return a pool holding all outputs of {@code funding} plus unrelated UTXOs with random hashes,
+     *         {@code utxoSetSize} UTXOs in total
+     */
+    private static UTXOPool pool(Transaction funding, int utxoSetSize) throws Exception {
+        UTXOPool pool = new UTXOPool();
+        for (int i = 0; i < funding.numOutputs(); i++)
+            pool.addUTXO(new UTXO(funding.getHash(), i), funding.getOutput(i));
+        Random random = new Random(42);
+        Transaction.Output filler = funding.getOutput(0);
+        byte[] hash = new byte[32];
+        while (pool.size() < utxoSetSize) {
+            random.nextBytes(hash);
+            pool.addUTXO(new UTXO(hash, 0), filler);
+        }
+        return pool;
+    }
+
+    /** TxHandler.handleTxs over a batch of chained transactions */
+    private static class HandleTxs implements Workload {
+        private final UTXOPool pool;
+        private final Transaction[] txs;
+
+        private HandleTxs(Params params) throws Exception {
+            Transaction funding = fundingTx(numFundingOutputs(params), FUNDING_VALUE);
+            pool = pool(funding, params.utxoSetSize);
+            txs = chainedTxs(funding, params, FUNDING_VALUE);
+        }
+
+        public Object run() {
+            return new TxHandler(pool).handleTxs(txs);
+        }
+    }
+
+    /** Crypto.verifySignature of one input */
+    private static class VerifySignature implements Workload {
+        private final Transaction.Output spent;
+        private final byte[] message;
+        private final byte[] signature;
+
+        private VerifySignature(Params params) throws Exception {
+            Transaction funding = fundingTx(1, FUNDING_VALUE);
+            Transaction tx = signedTx(funding, new int[]{0}, params.inputsPerTx, FUNDING_VALUE / params.inputsPerTx, owner());
+            spent = funding.getOutput(0);
+            message = tx.getRawDataToSign(0);
+            signature = tx.getInput(0).signature;
+        }
+
+        public Object run() {
+            return Crypto.verifySignature(spent.address, message, signature);
+        }
+    }
+
+    /** Transaction.getRawTx of a transaction with {@code inputsPerTx} inputs and outputs */
+    private static class GetRawTx implements Workload {
+        private final Transaction tx;
+
+        private GetRawTx(Params params) throws Exception {
+            int k = params.inputsPerTx;
+            int[] prevIndexes = new int[k];
+            for (int i = 0; i < k; i++)
+                prevIndexes[i] = i;
+            tx = signedTx(fundingTx(k, FUNDING_VALUE), prevIndexes, k, FUNDING_VALUE, owner());
+        }
+
+        public Object run() {
+            return tx.getRawTx();
+        }
+    }
+
+    /** Block.finalize of a block holding {@code txCount} transactions */
+    private static class FinalizeBlock implements Workload {
+        private final Block block;
+
+        private FinalizeBlock(Params params) throws Exception {
+            block = new Block(new byte[32], owner().getPublic());
+            Transaction funding = fundingTx(numFundingOutputs(params), FUNDING_VALUE);
+            for (Transaction tx : chainedTxs(funding, params, FUNDING_VALUE))
+                block.addTransaction(tx);
+        }
+
+        public Object run() {
+            block.finalize();
+            return block.getHash();
+        }
+    }
+
+    /** copy of a UTXOPool of {@code utxoSetSize} UTXOs, modified once so that the copy is made */
+    private static class CopyPool implements Workload {
+        private final UTXOPool pool;
+        private final UTXO extra;
+        private final Transaction.Output extraOutput;
+
+        private CopyPool(Params params) throws Exception {
+            Transaction funding = fundingTx(1, FUNDING_VALUE);
+            pool = pool(funding, params.utxoSetSize);
+            extra = new UTXO(new byte[32], 0);
+            extraOutput = funding.getOutput(0);
+        }
+
+        public Object run() {
+            UTXOPool copy = new UTXOPool(pool);
+            copy.addUTXO(extra, extraOutput);
+            return copy;
+        }
+    }
+
+    /**
+     * BlockChain.addBlock of {@code forkWidth} competing blocks on the same parent, each holding the
+     * same {@code txCount} chained transactions. The parent splits the genesis coinbase into the
+     * coins those transactions spend.
+     */
+    private static class AddBlock implements Workload {
+        private final Block genesis;
+        private final Block parent;
+        private final Block[] forks;
+        private BlockChain blockChain;
+
+        private AddBlock(Params params) throws Exception {
+            genesis = new Block(null, owner().getPublic());
+            genesis.finalize();
+
+            int numCoins = numFundingOutputs(params);
+            // stay below the coinbase value whatever the rounding of the split
+            long value = Block.COINBASE / (numCoins + 1);
+            Transaction split = signedTx(genesis.getCoinbase(), new int[]{0}, numCoins, value, owner());
+            parent = new Block(genesis.getHash(), owner().getPublic());
+            parent.addTransaction(split);
+            parent.finalize();
+
+            Transaction[] txs = chainedTxs(split, params, value);
+            KeyPairGenerator keyPairGen = KeyPairGenerator.getInstance("RSA");
+            forks = new Block[params.forkWidth];
+            for (int i = 0; i < forks.length; i++) {
+                // a different miner per fork, otherwise all forks would have the same hash
+                forks[i] = new Block(parent.getHash(), keyPairGen.generateKeyPair().getPublic());
+                for (Transaction tx : txs)
+                    forks[i].addTransaction(tx);
+                forks[i].finalize();
+            }
+        }
+
+        public void reset() {
+            blockChain = new BlockChain(genesis);
+            if (!blockChain.addBlock(parent))
+                throw new IllegalStateException("parent block rejected");
+        }
+
+        public Object run() {
+            int added = 0;
+            for (Block fork : forks) {
+                if (blockChain.addBlock(fork))
+                    added++;
+            }
+            if (added != forks.length)
+                throw new IllegalStateException("fork rejected");
+            return blockChain;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package phbs.bench;
+
+import java.util.Arrays;
+
+/**
+ * Entry point of {@code benchmarks.jar}. Takes the usual JMH command line and, unless a result
+ * format is given, writes the results as JSON to {@code jmh-result.json} so runs can be compared
+ * over time.
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        if (!Arrays.asList(args).contains("-rf")) {
+            String[] withFormat = Arrays.copyOf(args, args.length + 2);
+            withFormat[args.length] = "-rf";
+            withFormat[args.length + 1] = "json";
+            args = withFormat;
+        }
+        org.openjdk.jmh.Main.main(args);
+    }
+}
@@ -0,0 +1,156 @@
+package phbs.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of transaction validation, hashing, UTXOPool copies and block insertion. Every
+ * benchmark has its own state so that only the parameters it depends on are crossed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChainBenchmarks {
+
+    @State(Scope.Benchmark)
+    public static class HandleTxsState {
+        @Param({"16", "256"})
+        public int txCount;
+        @Param({"1", "4"})
+        public int inputsPerTx;
+        @Param({"1000", "100000"})
+        public int utxoSetSize;
+        @Param({"1", "8"})
+        public int chainDepth;
+
+        Workload workload;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            Workload.Params params = new Workload.Params();
+            params.txCount = txCount;
+            params.inputsPerTx = inputsPerTx;
+            params.utxoSetSize = utxoSetSize;
+            params.chainDepth = chainDepth;
+            workload = Workload.create("handleTxs", params);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class TxShapeState {
+        @Param({"1", "16", "64"})
+        public int inputsPerTx;
+
+        Workload verifySignature;
+        Workload getRawTx;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            Workload.Params params = new Workload.Params();
+            params.inputsPerTx = inputsPerTx;
+            verifySignature = Workload.create("verifySignature", params);
+            getRawTx = Workload.create("getRawTx", params);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class FinalizeBlockState {
+        @Param({"16", "256"})
+        public int txCount;
+
+        Workload workload;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            Workload.Params params = new Workload.Params();
+            params.txCount = txCount;
+            workload = Workload.create("finalizeBlock", params);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class CopyPoolState {
+        @Param({"1000", "100000", "1000000"})
+        public int utxoSetSize;
+
+        Workload workload;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            Workload.Params params = new Workload.Params();
+            params.utxoSetSize = utxoSetSize;
+            workload = Workload.create("copyPool", params);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class AddBlockState {
+        @Param({"16", "128"})
+        public int txCount;
+        @Param({"1", "8"})
+        public int chainDepth;
+        @Param({"1", "4"})
+        public int forkWidth;
+
+        Workload workload;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            Workload.Params params = new Workload.Params();
+            params.txCount = txCount;
+            params.chainDepth = chainDepth;
+            params.forkWidth = forkWidth;
+            workload = Workload.create("addBlock", params);
+        }
+
+        /** every invocation starts from a chain holding only the genesis block and the fork parent */
+        @Setup(Level.Invocation)
+        public void reset() throws Exception {
+            workload.reset();
+        }
+    }
+
+    @Benchmark
+    public Object handleTxs(HandleTxsState state) throws Exception {
+        return state.workload.run();
+    }
+
+    @Benchmark
+    public Object verifySignature(TxShapeState state) throws Exception {
+        return state.verifySignature.run();
+    }
+
+    @Benchmark
+    public Object getRawTx(TxShapeState state) throws Exception {
+        return state.getRawTx.run();
+    }
+
+    @Benchmark
+    public Object finalizeBlock(FinalizeBlockState state) throws Exception {
+        return state.workload.run();
+    }
+
+    @Benchmark
+    public Object copyPool(CopyPoolState state) throws Exception {
+        return state.workload.run();
+    }
+
+    @Benchmark
+    public Object addBlock(AddBlockState state) throws Exception {
+        return state.workload.run();
+    }
+}
@@ -0,0 +1,41 @@
+package phbs.bench;
+
+/**
+ * One measured operation of the block chain code. JMH refuses benchmark classes in the default
+ * package, while the block chain classes live there and cannot be imported from a named package.
+ * The workloads are therefore implemented in the default package ({@code WorkloadFactory}) behind
+ * this interface and looked up by name once per trial.
+ */
+public interface Workload {
+
+    /** the shape of the data a workload is built from */
+    class Params {
+        /** number of transactions per batch or block */
+        public int txCount = 16;
+        /** inputs (and outputs) per transaction */
+        public int inputsPerTx = 1;
+        /** number of UTXOs in the pool the transactions are validated against */
+        public int utxoSetSize = 1000;
+        /** length of the chains of transactions spending each other's outputs within a batch */
+        public int chainDepth = 1;
+        /** number of competing blocks added on top of the same parent */
+        public int forkWidth = 1;
+    }
+
+    /** creates workloads by name, implemented by {@code WorkloadFactory} */
+    interface Factory {
+        Workload create(String name, Params params) throws Exception;
+    }
+
+    /** Resets any state the previous {@link #run()} consumed; called before every invocation */
+    default void reset() throws Exception {
+    }
+
+    /** Performs the measured operation, returning something derived from its result */
+    Object run() throws Exception;
+
+    static Workload create(String name, Params params) throws Exception {
+        Factory factory = (Factory) Class.forName("WorkloadFactory").getDeclaredConstructor().newInstance();
+        return factory.create(name, params);
+    }
+}